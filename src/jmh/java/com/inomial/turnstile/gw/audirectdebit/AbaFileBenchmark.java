@@ -0,0 +1,99 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.AUBankAccountDetails;
+import com.inomial.cim.turnstile.DirectDebitPaymentRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/** Generating a bulk debit run of {@code records} ABA records with {@link AbaFileWriter}, split into files of
+ * {@code recordsPerFile}. Requests are drawn from a small pre-built pool so that only the cost of formatting and
+ * writing is measured; with {@code -prof gc}, the bytes allocated per operation show that memory use doesn't grow with
+ * the size of the run. Files are written to a temporary directory and deleted after each operation. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AbaFileBenchmark
+{
+  private static final int POOL_SIZE = 1024;
+
+  @Param("1000000")
+  public int records;
+
+  @Param("100000")
+  public int recordsPerFile;
+
+  private DirectDebitPaymentRequest[] pool;
+  private AbaFileWriter.Descriptor descriptor;
+  private File dir;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    pool = new DirectDebitPaymentRequest[POOL_SIZE];
+    for (int i = 0; i < POOL_SIZE; i++)
+    {
+      DirectDebitPaymentRequest request = new DirectDebitPaymentRequest();
+      request.transferId = UUID.randomUUID();
+      request.bankAccount = new AUBankAccountDetails();
+      request.bankAccount.name = "CUSTOMER " + i;
+      request.bankAccount.account = String.format("062%03d%08d", i % 1000, i);
+      request.amount = BigDecimal.valueOf(1000 + i, 2);
+      pool[i] = request;
+    }
+    descriptor =
+      new AbaFileWriter.Descriptor("CBA", "INOMIAL BENCHMARK", 123456, "DIRECT DEBIT", "062000123456789", "INOMIAL");
+    dir = Files.createTempDirectory("aba-benchmark").toFile();
+  }
+
+  @Benchmark
+  public List<File> writeRun() throws IOException
+  {
+    try (AbaFileWriter writer = new AbaFileWriter(dir, "bench", descriptor, LocalDate.now(), recordsPerFile))
+    {
+      for (int i = 0; i < records; i++)
+        writer.write(pool[i & (POOL_SIZE - 1)]);
+      return writer.finish();
+    }
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteFiles() throws IOException
+  {
+    File[] written = dir.listFiles();
+    if (written != null)
+    {
+      for (File file : written)
+        Files.deleteIfExists(file.toPath());
+    }
+  }
+
+  @TearDown
+  public void deleteDir() throws IOException
+  {
+    deleteFiles();
+    Files.deleteIfExists(dir.toPath());
+  }
+}
@@ -0,0 +1,115 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inomial.turnstile.gw.spi.CaptureQueryRequest;
+import com.inomial.turnstile.gw.spi.CnpTransferRequest;
+import com.inomial.turnstile.gw.spi.TokeniseRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.security.Principal;
+import java.util.UUID;
+
+/** Canned gateway requests and a stub {@link HttpServletRequest} for the benchmarks and the {@link LoadTest}. */
+class BenchmarkRequests
+{
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  static final UUID ACCOUNT_ID = UUID.fromString("6f1c2e8a-3b7d-4c59-9a11-2d0e4f5b6c7d");
+  static final UUID PAYMENT_METHOD_ID = UUID.fromString("0b9d8c7e-6f5a-4b3c-8d2e-1f0a9b8c7d6e");
+  static final UUID PRINCIPAL = UUID.fromString("5a4b3c2d-1e0f-4a9b-8c7d-6e5f4a3b2c1d");
+  static final int TID = 1000;
+
+  private static final String CONFIG_JSON =
+    "{\"institution\":1234,\"tokenCaptureUrl\":\"https://pay.example.com/capture/{gw}\",\"webFormTimeoutSec\":900}";
+
+
+  /** Query arguments that the capture page adds to those from the capture URL. */
+  static final String CAPTURED_ACCOUNT_ARGS = "name=J%20Citizen&bsb=062000&account=12345678";
+
+  static TokeniseRequest tokeniseRequest()
+  {
+    return tokeniseRequest(PAYMENT_METHOD_ID);
+  }
+
+  static TokeniseRequest tokeniseRequest(UUID paymentMethodId)
+  {
+    return read("{" + commonJson(paymentMethodId)
+      + ",\"returnUrl\":\"https://portal.example.com/payment-methods/return\"}", TokeniseRequest.class);
+  }
+
+  static CaptureQueryRequest captureQueryRequest(String urlQueryString)
+  {
+    return captureQueryRequest(PAYMENT_METHOD_ID, urlQueryString);
+  }
+
+  static CaptureQueryRequest captureQueryRequest(UUID paymentMethodId, String urlQueryString)
+  {
+    return read("{" + commonJson(paymentMethodId) + ",\"urlQueryString\":" + quote(urlQueryString) + "}",
+      CaptureQueryRequest.class);
+  }
+
+  /** @return A request to debit $10 from a captured bank account. */
+  static CnpTransferRequest cnpTransferRequest(UUID transferId, UUID paymentMethodId, String token)
+  {
+    return read("{" + commonJson(paymentMethodId) + ",\"transferId\":\"" + transferId + "\",\"token\":"
+      + quote(token) + ",\"amount\":10.00,\"currency\":\"AUD\"}", CnpTransferRequest.class);
+  }
+
+  private static String commonJson(UUID paymentMethodId)
+  {
+    return "\"accountId\":\"" + ACCOUNT_ID + "\",\"paymentMethodId\":\"" + paymentMethodId + "\","
+      + "\"endUserIpAddress\":\"203.0.113.5\",\"config\":" + CONFIG_JSON;
+  }
+
+  /** Creates a gateway resource as RESTEasy would, with a stub request injected in place of the real one. */
+  static RSAUDirectDebit gateway()
+  {
+    RSAUDirectDebit gateway = new RSAUDirectDebit();
+    try
+    {
+      Field field = RSAUDirectDebit.class.getDeclaredField("httpServletRequest");
+      field.setAccessible(true);
+      field.set(gateway, httpServletRequest());
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new IllegalStateException("Unable to inject stub HttpServletRequest", e);
+    }
+    return gateway;
+  }
+
+  /** @return A request for {@code http://localhost:8080/turnstile/gw}, from an authenticated user. Anything not
+   * covered here returns {@code null}, zero, {@code false} or an empty enumeration. */
+  static HttpServletRequest httpServletRequest()
+  {
+    Principal principal = PRINCIPAL::toString;
+    return StubHttpServletRequest.create("http://localhost:8080/turnstile/gw", "203.0.113.5", principal);
+  }
+
+  private static <T> T read(String json, Class<T> type)
+  {
+    try
+    {
+      return objectMapper.readValue(json, type);
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException("Unable to build benchmark " + type.getSimpleName(), e);
+    }
+  }
+
+  private static String quote(String s)
+  {
+    try
+    {
+      return objectMapper.writeValueAsString(s);
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Checking and recording captured-form HMACs in an {@link HmacReplayFilter} with the default size, kept about half
+ * full. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HmacReplayFilterBenchmark
+{
+  private static final int FORMS = 1 << 16;
+  private static final long WINDOW_MILLIS = 900_000;
+
+  private HmacReplayFilter filter;
+  private String[] hmacs;
+  private long now;
+  private int next;
+
+  @Setup
+  public void setUp()
+  {
+    filter = new HmacReplayFilter(WINDOW_MILLIS, 8192 * 1024);
+    hmacs = new String[FORMS];
+    for (int i = 0; i < FORMS; i++)
+      hmacs[i] = CaptureFormEncoding.HMAC_PREFIX + Long.toHexString(i * 0x9e3779b97f4a7c15L) + "AbCdEfGhIjKlMnOpQrStUv";
+    now = System.currentTimeMillis();
+    for (int i = 0; i < FORMS; i += 2)
+      filter.record(hmacs[i], now, now);
+  }
+
+  @Benchmark
+  public boolean isReplay()
+  {
+    next = (next + 1) & (FORMS - 1);
+    return filter.isReplay(hmacs[next], now, now);
+  }
+
+  @Benchmark
+  public long fingerprint()
+  {
+    next = (next + 1) & (FORMS - 1);
+    return HmacReplayFilter.fingerprint(hmacs[next]);
+  }
+}
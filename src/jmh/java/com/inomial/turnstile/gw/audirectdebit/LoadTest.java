@@ -0,0 +1,463 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inomial.secore.http.HttpServer;
+import com.inomial.turnstile.gw.spi.CaptureQueryRequest;
+import com.inomial.turnstile.gw.spi.CaptureResult;
+import com.inomial.turnstile.gw.spi.CnpTransferRequest;
+import com.inomial.turnstile.gw.spi.TokeniseRequest;
+import com.inomial.turnstile.gw.spi.TransferResult;
+import com.inomial.turnstile.gw.spi.TurnstileGateway;
+import com.inomial.turnstile.gw.spi.WebFormResult;
+
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** Load test of the web form and direct debit flow, against a gateway running in-process.
+ *
+ * <p>Virtual end-users start flows at a fixed rate of {@code LOADTEST_RATE} per second. Each flow gets a capture URL,
+ * completes the form with a bank account as the capture page would (so its HMAC is genuine), and then, for
+ * {@code LOADTEST_TRANSFER_PERCENT} of flows, debits the captured account. The gateway is served by the secore
+ * {@link HttpServer} as {@link Main} starts it, and requests are posted to it as JSON over HTTP at
+ * {@code LOADTEST_URL} (default {@code http://localhost:8080}), so RESTEasy and the servlet container are measured
+ * too. Only authentication is stubbed, by {@link StubAuthFilter} in place of a Keycloak token, and payment requests go
+ * to a {@link StandInMessageSink} instead of Kafka.</p>
+ *
+ * <p>The schedule is open-loop: a flow that starts late because all {@code LOADTEST_THREADS} users were busy is timed
+ * from when it should have started, so a saturated gateway shows up as latency rather than as a lower request rate.
+ * Every {@code LOADTEST_REPORT_SEC} seconds, and for the whole run after {@code LOADTEST_WARMUP_SEC} seconds of
+ * warm-up, it reports throughput, latency percentiles, errors, CPU, heap and GC. Run it with the heap size and
+ * processor count of the container (see the {@code loadTest} task) to see whether they're enough for a given rate.
+ * The load generator shares the JVM, so CPU and allocation figures include the cost of building its requests.</p> */
+public class LoadTest
+{
+  private static final double RATE =
+    Double.parseDouble(System.getenv().getOrDefault("LOADTEST_RATE", "200"));
+  private static final int DURATION_SEC =
+    Integer.parseInt(System.getenv().getOrDefault("LOADTEST_DURATION_SEC", "60"));
+  private static final int WARMUP_SEC =
+    Integer.parseInt(System.getenv().getOrDefault("LOADTEST_WARMUP_SEC", "15"));
+  private static final int THREADS =
+    Integer.parseInt(System.getenv().getOrDefault("LOADTEST_THREADS", "64"));
+  private static final int TRANSFER_PERCENT =
+    Integer.parseInt(System.getenv().getOrDefault("LOADTEST_TRANSFER_PERCENT", "100"));
+  private static final int REPORT_SEC =
+    Integer.parseInt(System.getenv().getOrDefault("LOADTEST_REPORT_SEC", "5"));
+  private static final String BASE_URL = System.getenv().getOrDefault("LOADTEST_URL", "http://localhost:8080");
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final long MB = 1024 * 1024;
+
+  /** Takes the payment requests in place of Kafka. */
+  private static final StandInMessageSink standIn = new StandInMessageSink();
+
+  /** What is timed; {@code FLOW} is from when a flow was due to start until it finished. */
+  private enum Step
+  {
+    CAPTURE_URL("getCaptureUrl"),
+    CAPTURE("queryCardCapture"),
+    TRANSFER("cnpTransfer"),
+    FLOW("flow");
+
+    final String label;
+
+    Step(String label)
+    {
+      this.label = label;
+    }
+  }
+
+  /** Where each gateway method is posted, by step. */
+  private final URL[] urls = new URL[Step.values().length];
+  private final LatencyHistogram[] latencies = new LatencyHistogram[Step.values().length];
+  private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+  private final LongAdder errorCount = new LongAdder();
+  private final AtomicLong nextFlow = new AtomicLong();
+  private long startNanos;
+  private long endNanos;
+
+  private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+  private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+  /** Counters at a point in time; intervals are reported as the difference between two samples. */
+  private class Sample
+  {
+    final long nanos = System.nanoTime();
+    final LatencyHistogram.Snapshot[] steps = new LatencyHistogram.Snapshot[latencies.length];
+    final long errors = errorCount.sum();
+    final long cpuNanos = processCpuNanos();
+    final long allocatedBytes = allocatedBytes();
+    final long[] gcCounts = new long[collectors.size()];
+    final long[] gcMillis = new long[collectors.size()];
+    long heapUsed;
+    long heapCommitted;
+    long heapAfterGc;
+
+    Sample()
+    {
+      for (int i = 0; i < latencies.length; i++)
+        steps[i] = latencies[i].snapshot();
+      for (int i = 0; i < gcCounts.length; i++)
+      {
+        gcCounts[i] = collectors.get(i).getCollectionCount();
+        gcMillis[i] = collectors.get(i).getCollectionTime();
+      }
+      for (MemoryPoolMXBean pool : heapPools)
+      {
+        MemoryUsage usage = pool.getUsage();
+        heapUsed += usage.getUsed();
+        heapCommitted += usage.getCommitted();
+        MemoryUsage afterGc = pool.getCollectionUsage();
+        if (afterGc != null)
+          heapAfterGc += afterGc.getUsed();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException
+  {
+    WebFormMac.checkSecret();
+    // Payment requests must never reach Kafka from here.
+    RSAUDirectDebit.messageSink = standIn;
+    RSAUDirectDebit.paymentRequests.start();
+    RSAUDirectDebit.paymentStatusConsumer.skipReplay();
+    // Otherwise only a few connections per host are kept alive between requests.
+    System.setProperty("http.maxConnections", String.valueOf(THREADS));
+    HttpServer.addResourceClass(RSAUDirectDebit.class);
+    HttpServer.addResourceClass(StubAuthFilter.class);
+    HttpServer.start(Main.REALMS, Main.ROLES);
+    System.exit(new LoadTest().run() == 0 ? 0 : 1);
+  }
+
+  LoadTest() throws IOException
+  {
+    urls[Step.CAPTURE_URL.ordinal()] = gatewayUrl("getCaptureUrl");
+    urls[Step.CAPTURE.ordinal()] = gatewayUrl("queryCardCapture");
+    urls[Step.TRANSFER.ordinal()] = gatewayUrl("cnpTransfer");
+    for (int i = 0; i < latencies.length; i++)
+      latencies[i] = new LatencyHistogram();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+    {
+      if (pool.getType() == MemoryType.HEAP)
+        heapPools.add(pool);
+    }
+  }
+
+  /** Runs the load test and prints its results.
+   * @return Number of flows that failed after the warm-up. */
+  long run() throws IOException, InterruptedException
+  {
+    System.out.printf("Load test: %.1f flows/s for %ds after %ds warm-up, %d users, %d%% with transfers;"
+        + " %d processors, max heap %d MB%n", RATE, DURATION_SEC, WARMUP_SEC, THREADS, TRANSFER_PERCENT,
+      Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / MB);
+    checkAuthentication();
+
+    startNanos = System.nanoTime();
+    endNanos = startNanos + (WARMUP_SEC + DURATION_SEC) * 1_000_000_000L;
+    long warmupEndNanos = startNanos + WARMUP_SEC * 1_000_000_000L;
+    List<Thread> users = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++)
+    {
+      Thread t = new Thread(this::user, "loadtest-" + i);
+      t.setDaemon(true);
+      t.start();
+      users.add(t);
+    }
+
+    Sample first = new Sample();
+    Sample baseline = WARMUP_SEC == 0 ? first : null;
+    Sample previous = first;
+    long peakHeapAfterGc = 0;
+    for (long report = startNanos + REPORT_SEC * 1_000_000_000L; ; report += REPORT_SEC * 1_000_000_000L)
+    {
+      long due = Math.min(report, endNanos);
+      if (baseline == null)
+        due = Math.min(due, warmupEndNanos);
+      for (long now = System.nanoTime(); now < due; now = System.nanoTime())
+        LockSupport.parkNanos(due - now);
+
+      Sample sample = new Sample();
+      if (baseline == null && sample.nanos >= warmupEndNanos)
+      {
+        baseline = sample;
+        System.out.println("-- warm-up done --");
+        report -= REPORT_SEC * 1_000_000_000L;
+        continue;
+      }
+      if (baseline != null)
+        peakHeapAfterGc = Math.max(peakHeapAfterGc, sample.heapAfterGc);
+      printInterval(previous, sample);
+      previous = sample;
+      if (sample.nanos >= endNanos)
+        break;
+    }
+    for (Thread t : users)
+      t.join();
+
+    Sample last = new Sample();
+    printSummary(baseline, last, peakHeapAfterGc);
+    return last.errors - baseline.errors;
+  }
+
+  /** Starts flows on schedule until the end of the test. */
+  private void user()
+  {
+    double intervalNanos = 1e9 / RATE;
+    while (true)
+    {
+      long due = startNanos + (long)(nextFlow.getAndIncrement() * intervalNanos);
+      if (due >= endNanos)
+        return;
+      for (long now = System.nanoTime(); now < due; now = System.nanoTime())
+        LockSupport.parkNanos(due - now);
+      flow();
+      latencies[Step.FLOW.ordinal()].record(System.nanoTime() - due);
+    }
+  }
+
+  /** Runs one end-user's flow, counting any failure as an error. */
+  private void flow()
+  {
+    UUID paymentMethodId = UUID.randomUUID();
+    Step step = Step.CAPTURE_URL;
+    try
+    {
+      TokeniseRequest tokeniseRequest = BenchmarkRequests.tokeniseRequest(paymentMethodId);
+      long start = System.nanoTime();
+      WebFormResult form = post(step, tokeniseRequest, WebFormResult.class);
+      latencies[step.ordinal()].record(System.nanoTime() - start);
+
+      step = Step.CAPTURE;
+      String redirectUrl = form.redirectUrl;
+      String query = redirectUrl.substring(redirectUrl.indexOf('?') + 1);
+      CaptureQueryRequest captureRequest = BenchmarkRequests.captureQueryRequest(paymentMethodId,
+        query + "&" + BenchmarkRequests.CAPTURED_ACCOUNT_ARGS);
+      start = System.nanoTime();
+      CaptureResult capture = post(step, captureRequest, CaptureResult.class);
+      latencies[step.ordinal()].record(System.nanoTime() - start);
+      if (capture.token == null)
+      {
+        error(step, String.valueOf(capture.status));
+        return;
+      }
+
+      if (ThreadLocalRandom.current().nextInt(100) >= TRANSFER_PERCENT)
+        return;
+      step = Step.TRANSFER;
+      CnpTransferRequest transferRequest =
+        BenchmarkRequests.cnpTransferRequest(UUID.randomUUID(), paymentMethodId, capture.token);
+      start = System.nanoTime();
+      post(step, transferRequest, TransferResult.class);
+      latencies[step.ordinal()].record(System.nanoTime() - start);
+    }
+    catch (WebApplicationException e)
+    {
+      error(step, "HTTP " + e.getResponse().getStatus());
+    }
+    catch (IOException | RuntimeException e)
+    {
+      error(step, e.getClass().getSimpleName());
+    }
+  }
+
+  /** Fails fast if the gateway doesn't accept the stub authentication, rather than reporting every flow as an
+   * error. */
+  private void checkAuthentication() throws IOException
+  {
+    try
+    {
+      post(Step.CAPTURE_URL, BenchmarkRequests.tokeniseRequest(), WebFormResult.class);
+    }
+    catch (WebApplicationException e)
+    {
+      int status = e.getResponse().getStatus();
+      if (status == HttpURLConnection.HTTP_UNAUTHORIZED || status == HttpURLConnection.HTTP_FORBIDDEN)
+        throw new IllegalStateException("Gateway at " + BASE_URL + " rejected the stub authentication: HTTP "
+          + status);
+      throw e;
+    }
+  }
+
+  /** Posts a gateway request as JSON and reads the response.
+   * @throws WebApplicationException with the response status, if it isn't 200. */
+  private <T> T post(Step step, Object request, Class<T> responseType) throws IOException
+  {
+    HttpURLConnection connection = (HttpURLConnection)urls[step.ordinal()].openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json");
+    connection.setRequestProperty("Accept", "application/json");
+    try (OutputStream out = connection.getOutputStream())
+    {
+      objectMapper.writeValue(out, request);
+    }
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK)
+    {
+      // Read the error body, so the connection can be kept alive.
+      try (InputStream in = connection.getErrorStream())
+      {
+        byte[] discard = new byte[4096];
+        while (in != null && in.read(discard) >= 0)
+        {
+          // Nothing to do with it
+        }
+      }
+      throw new WebApplicationException(status);
+    }
+    try (InputStream in = connection.getInputStream())
+    {
+      return objectMapper.readValue(in, responseType);
+    }
+  }
+
+  /** @return URL of a gateway method, from the JAX-RS paths of {@link TurnstileGateway} that RESTEasy routes by. */
+  private static URL gatewayUrl(String methodName) throws IOException
+  {
+    for (Method method : TurnstileGateway.class.getMethods())
+    {
+      if (!method.getName().equals(methodName))
+        continue;
+      StringBuilder url = new StringBuilder(BASE_URL);
+      Path[] paths = { TurnstileGateway.class.getAnnotation(Path.class), method.getAnnotation(Path.class) };
+      for (Path path : paths)
+      {
+        if (path == null)
+          continue;
+        if (url.charAt(url.length() - 1) != '/' && !path.value().startsWith("/"))
+          url.append('/');
+        url.append(path.value());
+      }
+      return new URL(url.toString());
+    }
+    throw new IllegalStateException("TurnstileGateway has no method " + methodName);
+  }
+
+  private void error(Step step, String what)
+  {
+    errorCount.increment();
+    errors.computeIfAbsent(step.label + ": " + what, k -> new LongAdder()).increment();
+  }
+
+  private void printInterval(Sample from, Sample to)
+  {
+    double seconds = (to.nanos - from.nanos) / 1e9;
+    LatencyHistogram.Snapshot flows = minus(to.steps[Step.FLOW.ordinal()], from.steps[Step.FLOW.ordinal()]);
+    long gcCount = 0;
+    long gcMillis = 0;
+    for (int i = 0; i < to.gcCounts.length; i++)
+    {
+      gcCount += to.gcCounts[i] - from.gcCounts[i];
+      gcMillis += to.gcMillis[i] - from.gcMillis[i];
+    }
+    System.out.printf("%5.0fs %8.1f flows/s  errors %-6d flow p50 %s  p99 %s  max %s | cpu %.2f  heap %d/%d MB"
+        + "  gc %d (%d ms)  alloc %.0f MB/s%n",
+      (to.nanos - startNanos) / 1e9, flows.count / seconds, to.errors - from.errors,
+      millis(flows.quantile(0.5)), millis(flows.quantile(0.99)), millis(flows.quantile(1)),
+      (to.cpuNanos - from.cpuNanos) / (double)(to.nanos - from.nanos), to.heapUsed / MB, to.heapCommitted / MB,
+      gcCount, gcMillis, (to.allocatedBytes - from.allocatedBytes) / seconds / MB);
+  }
+
+  private void printSummary(Sample from, Sample to, long peakHeapAfterGc)
+  {
+    double seconds = (to.nanos - from.nanos) / 1e9;
+    System.out.println();
+    System.out.printf("%-18s %9s %9s %9s %9s %9s %9s %9s %9s%n",
+      "ms", "count", "per sec", "mean", "p50", "p90", "p99", "p99.9", "max");
+    for (Step step : Step.values())
+    {
+      LatencyHistogram.Snapshot s = minus(to.steps[step.ordinal()], from.steps[step.ordinal()]);
+      System.out.printf("%-18s %9d %9.1f %9s %9s %9s %9s %9s %9s%n", step.label, s.count, s.count / seconds,
+        millis(s.count == 0 ? 0 : s.sumNanos / s.count), millis(s.quantile(0.5)), millis(s.quantile(0.9)),
+        millis(s.quantile(0.99)), millis(s.quantile(0.999)), millis(s.quantile(1)));
+    }
+
+    System.out.println();
+    System.out.println("Errors: " + (to.errors - from.errors) + " after warm-up; by step, including warm-up:");
+    for (Map.Entry<String, LongAdder> e : new TreeMap<>(errors).entrySet())
+      System.out.println("  " + e.getKey() + ": " + e.getValue().sum());
+
+    long flows = to.steps[Step.FLOW.ordinal()].count - from.steps[Step.FLOW.ordinal()].count;
+    long allocated = to.allocatedBytes - from.allocatedBytes;
+    System.out.println();
+    System.out.printf("CPU: %.2f of %d processors on average%n",
+      (to.cpuNanos - from.cpuNanos) / (double)(to.nanos - from.nanos), Runtime.getRuntime().availableProcessors());
+    System.out.printf("Heap: max %d MB, committed %d MB, peak live after GC %d MB%n",
+      Runtime.getRuntime().maxMemory() / MB, to.heapCommitted / MB, peakHeapAfterGc / MB);
+    System.out.printf("Allocation: %.1f MB/s, %d KB per flow%n",
+      allocated / seconds / MB, flows == 0 ? 0 : allocated / flows / 1024);
+    for (int i = 0; i < collectors.size(); i++)
+    {
+      long count = to.gcCounts[i] - from.gcCounts[i];
+      long ms = to.gcMillis[i] - from.gcMillis[i];
+      System.out.printf("GC %s: %d collections, %d ms (%.2f%% of the time), mean %s ms%n",
+        collectors.get(i).getName(), count, ms, ms / seconds / 10, count == 0 ? "-" : millis(ms * 1_000_000 / count));
+    }
+    System.out.printf("Stand-in Kafka: %d messages sent, %d still queued%n",
+      standIn.messages(), RSAUDirectDebit.paymentRequests.queueDepth());
+  }
+
+  private static LatencyHistogram.Snapshot minus(LatencyHistogram.Snapshot a, LatencyHistogram.Snapshot b)
+  {
+    LatencyHistogram.Snapshot d = new LatencyHistogram.Snapshot();
+    for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+    {
+      d.counts[i] = a.counts[i] - b.counts[i];
+      d.count += d.counts[i];
+    }
+    d.sumNanos = a.sumNanos - b.sumNanos;
+    return d;
+  }
+
+  private static String millis(long nanos)
+  {
+    return String.format("%.2f", nanos / 1e6);
+  }
+
+  private long processCpuNanos()
+  {
+    if (os instanceof com.sun.management.OperatingSystemMXBean)
+      return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+    return 0;
+  }
+
+  /** @return Bytes allocated by live threads so far; those of threads that have ended aren't counted. */
+  private long allocatedBytes()
+  {
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return 0;
+    long total = 0;
+    for (long bytes : ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threads.getAllThreadIds()))
+    {
+      if (bytes > 0)
+        total += bytes;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,43 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.turnstile.api.status.CaptureStatus;
+import com.inomial.turnstile.gw.audirectdebit.GatewayMetrics.Operation;
+import com.inomial.turnstile.gw.audirectdebit.GatewayMetrics.Phase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Overhead that {@link GatewayMetrics} adds to a request: timing a queryCardCapture with all of its phases, from one
+ * thread and from several at once. This should stay well under a microsecond. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark
+{
+  @Benchmark
+  public void timeRequest()
+  {
+    GatewayMetrics.Timer timer = GatewayMetrics.start(Operation.QUERY_CARD_CAPTURE);
+    timer.phase(Phase.CONFIG);
+    timer.phase(Phase.HMAC);
+    timer.phase(Phase.BSB_LOOKUP);
+    timer.phase(Phase.JSON_TOKEN);
+    timer.finish(CaptureStatus.ACCEPTED);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void timeRequestContended()
+  {
+    timeRequest();
+  }
+}
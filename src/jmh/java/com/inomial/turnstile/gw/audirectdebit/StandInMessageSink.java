@@ -0,0 +1,59 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.secore.kafka.KafkaMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** In-process stand-in for a Kafka broker, for the load test.
+ *
+ * <p>Messages are counted and discarded; each send is acknowledged after {@code STANDIN_ACK_MICROS} microseconds
+ * (default 2000), roughly the time a local broker takes, so that senders see realistic back-pressure.</p> */
+class StandInMessageSink implements MessageSink
+{
+  private static final long ACK_MICROS =
+    Long.parseLong(System.getenv().getOrDefault("STANDIN_ACK_MICROS", "2000"));
+
+  private final ScheduledExecutorService acks = Executors.newSingleThreadScheduledExecutor(r ->
+  {
+    Thread t = new Thread(r, "standin-broker");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final LongAdder messages = new LongAdder();
+  private final long ackMicros;
+
+  StandInMessageSink()
+  {
+    this(ACK_MICROS);
+  }
+
+  /** @param ackMicros How long each send takes to be acknowledged, in microseconds. */
+  StandInMessageSink(long ackMicros)
+  {
+    this.ackMicros = ackMicros;
+  }
+
+  @Override
+  public Future<?> send(String topic, String key, KafkaMessage message)
+  {
+    messages.increment();
+    CompletableFuture<Void> ack = new CompletableFuture<>();
+    if (ackMicros <= 0)
+      ack.complete(null);
+    else
+      acks.schedule(() -> ack.complete(null), ackMicros, TimeUnit.MICROSECONDS);
+    return ack;
+  }
+
+  /** @return Number of messages sent since startup. */
+  long messages()
+  {
+    return messages.sum();
+  }
+}
@@ -0,0 +1,91 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.ext.Provider;
+import java.security.Principal;
+
+/** Authenticates every request as {@link BenchmarkRequests#PRINCIPAL}, in every role, for the {@link LoadTest}.
+ *
+ * <p>It runs before RESTEasy matches the request to a resource, and replaces the {@link HttpServletRequest} that
+ * resources and {@link com.inomial.secore.scope.RequestScope} see with one that carries the stub principal, so no
+ * Keycloak token is needed. Never register it with a gateway that takes real traffic.</p> */
+@Provider
+@PreMatching
+public class StubAuthFilter implements ContainerRequestFilter
+{
+  private static final Principal PRINCIPAL = BenchmarkRequests.PRINCIPAL::toString;
+
+  @Override
+  public void filter(ContainerRequestContext context)
+  {
+    HttpServletRequest request = ResteasyProviderFactory.getContextData(HttpServletRequest.class);
+    if (request != null)
+      ResteasyProviderFactory.pushContext(HttpServletRequest.class, new AuthenticatedRequest(request));
+    boolean secure = context.getSecurityContext() != null && context.getSecurityContext().isSecure();
+    context.setSecurityContext(new SecurityContext()
+    {
+      @Override
+      public Principal getUserPrincipal()
+      {
+        return PRINCIPAL;
+      }
+
+      @Override
+      public boolean isUserInRole(String role)
+      {
+        return true;
+      }
+
+      @Override
+      public boolean isSecure()
+      {
+        return secure;
+      }
+
+      @Override
+      public String getAuthenticationScheme()
+      {
+        return "Bearer";
+      }
+    });
+  }
+
+  private static class AuthenticatedRequest extends HttpServletRequestWrapper
+  {
+    AuthenticatedRequest(HttpServletRequest request)
+    {
+      super(request);
+    }
+
+    @Override
+    public Principal getUserPrincipal()
+    {
+      return PRINCIPAL;
+    }
+
+    @Override
+    public String getRemoteUser()
+    {
+      return PRINCIPAL.getName();
+    }
+
+    @Override
+    public String getAuthType()
+    {
+      return "Bearer";
+    }
+
+    @Override
+    public boolean isUserInRole(String role)
+    {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,433 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.DirectDebitPaymentRequest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Writes direct debit payment requests to ABA (Cemtex) files for upload to the bank.
+ *
+ * <p>Each file consists of a descriptive record, one detail record per debit, and a file total record; every record
+ * is {@link #RECORD_LENGTH} characters followed by CRLF. Records are formatted directly into a fixed-size NIO buffer
+ * which is written to the file channel whenever it fills, and the file totals are accumulated as each detail record
+ * is written, so memory use doesn't depend on the number of debits.</p>
+ *
+ * <p>A new file is started once the current one holds the configured maximum number of detail records, or when the
+ * next debit would overflow the 10-digit total amount field. Each file is written under a temporary name and only
+ * renamed to its final name once its total record has been written, so an incomplete file is never picked up for
+ * upload.</p>
+ *
+ * <p>The lodgement reference of each detail record is the first {@link #REFERENCE_LENGTH} hex digits of the
+ * transfer ID. Since that isn't enough to recover the transfer ID, each ABA file is accompanied by a references file
+ * ({@code .aba.refs}) listing the lodgement reference and full transfer ID of each debit in the file, one per
+ * {@link #REFS_LINE_LENGTH}-byte line; {@link ReturnFileProcessor} uses these to match bank returns back to the
+ * original requests.</p>
+ *
+ * <p>Instances are not thread-safe.</p> */
+class AbaFileWriter implements Closeable
+{
+  /** Length of each record, excluding the line terminator. */
+  static final int RECORD_LENGTH = 120;
+
+  /** Length of the lodgement reference field. */
+  static final int REFERENCE_LENGTH = 18;
+
+  /** Length of each line in a references file: lodgement reference, blank, transfer ID, LF. */
+  static final int REFS_LINE_LENGTH = REFERENCE_LENGTH + 1 + 36 + 1;
+
+  /** Suffix appended to the name of an ABA file to give the name of its references file. */
+  static final String REFS_SUFFIX = ".refs";
+
+  private static final int LINE_LENGTH = RECORD_LENGTH + 2;
+  private static final int BUFFER_SIZE = LINE_LENGTH * 512;
+
+  /** Largest amount that fits in a 10-digit amount field, in cents. */
+  private static final long MAX_AMOUNT_CENTS = 9_999_999_999L;
+
+  private static final int TXN_CODE_DEBIT = 13;
+  private static final String TOTAL_BSB = "999999";
+
+  /** Details of the debit user that appear in the descriptive record and as the trace account of every debit. */
+  static class Descriptor
+  {
+    /** Three-letter abbreviation of the user's financial institution, e.g. "CBA". */
+    final String bank;
+    /** Name of the user supplying the file, as registered with APCA. */
+    final String userName;
+    /** Six-digit APCA user identification number. */
+    final int userId;
+    /** Description of the entries in the file, e.g. "DIRECT DEBIT". */
+    final String description;
+    /** BSB and account number (without separators) to which returned debits are traced. */
+    final String traceAccount;
+    /** Name of the remitter, shown on the customer's statement. */
+    final String remitterName;
+
+    Descriptor(String bank, String userName, int userId, String description, String traceAccount,
+      String remitterName)
+    {
+      this.bank = bank;
+      this.userName = userName;
+      this.userId = userId;
+      this.description = description;
+      this.traceAccount = traceAccount;
+      this.remitterName = remitterName;
+      if (bank == null || bank.length() != 3)
+        throw new IllegalArgumentException("Bank abbreviation must be 3 characters: " + bank);
+      if (userId < 0 || userId > 999_999)
+        throw new IllegalArgumentException("APCA user ID must be 6 digits: " + userId);
+      checkAccount(traceAccount, "Trace account");
+    }
+  }
+
+  private final File dir;
+  private final String baseName;
+  private final Descriptor descriptor;
+  private final LocalDate processingDate;
+  private final int maxRecordsPerFile;
+  private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final ByteBuffer refsBuf = ByteBuffer.allocateDirect(REFS_LINE_LENGTH * 512);
+  private final List<File> files = new ArrayList<>();
+
+  // State of the file currently being written.
+  private FileChannel channel;
+  private FileChannel refsChannel;
+  private File tmpFile;
+  private int fileRecords;
+  private long fileDebitCents;
+
+  private long totalRecords;
+  private long totalDebitCents;
+
+  /** @param dir Directory that files are written to.
+   * @param baseName Prefix of each file name; files are named {@code <baseName>-<nnnn>.aba}.
+   * @param descriptor Details of the debit user.
+   * @param processingDate Date on which the debits are to be processed.
+   * @param maxRecordsPerFile Maximum number of detail records in each file. */
+  AbaFileWriter(File dir, String baseName, Descriptor descriptor, LocalDate processingDate, int maxRecordsPerFile)
+  {
+    if (maxRecordsPerFile < 1 || maxRecordsPerFile > 999_999)
+      throw new IllegalArgumentException("Records per file must be between 1 and 999999: " + maxRecordsPerFile);
+    this.dir = dir;
+    this.baseName = baseName;
+    this.descriptor = descriptor;
+    this.processingDate = processingDate;
+    this.maxRecordsPerFile = maxRecordsPerFile;
+  }
+
+  /** Appends a debit to the current file, starting a new file first if necessary.
+   * @throws IllegalArgumentException if the request can't be represented in an ABA file (e.g. it isn't in AUD, or
+   * the bank account number is malformed); nothing is written in that case. */
+  void write(DirectDebitPaymentRequest request) throws IOException
+  {
+    long cents = toCents(request);
+    String account = request.bankAccount == null ? null : request.bankAccount.account;
+    checkAccount(account, "Bank account of transfer " + request.transferId);
+
+    if (channel == null || fileRecords >= maxRecordsPerFile || fileDebitCents + cents > MAX_AMOUNT_CENTS)
+    {
+      finishFile();
+      startFile();
+    }
+
+    int start = buf.position();
+    buf.put((byte)'1');
+    putBsb(account);
+    putRight(account, 6, account.length(), 9);
+    putBlank(1); // indicator
+    putNumber(TXN_CODE_DEBIT, 2);
+    putNumber(cents, 10);
+    putLeft(request.bankAccount.name, 32);
+    String transferId = String.valueOf(request.transferId);
+    int referenceStart = buf.position();
+    putReference(transferId);
+    putBsb(descriptor.traceAccount);
+    putRight(descriptor.traceAccount, 6, descriptor.traceAccount.length(), 9);
+    putLeft(descriptor.remitterName, 16);
+    putNumber(0, 8); // withholding tax
+    putRefsLine(referenceStart, transferId);
+    endRecord(start);
+
+    fileRecords++;
+    fileDebitCents += cents;
+    totalRecords++;
+    totalDebitCents += cents;
+  }
+
+  /** Writes the total record of the last file and closes it.
+   * @return Files written, in order. */
+  List<File> finish() throws IOException
+  {
+    finishFile();
+    return Collections.unmodifiableList(files);
+  }
+
+  /** Abandons the file currently being written, if {@link #finish} hasn't been called; files that have already been
+   * completed are left in place. */
+  @Override
+  public void close() throws IOException
+  {
+    if (channel == null)
+      return;
+    closeQuietly(channel);
+    closeQuietly(refsChannel);
+    channel = null;
+    refsChannel = null;
+    buf.clear();
+    refsBuf.clear();
+    Files.deleteIfExists(tmpFile.toPath());
+    Files.deleteIfExists(refsFile(tmpFile).toPath());
+  }
+
+  /** @return Number of detail records written across all files. */
+  long totalRecords()
+  {
+    return totalRecords;
+  }
+
+  /** @return Sum of all debits written across all files, in cents. */
+  long totalDebitCents()
+  {
+    return totalDebitCents;
+  }
+
+  private void startFile() throws IOException
+  {
+    tmpFile = new File(dir, fileName(files.size() + 1) + ".tmp");
+    channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING);
+    refsChannel = FileChannel.open(refsFile(tmpFile).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING);
+    fileRecords = 0;
+    fileDebitCents = 0;
+
+    int start = buf.position();
+    buf.put((byte)'0');
+    putBlank(17);
+    putNumber(1, 2); // reel sequence number
+    putLeft(descriptor.bank, 3);
+    putBlank(7);
+    putLeft(descriptor.userName, 26);
+    putNumber(descriptor.userId, 6);
+    putLeft(descriptor.description, 12);
+    putNumber(processingDate.getDayOfMonth(), 2);
+    putNumber(processingDate.getMonthValue(), 2);
+    putNumber(processingDate.getYear() % 100, 2);
+    putBlank(40);
+    endRecord(start);
+  }
+
+  private void finishFile() throws IOException
+  {
+    if (channel == null)
+      return;
+    int start = buf.position();
+    buf.put((byte)'7');
+    putBsb(TOTAL_BSB);
+    putBlank(12);
+    putNumber(fileDebitCents, 10); // net total
+    putNumber(0, 10); // credit total
+    putNumber(fileDebitCents, 10); // debit total
+    putBlank(24);
+    putNumber(fileRecords, 6);
+    putBlank(40);
+    endRecord(start);
+    flush();
+    flushRefs();
+
+    File finalFile = new File(dir, fileName(files.size() + 1));
+    try
+    {
+      refsChannel.force(true);
+      channel.force(true);
+    }
+    finally
+    {
+      closeQuietly(refsChannel);
+      closeQuietly(channel);
+      channel = null;
+      refsChannel = null;
+    }
+    // The references file is moved into place first, so a completed ABA file always has one.
+    Files.move(refsFile(tmpFile).toPath(), refsFile(finalFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+    Files.move(tmpFile.toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+    files.add(finalFile);
+  }
+
+  private String fileName(int sequence)
+  {
+    return baseName + "-" + String.format("%04d", sequence) + ".aba";
+  }
+
+  /** @return The references file that accompanies an ABA file. */
+  static File refsFile(File abaFile)
+  {
+    return new File(abaFile.getParentFile(), abaFile.getName() + REFS_SUFFIX);
+  }
+
+  /** Appends a line to the references file, copying the lodgement reference from the detail record being written. */
+  private void putRefsLine(int referenceStart, String transferId) throws IOException
+  {
+    for (int i = 0; i < REFERENCE_LENGTH; i++)
+      refsBuf.put(buf.get(referenceStart + i));
+    refsBuf.put((byte)' ');
+    int len = Math.min(transferId.length(), 36);
+    for (int i = 0; i < len; i++)
+      refsBuf.put(ascii(transferId.charAt(i)));
+    for (int i = len; i < 36; i++)
+      refsBuf.put((byte)' ');
+    refsBuf.put((byte)'\n');
+    if (refsBuf.remaining() < REFS_LINE_LENGTH)
+      flushRefs();
+  }
+
+  private void flushRefs() throws IOException
+  {
+    refsBuf.flip();
+    while (refsBuf.hasRemaining())
+      refsChannel.write(refsBuf);
+    refsBuf.clear();
+  }
+
+  private static void closeQuietly(FileChannel channel)
+  {
+    try
+    {
+      if (channel != null)
+        channel.close();
+    }
+    catch (IOException e)
+    {
+      // Either the data has already been forced to disk, or an earlier exception is already being thrown.
+    }
+  }
+
+  private void endRecord(int start) throws IOException
+  {
+    if (buf.position() - start != RECORD_LENGTH)
+      throw new IllegalStateException("ABA record is " + (buf.position() - start) + " characters long");
+    buf.put((byte)'\r').put((byte)'\n');
+    if (buf.remaining() < LINE_LENGTH)
+      flush();
+  }
+
+  private void flush() throws IOException
+  {
+    buf.flip();
+    while (buf.hasRemaining())
+      channel.write(buf);
+    buf.clear();
+  }
+
+  /** Writes text left-justified and blank-filled, truncating it if it's too long. Characters that aren't printable
+   * ASCII are written as blanks. */
+  private void putLeft(String s, int width)
+  {
+    int len = s == null ? 0 : Math.min(s.length(), width);
+    for (int i = 0; i < len; i++)
+      buf.put(ascii(s.charAt(i)));
+    putBlank(width - len);
+  }
+
+  /** Writes {@code s.substring(from, to)} right-justified and blank-filled. */
+  private void putRight(String s, int from, int to, int width)
+  {
+    putBlank(width - (to - from));
+    for (int i = from; i < to; i++)
+      buf.put(ascii(s.charAt(i)));
+  }
+
+  /** Writes the first six characters of an account as a BSB in the form {@code XXX-XXX}. */
+  private void putBsb(String account)
+  {
+    buf.put((byte)account.charAt(0)).put((byte)account.charAt(1)).put((byte)account.charAt(2)).put((byte)'-')
+      .put((byte)account.charAt(3)).put((byte)account.charAt(4)).put((byte)account.charAt(5));
+  }
+
+  /** Writes the first {@link #REFERENCE_LENGTH} characters of a transfer ID, ignoring any hyphens. */
+  private void putReference(String transferId)
+  {
+    int written = 0;
+    for (int i = 0; i < transferId.length() && written < REFERENCE_LENGTH; i++)
+    {
+      char c = transferId.charAt(i);
+      if (c == '-')
+        continue;
+      buf.put(ascii(c));
+      written++;
+    }
+    putBlank(REFERENCE_LENGTH - written);
+  }
+
+  /** Writes a non-negative number right-justified and zero-filled. */
+  private void putNumber(long value, int width)
+  {
+    int end = buf.position() + width;
+    for (int i = end - 1; i >= end - width; i--)
+    {
+      buf.put(i, (byte)('0' + value % 10));
+      value /= 10;
+    }
+    if (value != 0)
+      throw new IllegalArgumentException("Value is too large for a " + width + "-digit ABA field");
+    buf.position(end);
+  }
+
+  private void putBlank(int width)
+  {
+    for (int i = 0; i < width; i++)
+      buf.put((byte)' ');
+  }
+
+  private static byte ascii(char c)
+  {
+    return c >= 0x20 && c < 0x7f ? (byte)c : (byte)' ';
+  }
+
+  private static long toCents(DirectDebitPaymentRequest request)
+  {
+    if (request.currency != null && !"AUD".equals(request.currency.toString()))
+      throw new IllegalArgumentException("Transfer " + request.transferId + " is not in AUD: " + request.currency);
+    BigDecimal amount = request.amount;
+    if (amount == null || amount.signum() <= 0)
+      throw new IllegalArgumentException("Transfer " + request.transferId + " must have a positive amount");
+    long cents;
+    try
+    {
+      cents = amount.movePointRight(2).longValueExact();
+    }
+    catch (ArithmeticException e)
+    {
+      throw new IllegalArgumentException("Transfer " + request.transferId + " has an invalid amount: " + amount);
+    }
+    if (cents > MAX_AMOUNT_CENTS)
+      throw new IllegalArgumentException("Transfer " + request.transferId + " exceeds the ABA amount limit: " + amount);
+    return cents;
+  }
+
+  /** Checks that an account is a 6-digit BSB followed by an account number of up to 9 characters. */
+  private static void checkAccount(String account, String what)
+  {
+    if (account == null || account.length() < 7 || account.length() > 15)
+      throw new IllegalArgumentException(what + " must be a BSB followed by an account number of up to 9 digits");
+    for (int i = 0; i < account.length(); i++)
+    {
+      char c = account.charAt(i);
+      if (c < '0' || c > '9')
+        throw new IllegalArgumentException(what + " must contain only digits");
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/** Reads the return (dishonour) records of an ABA-style return file one at a time, using memory-mapped I/O.
+ *
+ * <p>Return files follow the ABA layout, with each returned debit as a type 2 record: the same as the original
+ * detail record, except that the indicator column holds the return reason code and the last eight columns hold the
+ * original processing day and APCA user ID. Descriptive and total records, and any other lines, are skipped.
+ * Lines may be terminated by CRLF or LF.</p>
+ *
+ * <p>The file is mapped in windows of {@link #WINDOW_SIZE} bytes, so files of any size can be read without loading
+ * them into memory. Reading can start at any line boundary, which allows processing to resume from a checkpoint.</p> */
+class AbaReturnReader implements Closeable
+{
+  private static final int WINDOW_SIZE = 8 << 20;
+
+  /** A returned debit. */
+  static class Return
+  {
+    /** Lodgement reference of the original debit, without trailing blanks. */
+    String reference;
+    /** Return reason code. */
+    char returnCode;
+    long amountCents;
+    /** Offset in the file of the line containing this record. */
+    long offset;
+    /** Transfer ID of the original debit, once it has been matched. */
+    String transferId;
+  }
+
+  private final FileChannel channel;
+  private final long size;
+  private final byte[] line = new byte[AbaFileWriter.RECORD_LENGTH];
+
+  private MappedByteBuffer window;
+  private long windowStart;
+  /** Offset in the file of the first byte that hasn't been read yet. */
+  private long offset;
+
+  /** @param file Return file to read.
+   * @param startOffset Offset at which to start reading; must be 0 or the start of a line. */
+  AbaReturnReader(File file, long startOffset) throws IOException
+  {
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.size = channel.size();
+    this.offset = Math.min(startOffset, size);
+  }
+
+  /** @return The next return record, or {@code null} at the end of the file. A final line without a line terminator
+   * is treated as complete. */
+  Return next() throws IOException
+  {
+    while (offset < size)
+    {
+      long lineStart = offset;
+      int length = readLine();
+      if (length < 1 || line[0] != '2')
+        continue;
+      if (length < 80)
+        throw new IOException("Truncated return record at offset " + lineStart + " (" + length + " characters)");
+      Return r = new Return();
+      r.returnCode = (char)line[17];
+      r.amountCents = parseNumber(20, 30, lineStart);
+      int end = 80;
+      while (end > 62 && line[end - 1] == ' ')
+        end--;
+      r.reference = new String(line, 62, end - 62, StandardCharsets.US_ASCII);
+      r.offset = lineStart;
+      return r;
+    }
+    return null;
+  }
+
+  /** @return Offset of the first line that hasn't been returned by {@link #next} yet. */
+  long offset()
+  {
+    return offset;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    channel.close();
+  }
+
+  /** Reads the line starting at {@link #offset} into {@link #line} (ignoring characters beyond the record length and
+   * the line terminator), and advances past it.
+   * @return Number of characters stored in {@link #line}. */
+  private int readLine() throws IOException
+  {
+    int length = 0;
+    while (offset < size)
+    {
+      if (window == null || offset >= windowStart + window.limit())
+        map(offset);
+      byte b = window.get((int)(offset - windowStart));
+      offset++;
+      if (b == '\n')
+        break;
+      if (b != '\r' && length < line.length)
+        line[length++] = b;
+    }
+    return length;
+  }
+
+  private void map(long position) throws IOException
+  {
+    windowStart = position;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+  }
+
+  private long parseNumber(int from, int to, long lineStart) throws IOException
+  {
+    long value = 0;
+    for (int i = from; i < to; i++)
+    {
+      byte b = line[i];
+      if (b < '0' || b > '9')
+        throw new IOException("Invalid amount in return record at offset " + lineStart);
+      value = value * 10 + (b - '0');
+    }
+    return value;
+  }
+}
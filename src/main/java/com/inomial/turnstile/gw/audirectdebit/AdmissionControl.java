@@ -0,0 +1,205 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.core.Response;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/** Per-tenant and per-end-user rate limiting of web form requests, so that one tenant's portal can't use up the
+ * gateway for everyone else.
+ *
+ * <p>Each tenant, and each end-user IP address within a tenant, has a token bucket: a request takes a token, and
+ * tokens are added back at a steady rate up to a burst limit. Buckets are refilled lazily when they're next used.
+ * Rates and bursts come from the tenant's gateway {@link RSAUDirectDebit.Config}; because requests are admitted
+ * before the configuration is unmarshalled, each bucket remembers the limits from the tenant's most recent request
+ * (see {@link #configure}), and uses the defaults below until it has seen one. A rate of zero means no limit.</p>
+ *
+ * <p>Buckets are kept in fixed-size tables of {@code ADMISSION_TENANT_BUCKETS} and {@code ADMISSION_IP_BUCKETS}
+ * entries, so memory use doesn't grow with the number of tenants or end-users. Each key can only live in one small
+ * set of entries; when a set is full, the least recently used bucket is dropped, and if that key is seen again it
+ * starts with a full bucket. Sets are locked in stripes, so requests for different tenants rarely contend.</p> */
+class AdmissionControl
+{
+  /** Default sustained web form requests per second for a tenant. */
+  static final double DEFAULT_TENANT_RATE =
+    Double.parseDouble(System.getenv().getOrDefault("ADMISSION_TENANT_RATE_PER_SEC", "50"));
+  /** Default number of web form requests a tenant may make at once above its rate. */
+  static final int DEFAULT_TENANT_BURST =
+    Integer.parseInt(System.getenv().getOrDefault("ADMISSION_TENANT_BURST", "100"));
+  /** Default sustained web form requests per second from one end-user IP address; off by default. */
+  static final double DEFAULT_IP_RATE =
+    Double.parseDouble(System.getenv().getOrDefault("ADMISSION_IP_RATE_PER_SEC", "0"));
+  /** Default number of web form requests from one end-user IP address at once above its rate. */
+  static final int DEFAULT_IP_BURST =
+    Integer.parseInt(System.getenv().getOrDefault("ADMISSION_IP_BURST", "20"));
+
+  private final TokenBuckets tenants =
+    new TokenBuckets(Integer.parseInt(System.getenv().getOrDefault("ADMISSION_TENANT_BUCKETS", "4096")));
+  private final TokenBuckets addresses =
+    new TokenBuckets(Integer.parseInt(System.getenv().getOrDefault("ADMISSION_IP_BUCKETS", "65536")));
+
+  /** Rejection of a request by admission control, with a {@code Retry-After} header. It has no stack trace, since it
+   * may be thrown at a high rate and the trace says nothing useful. */
+  static class RateLimitedException extends ClientErrorException
+  {
+    private static final long serialVersionUID = 1L;
+
+    RateLimitedException(String message, long retryAfterNanos)
+    {
+      super(message, Response.status(429)
+        .header("Retry-After", Math.max(1, (retryAfterNanos + 999_999_999) / 1_000_000_000))
+        .build());
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+      return this;
+    }
+  }
+
+  /** Takes a token for a web form request from the tenant's bucket and the end-user's bucket.
+   * @param endUserIpAddress End-user's address, or {@code null} if unknown.
+   * @throws RateLimitedException (HTTP 429) if either bucket is empty. */
+  void admit(int tid, InetAddress endUserIpAddress)
+  {
+    long now = System.nanoTime();
+    long wait = tenants.take(tid, DEFAULT_TENANT_RATE, DEFAULT_TENANT_BURST, now);
+    if (wait > 0)
+      throw new RateLimitedException("Too many web form requests for tenant " + tid + "; please retry later.", wait);
+    if (endUserIpAddress != null)
+    {
+      wait = addresses.take(addressKey(tid, endUserIpAddress), DEFAULT_IP_RATE, DEFAULT_IP_BURST, now);
+      if (wait > 0)
+        throw new RateLimitedException("Too many web form requests from " + endUserIpAddress.getHostAddress()
+          + "; please retry later.", wait);
+    }
+  }
+
+  /** Updates a tenant's limits from its gateway configuration, for its following requests. */
+  void configure(int tid, InetAddress endUserIpAddress, RSAUDirectDebit.Config config)
+  {
+    long now = System.nanoTime();
+    tenants.setLimits(tid, config.webFormRatePerSec, config.webFormBurst, now);
+    if (endUserIpAddress != null)
+    {
+      addresses.setLimits(addressKey(tid, endUserIpAddress), config.webFormRatePerSecPerIp,
+        config.webFormBurstPerIp, now);
+    }
+  }
+
+  /** @return Key for an address within a tenant; exact for IPv4, and a 32-bit hash of IPv6 addresses. */
+  private static long addressKey(int tid, InetAddress address)
+  {
+    int a;
+    if (address instanceof Inet4Address)
+    {
+      byte[] b = address.getAddress();
+      a = (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+    }
+    else
+    {
+      a = Arrays.hashCode(address.getAddress());
+    }
+    return (long)tid << 32 | (a & 0xffffffffL);
+  }
+
+  /** Fixed-size, set-associative table of token buckets keyed by {@code long}. */
+  static class TokenBuckets
+  {
+    private static final int WAYS = 8;
+    private static final int STRIPES = 64;
+
+    private final int setMask;
+    private final Object[] locks = new Object[STRIPES];
+
+    // Guarded by the lock of each entry's set. An entry is in use if its lastNanos isn't 0.
+    private final long[] keys;
+    private final long[] lastNanos;
+    private final double[] tokens;
+    private final double[] ratePerNano;
+    private final double[] burst;
+
+    /** @param entries Number of buckets; rounded up to a power of two, and at least one set. */
+    TokenBuckets(int entries)
+    {
+      int sets = Integer.highestOneBit(Math.max(1, (entries + WAYS - 1) / WAYS - 1) << 1);
+      this.setMask = sets - 1;
+      int size = sets * WAYS;
+      keys = new long[size];
+      lastNanos = new long[size];
+      tokens = new double[size];
+      ratePerNano = new double[size];
+      burst = new double[size];
+      for (int i = 0; i < STRIPES; i++)
+        locks[i] = new Object();
+    }
+
+    /** Takes a token from a bucket, creating a full one with the given limits if there's none for the key.
+     * @return 0 if a token was taken; otherwise the number of nanoseconds until one will be available. */
+    long take(long key, double defaultRatePerSec, double defaultBurst, long now)
+    {
+      int set = set(key);
+      synchronized (locks[set & (STRIPES - 1)])
+      {
+        int e = entry(set, key, defaultRatePerSec, defaultBurst, now);
+        if (ratePerNano[e] <= 0)
+          return 0;
+        double t = Math.min(burst[e], tokens[e] + (now - lastNanos[e]) * ratePerNano[e]);
+        lastNanos[e] = nonZero(now);
+        if (t >= 1)
+        {
+          tokens[e] = t - 1;
+          return 0;
+        }
+        tokens[e] = t;
+        return Math.max(1, (long)((1 - t) / ratePerNano[e]));
+      }
+    }
+
+    /** Sets the limits of a bucket, creating a full one if there's none for the key. */
+    void setLimits(long key, double ratePerSec, double newBurst, long now)
+    {
+      int set = set(key);
+      synchronized (locks[set & (STRIPES - 1)])
+      {
+        int e = entry(set, key, ratePerSec, newBurst, now);
+        ratePerNano[e] = ratePerSec / 1e9;
+        burst[e] = newBurst;
+        tokens[e] = Math.min(tokens[e], newBurst);
+      }
+    }
+
+    private int set(long key)
+    {
+      long h = key * 0x9e3779b97f4a7c15L;
+      return (int)(h ^ h >>> 32) & setMask;
+    }
+
+    /** @return Entry for a key, replacing the least recently used entry of its set if it has none. */
+    private int entry(int set, long key, double ratePerSec, double newBurst, long now)
+    {
+      int first = set * WAYS;
+      int victim = first;
+      for (int e = first; e < first + WAYS; e++)
+      {
+        if (lastNanos[e] != 0 && keys[e] == key)
+          return e;
+        if (lastNanos[e] == 0 || (lastNanos[victim] != 0 && lastNanos[e] - lastNanos[victim] < 0))
+          victim = e;
+      }
+      keys[victim] = key;
+      lastNanos[victim] = nonZero(now);
+      ratePerNano[victim] = ratePerSec / 1e9;
+      burst[victim] = newBurst;
+      tokens[victim] = newBurst;
+      return victim;
+    }
+
+    private static long nonZero(long nanos)
+    {
+      return nanos == 0 ? 1 : nanos;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.secore.kafka.KafkaMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Sends batches of messages to a {@link MessageSink}, waiting for the broker to acknowledge each batch and retrying
+ * the whole batch with backoff if it can't be sent.
+ *
+ * <p>Delivery is at-least-once: a batch that is retried may re-send messages that the broker had already
+ * accepted, so consumers must de-duplicate on the message key.</p> */
+class BatchSender
+{
+  private static final Logger log = Logger.getLogger(BatchSender.class.getName());
+
+  /** Maximum time to wait for the broker to acknowledge a batch before treating it as failed. */
+  private static final long ACK_TIMEOUT_MS =
+    Long.parseLong(System.getenv().getOrDefault("PAYMENT_ACK_TIMEOUT_MS", "30000"));
+
+  private static final long MAX_RETRY_BACKOFF_MS = 10_000;
+
+  /** A message waiting to be sent. */
+  static class Pending
+  {
+    final String key;
+    final KafkaMessage message;
+
+    Pending(String key, KafkaMessage message)
+    {
+      this.key = key;
+      this.message = message;
+    }
+  }
+
+  private final String topic;
+  private final MessageSink sink;
+  private final PaymentRequestQueue.Stats stats;
+
+  BatchSender(String topic, MessageSink sink, PaymentRequestQueue.Stats stats)
+  {
+    this.topic = topic;
+    this.sink = sink;
+    this.stats = stats;
+  }
+
+  /** Sends a batch, blocking until the broker has acknowledged every message in it.
+   * @throws InterruptedException if interrupted while sending or waiting to retry; the batch may have been
+   * partially sent. */
+  void sendWithRetry(List<Pending> batch) throws InterruptedException
+  {
+    long backoffMs = 100;
+    while (true)
+    {
+      long start = System.nanoTime();
+      try
+      {
+        send(batch);
+        recordBatch(batch.size(), System.nanoTime() - start);
+        return;
+      }
+      catch (ExecutionException | TimeoutException | RuntimeException e)
+      {
+        stats.failedAttempts.incrementAndGet();
+        log.log(Level.WARNING, "Unable to send batch of " + batch.size() + " message(s) to " + topic
+          + "; retrying in " + backoffMs + "ms", e);
+        Thread.sleep(backoffMs);
+        backoffMs = Math.min(backoffMs * 2, MAX_RETRY_BACKOFF_MS);
+      }
+    }
+  }
+
+  private void send(List<Pending> batch) throws InterruptedException, ExecutionException, TimeoutException
+  {
+    List<Future<?>> acks = new ArrayList<>(batch.size());
+    for (Pending p : batch)
+      acks.add(sink.send(topic, p.key, p.message));
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MS);
+    for (Future<?> ack : acks)
+    {
+      if (ack != null)
+        ack.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void recordBatch(int size, long nanos)
+  {
+    stats.batches.incrementAndGet();
+    stats.messagesSent.addAndGet(size);
+    stats.batchNanosTotal.addAndGet(nanos);
+    stats.batchNanosMax.accumulateAndGet(nanos, Math::max);
+  }
+}
@@ -0,0 +1,227 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Directory of Australian bank-state-branch (BSB) numbers, loaded from the APCA BSB directory file.
+ *
+ * <p>The directory is held as an immutable {@link Entries} snapshot: a sorted {@code int[]} of BSB numbers, searched
+ * by binary search, with the institution code and branch name of each BSB at the same index in parallel arrays.
+ * Looking up a BSB parses it in place and allocates nothing. Institution codes are shared between entries, so the
+ * directory needs well under a megabyte.</p>
+ *
+ * <p>The file is re-read whenever a {@link FileChangeMonitor} reports that it has changed, and the new snapshot
+ * replaces the old one with a single volatile write, so lookups are never blocked by a reload. If the new file can't
+ * be read, the previous snapshot stays in use.</p>
+ *
+ * <p>The file is expected in APCA's CSV format, with the BSB (as {@code NNN-NNN}) in the first column, the
+ * institution code in the second and the branch name in the third. Lines that don't start with a BSB, such as
+ * headings, are skipped.</p> */
+class BsbDirectory
+{
+  private static final Logger log = Logger.getLogger(BsbDirectory.class.getName());
+
+  /** Immutable snapshot of the directory. */
+  static class Entries
+  {
+    private final int[] bsbs;
+    private final String[] institutions;
+    private final String[] branches;
+
+    private Entries(int[] bsbs, String[] institutions, String[] branches)
+    {
+      this.bsbs = bsbs;
+      this.institutions = institutions;
+      this.branches = branches;
+    }
+
+    /** @param bsb BSB number, as six digits with an optional hyphen after the third.
+     * @return Index of the BSB in this snapshot, or -1 if it's malformed or not in the directory. */
+    int find(CharSequence bsb)
+    {
+      int key = parseBsb(bsb);
+      if (key < 0)
+        return -1;
+      int index = Arrays.binarySearch(bsbs, key);
+      return index < 0 ? -1 : index;
+    }
+
+    /** @return Institution code (e.g. "CBA") of the BSB at {@code index}. */
+    String institution(int index)
+    {
+      return institutions[index];
+    }
+
+    /** @return Branch name of the BSB at {@code index}. */
+    String branch(int index)
+    {
+      return branches[index];
+    }
+
+    int size()
+    {
+      return bsbs.length;
+    }
+  }
+
+  private final File file;
+  private volatile Entries entries;
+
+  private BsbDirectory(File file)
+  {
+    this.file = file;
+  }
+
+  /** Loads the directory file named by {@code BSB_DIRECTORY_FILE} and watches it for changes.
+   * @return The directory, or {@code null} if {@code BSB_DIRECTORY_FILE} isn't set (in which case BSBs aren't
+   * checked).
+   * @throws UncheckedIOException if the file can't be loaded. */
+  static BsbDirectory fromEnvironment()
+  {
+    String path = System.getenv("BSB_DIRECTORY_FILE");
+    if (path == null || path.isEmpty())
+      return null;
+    BsbDirectory directory = new BsbDirectory(new File(path));
+    Object fingerprint = FileChangeMonitor.fingerprint(directory.file);
+    directory.reload();
+    FileChangeMonitor.watch(directory.file, fingerprint, directory::reloadQuietly);
+    return directory;
+  }
+
+  /** @return The current snapshot; callers should use the same snapshot for a lookup and reading its result. */
+  Entries entries()
+  {
+    return entries;
+  }
+
+  private void reload()
+  {
+    try
+    {
+      Entries loaded = load(file);
+      entries = loaded;
+      log.info("Loaded " + loaded.size() + " BSB(s) from " + file);
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException("Unable to load BSB directory " + file, e);
+    }
+  }
+
+  private void reloadQuietly()
+  {
+    try
+    {
+      reload();
+    }
+    catch (UncheckedIOException | IllegalArgumentException e)
+    {
+      log.log(Level.WARNING, "Unable to reload BSB directory; continuing to use existing entries", e);
+    }
+  }
+
+  static Entries load(File file) throws IOException
+  {
+    // Sort by BSB, keeping the last entry for any BSB that appears more than once.
+    Map<Integer, String[]> byBsb = new HashMap<>();
+    Map<String, String> institutionCodes = new HashMap<>();
+    try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.ISO_8859_1))
+    {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        List<String> fields = splitCsv(line);
+        if (fields.size() < 3)
+          continue;
+        int bsb = parseBsb(fields.get(0));
+        if (bsb < 0)
+          continue;
+        String institution = institutionCodes.computeIfAbsent(fields.get(1).trim(), k -> k);
+        byBsb.put(bsb, new String[] { institution, fields.get(2).trim() });
+      }
+    }
+    if (byBsb.isEmpty())
+      throw new IllegalArgumentException("BSB directory " + file + " contains no BSBs");
+
+    int[] bsbs = byBsb.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    String[] institutions = new String[bsbs.length];
+    String[] branches = new String[bsbs.length];
+    for (int i = 0; i < bsbs.length; i++)
+    {
+      String[] entry = byBsb.get(bsbs[i]);
+      institutions[i] = entry[0];
+      branches[i] = entry[1];
+    }
+    return new Entries(bsbs, institutions, branches);
+  }
+
+  /** @return The BSB as a number, or -1 unless it's six digits with an optional hyphen after the third. */
+  static int parseBsb(CharSequence bsb)
+  {
+    int len = bsb.length();
+    if (len != 6 && !(len == 7 && bsb.charAt(3) == '-'))
+      return -1;
+    int value = 0;
+    for (int i = 0; i < len; i++)
+    {
+      char c = bsb.charAt(i);
+      if (i == 3 && len == 7)
+        continue;
+      if (c < '0' || c > '9')
+        return -1;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /** @return The BSB as six digits, without the hyphen it may have been entered with; or the BSB unchanged if it's
+   * {@code null} or not in either form, for the account checks downstream to reject. */
+  static String normalise(String bsb)
+  {
+    if (bsb == null || bsb.length() != 7 || parseBsb(bsb) < 0)
+      return bsb;
+    return bsb.substring(0, 3) + bsb.substring(4);
+  }
+
+  /** Splits a CSV line into fields, removing the quotes around quoted fields. */
+  private static List<String> splitCsv(String line)
+  {
+    List<String> fields = new ArrayList<>(8);
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++)
+    {
+      char c = line.charAt(i);
+      if (c == '"')
+      {
+        if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"')
+        {
+          field.append('"');
+          i++;
+        }
+        else
+          quoted = !quoted;
+      }
+      else if (c == ',' && !quoted)
+      {
+        fields.add(field.toString());
+        field.setLength(0);
+      }
+      else
+        field.append(c);
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+}
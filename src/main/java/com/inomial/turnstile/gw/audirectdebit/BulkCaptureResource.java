@@ -0,0 +1,402 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.inomial.secore.scope.RequestScope;
+import com.inomial.turnstile.api.status.CaptureStatus;
+import com.inomial.turnstile.gw.audirectdebit.GatewayMetrics.Operation;
+import com.inomial.turnstile.gw.spi.CaptureQueryRequest;
+import com.inomial.turnstile.gw.spi.CaptureResult;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/** Tokenises bank accounts in bulk, for migrating customers from another biller.
+ *
+ * <p>The request is a JSON object whose {@code config} is the gateway configuration, as sent with every gateway
+ * request, followed by {@code records}: an array of objects with {@code accountId}, {@code paymentMethodId},
+ * {@code name}, {@code bsb}, {@code account} and an optional {@code reference} that is echoed back. {@code config} must
+ * come before {@code records}. The response is a JSON array with one element per record, in the same order, holding
+ * its {@code index}, {@code reference}, IDs and either {@code status} {@code ACCEPTED} with the {@code token},
+ * {@code hint} and {@code key} that {@code queryCardCapture} would have returned for the same account, or
+ * {@code INVALID_REQUEST} with a {@code message}.</p>
+ *
+ * <p>There's no web form, so there's no HMAC to verify; instead the caller must have the {@code turnstile} role. The
+ * configuration is resolved and the BSB directory read once per batch. Records are read, tokenised and written as a
+ * stream: they're handed out in chunks of {@code BULK_CAPTURE_CHUNK} records to a pool of
+ * {@code BULK_CAPTURE_THREADS} threads (default one per core), with at most two chunks per thread in progress per
+ * batch, and results are written and flushed as each chunk finishes in order. Memory use is therefore the same
+ * whatever the size of the batch. At most {@code BULK_CAPTURE_MAX_BATCHES} batches run at once; more are turned away
+ * with 503.</p>
+ *
+ * <p>If the request body turns out to be malformed part way through, the results so far are followed by a final
+ * element with {@code status} {@code INVALID_REQUEST} and a {@code message}, since the response status has already
+ * been sent.</p> */
+@Path("/bulk-capture")
+public class BulkCaptureResource
+{
+  private static final Logger log = Logger.getLogger(BulkCaptureResource.class.getName());
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final int THREADS = Integer.parseInt(System.getenv().getOrDefault("BULK_CAPTURE_THREADS",
+    String.valueOf(Runtime.getRuntime().availableProcessors())));
+  private static final int CHUNK =
+    Integer.parseInt(System.getenv().getOrDefault("BULK_CAPTURE_CHUNK", "256"));
+  private static final int IN_FLIGHT = 2 * THREADS;
+
+  /** Role that callers must have. */
+  static final String ROLE = "turnstile";
+
+  private static final Semaphore batches =
+    new Semaphore(Integer.parseInt(System.getenv().getOrDefault("BULK_CAPTURE_MAX_BATCHES", "2")));
+
+  private static final String BUSY = "Too many bulk captures are in progress; please retry later.";
+
+  private static final ExecutorService workers;
+  static
+  {
+    AtomicInteger threadNumber = new AtomicInteger();
+    // The queue is bounded in practice by IN_FLIGHT chunks per batch.
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(), r ->
+      {
+        Thread t = new Thread(r, "bulk-capture-" + threadNumber.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    pool.allowCoreThreadTimeOut(true);
+    workers = pool;
+  }
+
+  @Context
+  private HttpServletRequest httpServletRequest;
+
+  /** One bank account to be tokenised. */
+  @JsonIgnoreProperties(ignoreUnknown=true)
+  static class Record
+  {
+    public String reference;
+    public UUID accountId;
+    public UUID paymentMethodId;
+    public String name;
+    public String bsb;
+    public String account;
+  }
+
+  /** Consecutive records of a batch, along with their results once processed. */
+  private static class Chunk
+  {
+    final long firstIndex;
+    final Record[] records;
+    final CaptureResult[] results;
+    final String[] messages;
+    /** Why the records after these couldn't be read, or {@code null}. */
+    final String malformed;
+
+    Chunk(long firstIndex, Record[] records, String malformed)
+    {
+      this.firstIndex = firstIndex;
+      this.records = records;
+      this.malformed = malformed;
+      this.results = new CaptureResult[records.length];
+      this.messages = new String[records.length];
+    }
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public StreamingOutput capture(InputStream body) throws IOException
+  {
+    HttpServletRequest request = httpServletRequest;
+    if (request == null || !request.isUserInRole(ROLE))
+      throw new ForbiddenException("Bulk capture requires the " + ROLE + " role");
+    int tid = RequestScope.enterScope(request, RequestScope::getTid);
+
+    JsonParser parser = objectMapper.getFactory().createParser(body);
+    RSAUDirectDebit.Config config;
+    try
+    {
+      config = readConfig(parser);
+    }
+    catch (JsonProcessingException e)
+    {
+      parser.close();
+      throw new BadRequestException("Malformed bulk capture request: " + e.getOriginalMessage());
+    }
+    catch (IOException | RuntimeException e)
+    {
+      parser.close();
+      throw e;
+    }
+    // Turn the batch away now if there's obviously no room for it. The permit itself is only taken once the response
+    // is being written, so that it can't be lost if the StreamingOutput is never called (if the client has gone, say).
+    if (batches.availablePermits() == 0)
+    {
+      parser.close();
+      throw new ServiceUnavailableException(BUSY);
+    }
+    return out ->
+    {
+      if (!batches.tryAcquire())
+      {
+        // Nothing has been written yet, so this can still be sent as a 503.
+        parser.close();
+        throw new ServiceUnavailableException(BUSY);
+      }
+      GatewayMetrics.Timer timer = GatewayMetrics.start(Operation.BULK_CAPTURE);
+      try
+      {
+        long[] counts = stream(parser, config, out);
+        RequestLog.info(log, "Bulk capture for tid={0}: {1} account(s), {2} rejected", tid, counts[0], counts[1]);
+        timer.finish("SUCCESS");
+      }
+      catch (IOException | RuntimeException e)
+      {
+        timer.fail(e);
+        throw e;
+      }
+      finally
+      {
+        batches.release();
+        parser.close();
+      }
+    };
+  }
+
+  /** Reads the request up to the start of {@code records}, and resolves the configuration that precedes it.
+   * @throws BadRequestException if the request isn't in the expected form. */
+  private static RSAUDirectDebit.Config readConfig(JsonParser parser) throws IOException
+  {
+    if (parser.nextToken() != JsonToken.START_OBJECT)
+      throw new BadRequestException("Bulk capture request must be a JSON object");
+    ObjectNode configRequest = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME)
+    {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if ("records".equals(field))
+      {
+        if (configRequest == null)
+          throw new BadRequestException("config must come before records");
+        if (value != JsonToken.START_ARRAY)
+          throw new BadRequestException("records must be an array");
+        // Goes through the same cache as the other gateway methods, keyed by the raw configuration.
+        CaptureQueryRequest gatewayRequest = objectMapper.treeToValue(configRequest, CaptureQueryRequest.class);
+        return RSAUDirectDebit.configCache.get(gatewayRequest);
+      }
+      if ("config".equals(field))
+      {
+        configRequest = objectMapper.createObjectNode();
+        configRequest.set("config", objectMapper.readTree(parser));
+      }
+      else
+      {
+        parser.skipChildren();
+      }
+    }
+    throw new BadRequestException("Bulk capture request has no records");
+  }
+
+  /** Tokenises the records that the parser is positioned at, writing the results as they're ready.
+   * @return The number of records read and the number of those that were rejected. */
+  private static long[] stream(JsonParser parser, RSAUDirectDebit.Config config, OutputStream out) throws IOException
+  {
+    // Read once per batch, so that a reload part way through doesn't give inconsistent results.
+    BsbDirectory.Entries bsbs = RSAUDirectDebit.bsbDirectory == null ? null : RSAUDirectDebit.bsbDirectory.entries();
+    String key = String.valueOf(config.institution);
+
+    long[] counts = new long[2];
+    ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+    JsonGenerator json = objectMapper.getFactory().createGenerator(out)
+      .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    json.writeStartArray();
+    try
+    {
+      long index = 0;
+      while (true)
+      {
+        Chunk chunk = readChunk(parser, index);
+        if (chunk.records.length > 0)
+        {
+          if (pending.size() >= IN_FLIGHT)
+            write(json, await(pending.poll()), key, counts);
+          pending.add(workers.submit(() -> tokenise(chunk, bsbs, config.hintShowsBranch)));
+          index += chunk.records.length;
+        }
+        if (chunk.malformed != null)
+        {
+          // The results so far have been sent, so report the problem as the last element.
+          while (!pending.isEmpty())
+            write(json, await(pending.poll()), key, counts);
+          json.writeStartObject();
+          json.writeNumberField("index", index);
+          json.writeStringField("status", CaptureStatus.INVALID_REQUEST.name());
+          json.writeStringField("message", "Malformed bulk capture request: " + chunk.malformed);
+          json.writeEndObject();
+          counts[1]++;
+          break;
+        }
+        if (chunk.records.length < CHUNK)
+          break;
+      }
+      while (!pending.isEmpty())
+        write(json, await(pending.poll()), key, counts);
+      json.writeEndArray();
+      json.flush();
+      return counts;
+    }
+    finally
+    {
+      for (Future<Chunk> f : pending)
+        f.cancel(false);
+      json.close();
+    }
+  }
+
+  /** Reads up to {@code BULK_CAPTURE_CHUNK} records; fewer at the end of the array, or if the request is malformed
+   * (in which case the chunk holds the records before the problem, and a description of it). */
+  private static Chunk readChunk(JsonParser parser, long firstIndex)
+  {
+    Record[] records = new Record[CHUNK];
+    int n = 0;
+    String malformed = null;
+    try
+    {
+      JsonToken token;
+      while (n < CHUNK && (token = parser.nextToken()) != JsonToken.END_ARRAY)
+      {
+        if (token != JsonToken.START_OBJECT)
+          throw new BadRequestException("records must contain objects");
+        records[n++] = objectMapper.readValue(parser, Record.class);
+      }
+    }
+    catch (IOException | RuntimeException e)
+    {
+      malformed = e.getMessage();
+    }
+    if (n < CHUNK)
+    {
+      Record[] shorter = new Record[n];
+      System.arraycopy(records, 0, shorter, 0, n);
+      records = shorter;
+    }
+    return new Chunk(firstIndex, records, malformed);
+  }
+
+  /** Validates and tokenises each record of a chunk, as queryCardCapture does once the HMAC has been verified. */
+  private static Chunk tokenise(Chunk chunk, BsbDirectory.Entries bsbs, boolean hintShowsBranch)
+  {
+    for (int i = 0; i < chunk.records.length; i++)
+    {
+      Record r = chunk.records[i];
+      if (r.bsb == null || r.account == null)
+      {
+        chunk.messages[i] = "bsb and account are required";
+        continue;
+      }
+      String branchHint = "";
+      if (bsbs != null)
+      {
+        int entry = bsbs.find(r.bsb);
+        if (entry < 0)
+        {
+          chunk.messages[i] = "Unknown BSB: " + r.bsb;
+          continue;
+        }
+        if (hintShowsBranch)
+          branchHint = " (" + bsbs.institution(entry) + " " + bsbs.branch(entry) + ")";
+      }
+      try
+      {
+        CaptureResult result = new CaptureResult();
+        CaptureToken.fill(result, r.name, BsbDirectory.normalise(r.bsb), r.account, branchHint);
+        chunk.results[i] = result;
+      }
+      catch (IllegalArgumentException e)
+      {
+        chunk.messages[i] = e.getMessage();
+      }
+    }
+    return chunk;
+  }
+
+  private static Chunk await(Future<Chunk> chunk) throws IOException
+  {
+    try
+    {
+      return chunk.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while tokenising bulk capture", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new IOException("Unable to tokenise bulk capture", e.getCause());
+    }
+  }
+
+  private static void write(JsonGenerator json, Chunk chunk, String key, long[] counts) throws IOException
+  {
+    for (int i = 0; i < chunk.records.length; i++)
+    {
+      Record r = chunk.records[i];
+      CaptureResult result = chunk.results[i];
+      json.writeStartObject();
+      json.writeNumberField("index", chunk.firstIndex + i);
+      if (r.reference != null)
+        json.writeStringField("reference", r.reference);
+      if (r.accountId != null)
+        json.writeStringField("accountId", r.accountId.toString());
+      if (r.paymentMethodId != null)
+        json.writeStringField("paymentMethodId", r.paymentMethodId.toString());
+      if (result != null)
+      {
+        json.writeStringField("status", CaptureStatus.ACCEPTED.name());
+        json.writeStringField("token", result.token);
+        json.writeStringField("hint", result.hint);
+        json.writeStringField("key", key);
+      }
+      else
+      {
+        json.writeStringField("status", CaptureStatus.INVALID_REQUEST.name());
+        json.writeStringField("message", chunk.messages[i]);
+        counts[1]++;
+      }
+      json.writeEndObject();
+      counts[0]++;
+    }
+    json.flush();
+  }
+}
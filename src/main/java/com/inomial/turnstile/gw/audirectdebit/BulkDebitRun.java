@@ -0,0 +1,96 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.inomial.cim.turnstile.DirectDebitPaymentRequest;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.logging.Logger;
+
+/** Bulk debit mode: converts a stream of direct debit payment requests into ABA files for upload to the bank.
+ *
+ * <p>Run as {@code Main aba <input> <output-dir> [<processing-date>]}, where the input file (or {@code -} for standard
+ * input) contains one JSON {@link DirectDebitPaymentRequest} per line and the processing date is in ISO format
+ * (defaulting to today). Requests are read and written one at a time, so a run of any size is processed in constant
+ * memory. Requests that can't be represented in an ABA file are logged and skipped.</p>
+ *
+ * <p>The debit user's details are taken from the {@code ABA_*} environment variables below.</p> */
+class BulkDebitRun
+{
+  private static final Logger log = Logger.getLogger(BulkDebitRun.class.getName());
+
+  private static final ObjectReader requestReader =
+    new ObjectMapper().readerFor(DirectDebitPaymentRequest.class);
+
+  /** Maximum number of detail records in each ABA file. */
+  private static final int MAX_RECORDS_PER_FILE =
+    Integer.parseInt(System.getenv().getOrDefault("ABA_MAX_RECORDS_PER_FILE", "100000"));
+
+  static void run(String[] args) throws IOException
+  {
+    if (args.length < 2 || args.length > 3)
+    {
+      System.err.println("Usage: aba <input|-> <output-dir> [<processing-date>]");
+      System.exit(2);
+    }
+    LocalDate processingDate = args.length > 2 ? LocalDate.parse(args[2]) : LocalDate.now();
+    File outputDir = new File(args[1]);
+    if (!outputDir.isDirectory())
+      throw new IllegalArgumentException("Output directory does not exist: " + outputDir);
+
+    long start = System.nanoTime();
+    long skipped = 0;
+    List<File> files;
+    try (InputStream in = "-".equals(args[0]) ? System.in : new BufferedInputStream(new FileInputStream(args[0]));
+      MappingIterator<DirectDebitPaymentRequest> requests = requestReader.readValues(in);
+      AbaFileWriter writer = new AbaFileWriter(outputDir, "debit-" + processingDate, descriptorFromEnvironment(),
+        processingDate, MAX_RECORDS_PER_FILE))
+    {
+      while (requests.hasNextValue())
+      {
+        DirectDebitPaymentRequest request = requests.nextValue();
+        try
+        {
+          writer.write(request);
+        }
+        catch (IllegalArgumentException e)
+        {
+          skipped++;
+          log.warning("Skipping direct debit: " + e.getMessage());
+        }
+      }
+      files = writer.finish();
+      System.out.println("Wrote " + writer.totalRecords() + " debit(s) totalling " + writer.totalDebitCents()
+        + " cents to " + files.size() + " file(s) in " + (System.nanoTime() - start) / 1_000_000 + "ms; skipped "
+        + skipped + " request(s).");
+    }
+    for (File file : files)
+      System.out.println(file);
+  }
+
+  static AbaFileWriter.Descriptor descriptorFromEnvironment()
+  {
+    return new AbaFileWriter.Descriptor(
+      requireEnv("ABA_BANK"),
+      requireEnv("ABA_USER_NAME"),
+      Integer.parseInt(requireEnv("ABA_USER_ID")),
+      System.getenv().getOrDefault("ABA_DESCRIPTION", "DIRECT DEBIT"),
+      requireEnv("ABA_TRACE_ACCOUNT"),
+      requireEnv("ABA_REMITTER_NAME"));
+  }
+
+  private static String requireEnv(String name)
+  {
+    String value = System.getenv(name);
+    if (value == null || value.isEmpty())
+      throw new IllegalStateException("Environment variable " + name + " must be set for bulk debit runs");
+    return value;
+  }
+}
@@ -0,0 +1,210 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.ws.rs.InternalServerErrorException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.UUID;
+
+/** Canonical, fixed-layout binary encoding of the fields that are signed when a token-capture web form is issued, and
+ * the routines for computing and verifying MACs over that encoding.
+ *
+ * <p>This replaces Java object serialisation of {@code CaptureFormAuthorisation}, which writes class descriptors and
+ * allocates several buffers per message. The message is instead written into a buffer owned by the calling thread
+ * and fed straight to a pre-initialised {@link Mac}, and MACs are verified by comparing Base64 characters in place,
+ * so the only allocation on the verification path is the {@link InetAddress#getAddress()} copy for IPv6 addresses.</p>
+ *
+ * <p>Layout (all integers big-endian):</p>
+ * <pre>
+ *   version          1 byte   (currently {@value #VERSION})
+ *   tid              4 bytes
+ *   principal        1 byte presence flag + 16 bytes if present
+ *   endUserIpAddress 1 byte length (0, 4 or 16) + address bytes
+ *   accountId        1 byte presence flag + 16 bytes if present
+ *   paymentMethodId  1 byte presence flag + 16 bytes if present
+ *   formCreationTime 8 bytes (epoch milliseconds)
+ * </pre>
+ *
+ * <p>MACs produced by this class are rendered as {@link #HMAC_PREFIX} followed by the unpadded Base64URL encoding of
+ * the raw MAC. The prefix can't occur in a legacy (object-serialised) MAC, so the verifier can tell which encoding
+ * an inbound MAC was issued with without having to try both.</p> */
+class CaptureFormEncoding
+{
+  /** Version number of the encoding layout; must be changed if the layout ever changes. */
+  static final byte VERSION = 1;
+
+  /** Prefix used to distinguish MACs computed over this encoding; '.' is not in the Base64URL alphabet. */
+  static final String HMAC_PREFIX = VERSION + ".";
+
+  /** Largest possible encoded message: version + tid + 3 optional UUIDs + IPv6 address + timestamp. */
+  private static final int MAX_MESSAGE_LENGTH = 1 + 4 + 3 * (1 + 16) + (1 + 16) + 8;
+
+  /** Largest MAC length of any of the standard JCA HMAC algorithms (HmacSHA512). */
+  private static final int MAX_MAC_LENGTH = 64;
+
+  private static final char[] BASE64_URL =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  /** Per-thread working buffers, so that encoding and verification don't allocate. */
+  private static class Scratch
+  {
+    final byte[] message = new byte[MAX_MESSAGE_LENGTH];
+    final byte[] mac = new byte[MAX_MAC_LENGTH];
+    final char[] encodedMac = new char[HMAC_PREFIX.length() + (MAX_MAC_LENGTH * 4 + 2) / 3];
+  }
+
+  private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+  private CaptureFormEncoding()
+  {
+    // Static methods only
+  }
+
+  /** Computes the MAC for a token-capture web form.
+   * @param mac {@code Mac} that has been initialised with the signing key; it will be reset on return.
+   * @return MAC rendered as a URL-safe string. */
+  static String sign(Mac mac, int tid, UUID principal, InetAddress endUserIpAddress, UUID accountId,
+    UUID paymentMethodId, long formCreationTimeMillis)
+  {
+    Scratch s = scratch.get();
+    int len = computeAndEncode(s, mac,
+      tid, principal, endUserIpAddress, accountId, paymentMethodId, formCreationTimeMillis);
+    return new String(s.encodedMac, 0, len);
+  }
+
+  /** Verifies a MAC that was produced by {@link #sign}, in time independent of where any mismatch occurs.
+   * @param mac {@code Mac} that has been initialised with the verification key; it will be reset on return.
+   * @param expectedHmac MAC supplied by the client, including the {@link #HMAC_PREFIX}.
+   * @return {@code true} if the MAC is authentic. */
+  static boolean verify(Mac mac, String expectedHmac, int tid, UUID principal, InetAddress endUserIpAddress,
+    UUID accountId, UUID paymentMethodId, long formCreationTimeMillis)
+  {
+    Scratch s = scratch.get();
+    int len = computeAndEncode(s, mac,
+      tid, principal, endUserIpAddress, accountId, paymentMethodId, formCreationTimeMillis);
+    if (expectedHmac.length() != len)
+      return false;
+    int diff = 0;
+    for (int i = 0; i < len; i++)
+      diff |= expectedHmac.charAt(i) ^ s.encodedMac[i];
+    return diff == 0;
+  }
+
+  /** @return {@code true} if the MAC was produced by this encoding (rather than by legacy object serialisation). */
+  static boolean isCanonical(String hmac)
+  {
+    return hmac.startsWith(HMAC_PREFIX);
+  }
+
+  /** Encodes the message, computes its MAC, and renders the MAC (with prefix) into {@code s.encodedMac}.
+   * @return Number of characters written to {@code s.encodedMac}. */
+  private static int computeAndEncode(Scratch s, Mac mac, int tid, UUID principal, InetAddress endUserIpAddress,
+    UUID accountId, UUID paymentMethodId, long formCreationTimeMillis)
+  {
+    int msgLen = encode(s.message, tid, principal, endUserIpAddress, accountId, paymentMethodId,
+      formCreationTimeMillis);
+    int macLen = mac.getMacLength();
+    try
+    {
+      mac.update(s.message, 0, msgLen);
+      mac.doFinal(s.mac, 0);
+    }
+    catch (ShortBufferException e)
+    {
+      mac.reset();
+      throw new InternalServerErrorException("Web form MAC algorithm produces MACs longer than "
+        + MAX_MAC_LENGTH + " bytes", e);
+    }
+    HMAC_PREFIX.getChars(0, HMAC_PREFIX.length(), s.encodedMac, 0);
+    return HMAC_PREFIX.length() + encodeBase64Url(s.mac, macLen, s.encodedMac, HMAC_PREFIX.length());
+  }
+
+  /** Writes the canonical encoding of the message into {@code buf}.
+   * @return Number of bytes written. */
+  static int encode(byte[] buf, int tid, UUID principal, InetAddress endUserIpAddress, UUID accountId,
+    UUID paymentMethodId, long formCreationTimeMillis)
+  {
+    int pos = 0;
+    buf[pos++] = VERSION;
+    pos = putInt(buf, pos, tid);
+    pos = putUuid(buf, pos, principal);
+    if (endUserIpAddress == null)
+      buf[pos++] = 0;
+    else if (endUserIpAddress instanceof Inet4Address)
+    {
+      // Inet4Address.hashCode() is defined as the address itself, which avoids the array copy made by getAddress().
+      buf[pos++] = 4;
+      pos = putInt(buf, pos, endUserIpAddress.hashCode());
+    }
+    else
+    {
+      byte[] addr = endUserIpAddress.getAddress();
+      buf[pos++] = (byte)addr.length;
+      System.arraycopy(addr, 0, buf, pos, addr.length);
+      pos += addr.length;
+    }
+    pos = putUuid(buf, pos, accountId);
+    pos = putUuid(buf, pos, paymentMethodId);
+    pos = putLong(buf, pos, formCreationTimeMillis);
+    return pos;
+  }
+
+  private static int putUuid(byte[] buf, int pos, UUID uuid)
+  {
+    if (uuid == null)
+    {
+      buf[pos++] = 0;
+      return pos;
+    }
+    buf[pos++] = 1;
+    pos = putLong(buf, pos, uuid.getMostSignificantBits());
+    return putLong(buf, pos, uuid.getLeastSignificantBits());
+  }
+
+  private static int putInt(byte[] buf, int pos, int v)
+  {
+    buf[pos++] = (byte)(v >>> 24);
+    buf[pos++] = (byte)(v >>> 16);
+    buf[pos++] = (byte)(v >>> 8);
+    buf[pos++] = (byte)v;
+    return pos;
+  }
+
+  private static int putLong(byte[] buf, int pos, long v)
+  {
+    pos = putInt(buf, pos, (int)(v >>> 32));
+    return putInt(buf, pos, (int)v);
+  }
+
+  /** Unpadded Base64URL encoding (RFC 4648 section 5) of {@code src[0..len)} into {@code dst} at {@code dstPos}.
+   * @return Number of characters written. */
+  private static int encodeBase64Url(byte[] src, int len, char[] dst, int dstPos)
+  {
+    int start = dstPos;
+    int i = 0;
+    for (; i + 3 <= len; i += 3)
+    {
+      int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+      dst[dstPos++] = BASE64_URL[bits >>> 18];
+      dst[dstPos++] = BASE64_URL[(bits >>> 12) & 0x3f];
+      dst[dstPos++] = BASE64_URL[(bits >>> 6) & 0x3f];
+      dst[dstPos++] = BASE64_URL[bits & 0x3f];
+    }
+    int remaining = len - i;
+    if (remaining == 1)
+    {
+      int bits = (src[i] & 0xff) << 16;
+      dst[dstPos++] = BASE64_URL[bits >>> 18];
+      dst[dstPos++] = BASE64_URL[(bits >>> 12) & 0x3f];
+    }
+    else if (remaining == 2)
+    {
+      int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+      dst[dstPos++] = BASE64_URL[bits >>> 18];
+      dst[dstPos++] = BASE64_URL[(bits >>> 12) & 0x3f];
+      dst[dstPos++] = BASE64_URL[(bits >>> 6) & 0x3f];
+    }
+    return dstPos - start;
+  }
+}
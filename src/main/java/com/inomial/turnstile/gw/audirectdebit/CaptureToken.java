@@ -0,0 +1,123 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.AUBankAccountDetails;
+import com.inomial.turnstile.gw.spi.CaptureResult;
+
+/** Builds the token and hint for a captured bank account straight from the characters the capture page sent back.
+ *
+ * <p>The token is the JSON form of {@link AUBankAccountDetails}, which {@code cnpTransfer} reads back with Jackson.
+ * Rather than populating an {@code AUBankAccountDetails}, concatenating the BSB and account number, serialising it with
+ * Jackson and masking the account number with substrings, the token and hint are appended to a per-thread buffer in
+ * one pass over the BSB and account number, so each costs just the final {@code String}.</p> */
+class CaptureToken
+{
+  /** Number of leading and trailing digits of the account number that are shown in a hint. */
+  private static final int HINT_DIGITS = 3;
+
+  /** Shortest BSB plus account number that a hint is produced for; shorter numbers would give too much away. */
+  static final int MIN_ACCOUNT_LENGTH = 12;
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /** Per-thread working buffers, so that building a token doesn't allocate beyond its result. */
+  private static class Scratch
+  {
+    final StringBuilder token = new StringBuilder(128);
+    final StringBuilder hint = new StringBuilder(64);
+  }
+
+  private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+  private CaptureToken()
+  {
+    // Static methods only
+  }
+
+  /** Sets the token and hint of a capture result for a bank account.
+   * @param name Account name, or {@code null}.
+   * @param bsb BSB, normalised by {@link BsbDirectory#normalise}.
+   * @param account Account number, as entered (not including the BSB).
+   * @param hintSuffix Appended to the masked account number in the hint.
+   * @throws IllegalArgumentException if the BSB and account number are together shorter than
+   * {@value #MIN_ACCOUNT_LENGTH} characters. */
+  static void fill(CaptureResult result, CharSequence name, CharSequence bsb, CharSequence account,
+    CharSequence hintSuffix)
+  {
+    Scratch s = scratch.get();
+    // Appending null gives "null", as concatenating the BSB and account number always has.
+    bsb = bsb == null ? "null" : bsb;
+    account = account == null ? "null" : account;
+    int bsbLength = bsb.length();
+    int length = bsbLength + account.length();
+    if (length < MIN_ACCOUNT_LENGTH)
+      throw new IllegalArgumentException("AU account number should not be less than 12 digits.");
+
+    StringBuilder token = s.token;
+    token.setLength(0);
+    token.append("{\"name\":");
+    if (name == null)
+      token.append("null");
+    else
+      appendJsonString(token, name);
+    token.append(",\"account\":\"");
+
+    StringBuilder hint = s.hint;
+    hint.setLength(0);
+    for (int i = 0; i < length; i++)
+    {
+      char c = i < bsbLength ? bsb.charAt(i) : account.charAt(i - bsbLength);
+      appendJsonChar(token, c);
+      hint.append(i < HINT_DIGITS || i >= length - HINT_DIGITS ? c : 'X');
+    }
+    token.append("\"}");
+    hint.append(hintSuffix);
+
+    result.token = token.toString();
+    result.hint = hint.toString();
+  }
+
+  /** @return Hint for an account number (including its BSB): the first and last {@value #HINT_DIGITS} digits, with
+   * the rest replaced by {@code X}s.
+   * @throws IllegalArgumentException if the account number is shorter than {@value #MIN_ACCOUNT_LENGTH} characters. */
+  static String hint(CharSequence account)
+  {
+    int length = account.length();
+    if (length < MIN_ACCOUNT_LENGTH)
+      throw new IllegalArgumentException("AU account number should not be less than 12 digits.");
+    StringBuilder hint = scratch.get().hint;
+    hint.setLength(0);
+    hint.append(account, 0, HINT_DIGITS);
+    for (int i = HINT_DIGITS; i < length - HINT_DIGITS; i++)
+      hint.append('X');
+    hint.append(account, length - HINT_DIGITS, length);
+    return hint.toString();
+  }
+
+  private static void appendJsonString(StringBuilder out, CharSequence s)
+  {
+    out.append('"');
+    for (int i = 0, n = s.length(); i < n; i++)
+      appendJsonChar(out, s.charAt(i));
+    out.append('"');
+  }
+
+  /** Appends a character escaped for a JSON string (RFC 8259 section 7), as Jackson would. */
+  private static void appendJsonChar(StringBuilder out, char c)
+  {
+    switch (c)
+    {
+      case '"': out.append("\\\""); return;
+      case '\\': out.append("\\\\"); return;
+      case '\b': out.append("\\b"); return;
+      case '\f': out.append("\\f"); return;
+      case '\n': out.append("\\n"); return;
+      case '\r': out.append("\\r"); return;
+      case '\t': out.append("\\t"); return;
+      default: break;
+    }
+    if (c < 0x20)
+      out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+    else
+      out.append(c);
+  }
+}
@@ -0,0 +1,197 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/** A tenant's {@code tokenCaptureUrl}, compiled so that capture URLs can be rendered without re-interpolating the
+ * template on every request.
+ *
+ * <p>The template is parsed once into literal text and placeholders. The only placeholder that doesn't depend on the
+ * request is <code>{gw}</code>, which is substituted when the template is compiled, so a compiled template is just
+ * the interpolated URL. Rendering then appends the query arguments in one pass into a pre-sized
+ * {@link StringBuilder}, following {@code URLInterpolator}'s rules:</p>
+ * <ul>
+ * <li>The first argument is separated from the URL by {@code ?}, or by {@code &} if the URL already has a query.</li>
+ * <li>Values are encoded as by {@link URLEncoder} in UTF-8; values made only of characters it leaves alone are
+ * appended as they are.</li>
+ * <li>{@code action} is the Base64URL encoding of the UTF-8 return URL, with its {@code =} padding encoded as
+ * {@code %3D}.</li>
+ * </ul>
+ *
+ * <p>Templates with any other placeholder (or braces of any other kind), a fragment, or a query that already ends in
+ * a separator aren't compiled; nor are requests without a return URL. Those are rendered by {@code URLInterpolator}
+ * itself. {@code CaptureUrlTemplateTest} checks that both give the same URLs.</p>
+ *
+ * <p>Up to {@code CAPTURE_URL_CACHE_SIZE} (default 64) parsed templates are kept.</p> */
+class CaptureUrlTemplate
+{
+  private static final Cache<String, CaptureUrlTemplate> templates = CacheBuilder.newBuilder()
+    .maximumSize(Integer.parseInt(System.getenv().getOrDefault("CAPTURE_URL_CACHE_SIZE", "64")))
+    .build();
+
+  /** Cached for templates that can't be compiled, so they aren't parsed again. */
+  private static final CaptureUrlTemplate NOT_COMPILED = new CaptureUrlTemplate(null, (char)0);
+
+  private static final String GW_PLACEHOLDER = "{gw}";
+
+  private static final char[] BASE64URL_CHARS =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  private static final String ENCODED_PADDING = "%3D";
+
+  /** Interpolated template. */
+  private final String base;
+  /** Separator before the first query argument. */
+  private final char separator;
+
+  private CaptureUrlTemplate(String base, char separator)
+  {
+    this.base = base;
+    this.separator = separator;
+  }
+
+  /** Renders the capture URL for a web form, as
+   * {@code URLInterpolator.forCardCaptureUrl(template, RSAUDirectDebit.GW, request)} with the {@code hmac},
+   * {@code fct}, {@code prevStatus} (if not {@code null}) and Base64 {@code action} query arguments added.
+   * @param template The tenant's {@code tokenCaptureUrl}.
+   * @param interpolator Renders the same URL with {@code URLInterpolator}, if the template can't be compiled. */
+  static String render(String template, String hmac, long formCreationTime, Object prevStatus, Object returnUrl,
+    Supplier<String> interpolator)
+  {
+    CaptureUrlTemplate compiled = template == null ? NOT_COMPILED : templates.getIfPresent(template);
+    if (compiled == null)
+    {
+      compiled = compile(template);
+      templates.put(template, compiled == null ? NOT_COMPILED : compiled);
+    }
+    if (compiled.base == null || returnUrl == null)
+      return interpolator.get();
+    return compiled.render(hmac, formCreationTime, prevStatus == null ? null : prevStatus.toString(),
+      returnUrl.toString());
+  }
+
+  /** @return The compiled template, or {@code null} if it has to be rendered by {@code URLInterpolator}. */
+  static CaptureUrlTemplate compile(String template)
+  {
+    StringBuilder base = new StringBuilder(template.length() + RSAUDirectDebit.GW.length());
+    int literalStart = 0;
+    for (int i = 0, n = template.length(); i < n; i++)
+    {
+      char c = template.charAt(i);
+      if (c == '{' && template.startsWith(GW_PLACEHOLDER, i))
+      {
+        base.append(template, literalStart, i).append(RSAUDirectDebit.GW);
+        i += GW_PLACEHOLDER.length() - 1;
+        literalStart = i + 1;
+      }
+      else if (c == '{' || c == '}' || c == '#')
+      {
+        return null;
+      }
+    }
+    base.append(template, literalStart, template.length());
+
+    int query = base.indexOf("?");
+    char last = base.length() == 0 ? 0 : base.charAt(base.length() - 1);
+    if (query >= 0 && (last == '?' || last == '&'))
+      return null;
+    return new CaptureUrlTemplate(base.toString(), query < 0 ? '?' : '&');
+  }
+
+  private String render(String hmac, long formCreationTime, String prevStatus, String returnUrl)
+  {
+    boolean ascii = isAscii(returnUrl);
+    byte[] bytes = ascii ? null : returnUrl.getBytes(StandardCharsets.UTF_8);
+    int length = ascii ? returnUrl.length() : bytes.length;
+    StringBuilder url = new StringBuilder(base.length() + 48 + 3 * hmac.length()
+      + (prevStatus == null ? 0 : 3 * prevStatus.length() + 12) + (length + 2) / 3 * 4 + 6);
+    url.append(base).append(separator).append("hmac=");
+    appendEncoded(url, hmac);
+    url.append("&fct=").append(formCreationTime);
+    if (prevStatus != null)
+    {
+      url.append("&prevStatus=");
+      appendEncoded(url, prevStatus);
+    }
+    url.append("&action=");
+
+    int i = 0;
+    for (; i + 2 < length; i += 3)
+    {
+      int n = byteAt(returnUrl, bytes, i) << 16 | byteAt(returnUrl, bytes, i + 1) << 8
+        | byteAt(returnUrl, bytes, i + 2);
+      url.append(BASE64URL_CHARS[n >>> 18])
+        .append(BASE64URL_CHARS[n >>> 12 & 0x3f])
+        .append(BASE64URL_CHARS[n >>> 6 & 0x3f])
+        .append(BASE64URL_CHARS[n & 0x3f]);
+    }
+    int remaining = length - i;
+    if (remaining == 1)
+    {
+      int n = byteAt(returnUrl, bytes, i) << 16;
+      url.append(BASE64URL_CHARS[n >>> 18])
+        .append(BASE64URL_CHARS[n >>> 12 & 0x3f])
+        .append(ENCODED_PADDING).append(ENCODED_PADDING);
+    }
+    else if (remaining == 2)
+    {
+      int n = byteAt(returnUrl, bytes, i) << 16 | byteAt(returnUrl, bytes, i + 1) << 8;
+      url.append(BASE64URL_CHARS[n >>> 18])
+        .append(BASE64URL_CHARS[n >>> 12 & 0x3f])
+        .append(BASE64URL_CHARS[n >>> 6 & 0x3f])
+        .append(ENCODED_PADDING);
+    }
+    return url.toString();
+  }
+
+  /** Appends a query argument value, encoded as by {@link URLEncoder}. */
+  private static void appendEncoded(StringBuilder url, String value)
+  {
+    if (isUnreserved(value))
+    {
+      url.append(value);
+      return;
+    }
+    try
+    {
+      url.append(URLEncoder.encode(value, "UTF-8"));
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int byteAt(String s, byte[] bytes, int i)
+  {
+    return bytes == null ? s.charAt(i) : bytes[i] & 0xff;
+  }
+
+  /** @return Whether a value is made only of characters that {@link URLEncoder} leaves as they are. */
+  private static boolean isUnreserved(String s)
+  {
+    for (int i = 0, n = s.length(); i < n; i++)
+    {
+      char c = s.charAt(i);
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+        || c == '.' || c == '*'))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean isAscii(String s)
+  {
+    for (int i = 0, n = s.length(); i < n; i++)
+    {
+      if (s.charAt(i) >= 0x80)
+        return false;
+    }
+    return true;
+  }
+}
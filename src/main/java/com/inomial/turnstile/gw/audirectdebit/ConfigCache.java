@@ -0,0 +1,77 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.inomial.turnstile.gw.common.ConfigUnmarshaller;
+import com.inomial.turnstile.gw.spi.GatewayRequest;
+
+import java.util.concurrent.ExecutionException;
+
+/** Bounded cache of unmarshalled and validated gateway configuration, keyed by the raw configuration supplied in
+ * each request.
+ *
+ * <p>Turnstile sends the tenant's gateway configuration with every request, but there are only ever a handful of
+ * distinct configurations in use, so this saves re-running Jackson unmarshalling and validation on every request.
+ * Configurations that fail to unmarshal are not cached; the error is thrown to the caller each time.</p>
+ *
+ * <p>Cached configuration objects are shared between requests and must be treated as read-only.</p> */
+class ConfigCache<T>
+{
+  /** Maximum number of distinct configurations cached; least-recently-used entries are evicted beyond this. */
+  private static final int MAX_ENTRIES =
+    Integer.parseInt(System.getenv().getOrDefault("CONFIG_CACHE_SIZE", "64"));
+
+  private final Class<T> configClass;
+  private final Cache<Object, T> cache = CacheBuilder.newBuilder()
+    .maximumSize(MAX_ENTRIES)
+    .recordStats()
+    .build();
+
+  ConfigCache(Class<T> configClass)
+  {
+    this.configClass = configClass;
+  }
+
+  /** Returns the gateway configuration for a request, unmarshalling it only if it hasn't been seen recently.
+   * @param request Gateway request containing the raw configuration.
+   * @return Unmarshalled configuration (which must not be modified).
+   * @throws RuntimeException the same exception as {@link ConfigUnmarshaller#unmarshal} would throw if the
+   * configuration is invalid. */
+  T get(GatewayRequest request)
+  {
+    if (request.config == null)
+      return ConfigUnmarshaller.unmarshal(request, configClass);
+    try
+    {
+      return cache.get(request.config, () -> ConfigUnmarshaller.unmarshal(request, configClass));
+    }
+    catch (UncheckedExecutionException | ExecutionError e)
+    {
+      // Rethrow the unmarshaller's own exception so callers see the same errors as before caching.
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw e;
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException("Unable to unmarshal gateway configuration", e.getCause());
+    }
+  }
+
+  /** @return Hit/miss/eviction counters since startup. */
+  CacheStats stats()
+  {
+    return cache.stats();
+  }
+
+  long size()
+  {
+    return cache.size();
+  }
+}
@@ -0,0 +1,135 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Watches a single file on disk and invokes a callback whenever its contents appear to have changed.
+ *
+ * <p>Change notifications from {@link WatchService} are used where the platform supports them, but they are treated
+ * only as a hint: the file's attributes (modification time, size and file key) are compared against the last-seen
+ * values before the callback is invoked, and they are also re-checked periodically. This covers filesystems that don't
+ * deliver events for the watched file itself, such as bind mounts and the symlink-swap technique used to update
+ * mounted container secrets.</p>
+ *
+ * <p>The monitor runs on a single daemon thread, so the callback never runs concurrently with itself.</p> */
+class FileChangeMonitor
+{
+  private static final Logger log = Logger.getLogger(FileChangeMonitor.class.getName());
+
+  /** Fallback interval at which the file attributes are re-checked if no watch events have been received. */
+  private static final long POLL_INTERVAL_MS = 30_000;
+
+  private final File file;
+  private final Runnable onChange;
+  private Object lastFingerprint;
+
+  private FileChangeMonitor(File file, Object fingerprint, Runnable onChange)
+  {
+    this.file = file;
+    this.onChange = onChange;
+    this.lastFingerprint = fingerprint;
+  }
+
+  /** Starts monitoring a file for changes.
+   * @param file File to be monitored. The file doesn't need to exist yet.
+   * @param fingerprint {@link #fingerprint(File)} of the file, taken <em>before</em> the caller first read it. Taking
+   * it afterwards would miss a change made while the file was being read, leaving the caller with the old contents
+   * until the file next changes.
+   * @param onChange Callback invoked (on the monitor thread) after the file has been modified, replaced or removed.
+   * Any exception thrown by the callback is logged and monitoring will continue. */
+  static void watch(File file, Object fingerprint, Runnable onChange)
+  {
+    FileChangeMonitor monitor = new FileChangeMonitor(file, fingerprint, onChange);
+    Thread thread = new Thread(monitor::run, "file-monitor-" + file.getName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run()
+  {
+    WatchService watcher = openWatcher();
+    try
+    {
+      while (!Thread.currentThread().isInterrupted())
+      {
+        if (watcher != null)
+        {
+          WatchKey key = watcher.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+          if (key != null)
+          {
+            // We don't care which entry changed; any activity in the directory triggers a re-check of the file.
+            key.pollEvents();
+            key.reset();
+          }
+        }
+        else
+          Thread.sleep(POLL_INTERVAL_MS);
+        checkForChange();
+      }
+    }
+    catch (InterruptedException | ClosedWatchServiceException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private WatchService openWatcher()
+  {
+    Path dir = file.getAbsoluteFile().toPath().getParent();
+    try
+    {
+      WatchService watcher = FileSystems.getDefault().newWatchService();
+      dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_DELETE);
+      return watcher;
+    }
+    catch (IOException | UnsupportedOperationException e)
+    {
+      log.log(Level.WARNING, "Unable to watch directory " + dir + "; falling back to polling " + file, e);
+      return null;
+    }
+  }
+
+  private void checkForChange()
+  {
+    // As on the first read, the fingerprint is recorded before the callback re-reads the file.
+    Object fingerprint = fingerprint(file);
+    if (Objects.equals(fingerprint, lastFingerprint))
+      return;
+    lastFingerprint = fingerprint;
+    try
+    {
+      onChange.run();
+    }
+    catch (RuntimeException e)
+    {
+      log.log(Level.WARNING, "Error handling change to " + file, e);
+    }
+  }
+
+  /** @return A value that changes whenever the file is modified or replaced, or {@code null} if it doesn't exist. */
+  static Object fingerprint(File file)
+  {
+    try
+    {
+      BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return attrs.lastModifiedTime().toMillis() + ":" + attrs.size() + ":" + attrs.fileKey();
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.turnstile.gw.audirectdebit.GatewayMetrics.Operation;
+
+import javax.ws.rs.ServiceUnavailableException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/** Limits how many gateway operations of each kind run at once, and how long they may take.
+ *
+ * <p>Each {@link Operation} may have at most {@code GATEWAY_<OPERATION>_MAX_PENDING} calls running at once; further
+ * calls are rejected immediately with {@link ServiceUnavailableException}, so a burst of one kind of request can't
+ * tie up every container thread and starve the others. Operations run on the calling (container) thread: the
+ * {@code TurnstileGateway} methods return their results directly, so handing the work to another thread would only
+ * leave the container thread waiting for it.</p>
+ *
+ * <p>A call that takes longer than {@code GATEWAY_<OPERATION>_TIMEOUT_MS} is reported as unavailable when it
+ * finishes, rather than returning its late result. The deadline is checked at {@link #commit()}, which an operation
+ * with an effect that must not happen once its caller could have given up (such as submitting a direct debit) calls
+ * just before it: if the deadline has passed, {@code commit()} throws; otherwise the operation is allowed to finish
+ * and return its result however long the rest takes.</p>
+ *
+ * <p>If {@code GATEWAY_LIMITS} isn't {@code true}, {@link #call} just runs the operation; limits and timeouts then
+ * don't apply.</p> */
+class GatewayExecutor
+{
+  private static final Logger log = Logger.getLogger(GatewayExecutor.class.getName());
+
+  /** Whether the limits and timeouts apply. */
+  static final boolean LIMITS = Boolean.parseBoolean(System.getenv().getOrDefault("GATEWAY_LIMITS", "false"));
+
+  private static final int DEFAULT_MAX_PENDING = 64;
+  private static final long DEFAULT_TIMEOUT_MS = 10_000;
+
+  /** Call being run by the current thread. */
+  private static final ThreadLocal<Call> current = new ThreadLocal<>();
+
+  private final Semaphore[] pending = new Semaphore[Operation.values().length];
+  private final long[] timeoutNanos = new long[Operation.values().length];
+
+  /** An operation running on the current thread. */
+  private static class Call
+  {
+    final long deadline;
+    boolean committed;
+
+    Call(long deadline)
+    {
+      this.deadline = deadline;
+    }
+
+    boolean overdue()
+    {
+      return System.nanoTime() - deadline > 0;
+    }
+  }
+
+  GatewayExecutor()
+  {
+    for (Operation op : Operation.values())
+    {
+      String prefix = "GATEWAY_" + op.name() + "_";
+      pending[op.ordinal()] = new Semaphore(Integer.parseInt(
+        System.getenv().getOrDefault(prefix + "MAX_PENDING", String.valueOf(DEFAULT_MAX_PENDING))));
+      timeoutNanos[op.ordinal()] = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(
+        System.getenv().getOrDefault(prefix + "TIMEOUT_MS", String.valueOf(DEFAULT_TIMEOUT_MS))));
+    }
+    if (LIMITS)
+      log.info("Gateway operations are limited per operation.");
+  }
+
+  /** Called by an operation just before an effect that must not happen if its caller could have given up on it.
+   * From then on the operation runs to completion and returns its result. Does nothing if limits are off.
+   * @throws ServiceUnavailableException if the operation has already run past its timeout. */
+  static void commit()
+  {
+    Call call = current.get();
+    if (call == null)
+      return;
+    if (!call.committed && call.overdue())
+      throw new ServiceUnavailableException("Request timed out before it could be submitted; please retry later.");
+    call.committed = true;
+  }
+
+  /** Runs an operation on the current thread, within the limits for its kind.
+   * @throws ServiceUnavailableException if too many calls of this operation are running, or it runs past its timeout
+   * without reaching {@link #commit()}. */
+  <T> T call(Operation op, Callable<T> task)
+  {
+    if (!LIMITS)
+      return callDirect(task);
+    Semaphore permits = pending[op.ordinal()];
+    if (!permits.tryAcquire())
+      throw new ServiceUnavailableException("Too many " + op.label + " requests are pending; please retry later.");
+    Call call = new Call(System.nanoTime() + timeoutNanos[op.ordinal()]);
+    current.set(call);
+    try
+    {
+      T result = callDirect(task);
+      if (!call.committed && call.overdue())
+        throw new ServiceUnavailableException(op.label + " timed out after "
+          + TimeUnit.NANOSECONDS.toMillis(timeoutNanos[op.ordinal()]) + "ms; please retry later.");
+      return result;
+    }
+    finally
+    {
+      current.remove();
+      permits.release();
+    }
+  }
+
+  private static <T> T callDirect(Callable<T> task)
+  {
+    try
+    {
+      return task.call();
+    }
+    catch (Exception e)
+    {
+      throw unwrap(e);
+    }
+  }
+
+  private static RuntimeException unwrap(Throwable e)
+  {
+    if (e instanceof RuntimeException)
+      return (RuntimeException)e;
+    if (e instanceof Error)
+      throw (Error)e;
+    return new IllegalStateException(e);
+  }
+}
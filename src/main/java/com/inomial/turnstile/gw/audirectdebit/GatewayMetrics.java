@@ -0,0 +1,261 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.google.common.cache.CacheStats;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Latency and outcome metrics for the {@link com.inomial.turnstile.gw.spi.TurnstileGateway} methods, along with
+ * the effectiveness of the gateway's caches.
+ *
+ * <p>Each request is timed with a {@link Timer}: the time since the previous mark is recorded against a
+ * {@link Phase} as each phase completes, and the total time and outcome are recorded when the request finishes.
+ * Timers are reused per thread and phase timings go into {@link LatencyHistogram}s, so timing a request allocates
+ * nothing and costs a few {@code System.nanoTime()} calls.</p>
+ *
+ * <p>{@link #writePrometheus} renders everything in the Prometheus text exposition format; see
+ * {@link MetricsResource}.</p> */
+class GatewayMetrics
+{
+  /** Gateway methods that are timed. */
+  enum Operation
+  {
+    GET_CP_PAYMENT_URL("getCPPaymentUrl"),
+    QUERY_PAYMENT_STATUS("queryPaymentStatus"),
+    GET_CAPTURE_URL("getCaptureUrl"),
+    QUERY_CARD_CAPTURE("queryCardCapture"),
+    CNP_TRANSFER("cnpTransfer"),
+    DELETE_TOKEN("deleteToken"),
+    /** A whole batch of {@link BulkCaptureResource}. */
+    BULK_CAPTURE("bulkCapture");
+
+    final String label;
+
+    Operation(String label)
+    {
+      this.label = label;
+    }
+  }
+
+  /** Steps within a request. Not every operation has every phase. */
+  enum Phase
+  {
+    /** Checking the tenant's and end-user's request rate limits. */
+    ADMISSION("admission"),
+    /** Looking up or unmarshalling the gateway configuration. */
+    CONFIG("config"),
+    /** Computing or verifying the web form HMAC (including any secret reload). */
+    HMAC("hmac"),
+    /** Rendering the capture page URL. */
+    URL_RENDER("url_render"),
+    /** Checking the BSB against the BSB directory. */
+    BSB_LOOKUP("bsb_lookup"),
+    /** Serialising or deserialising the bank account token. */
+    JSON_TOKEN("json_token"),
+    /** Handing a payment request to the Kafka queue. */
+    SUBMIT("submit"),
+    /** Whole request, from start to finish. */
+    TOTAL("total");
+
+    final String label;
+
+    Phase(String label)
+    {
+      this.label = label;
+    }
+  }
+
+  private static final Operation[] OPERATIONS = Operation.values();
+  private static final Phase[] PHASES = Phase.values();
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  private static final LatencyHistogram[][] histograms = new LatencyHistogram[OPERATIONS.length][PHASES.length];
+  @SuppressWarnings("unchecked")
+  private static final Map<String, LongAdder>[] outcomes = new Map[OPERATIONS.length];
+  static
+  {
+    for (Operation op : OPERATIONS)
+    {
+      for (Phase phase : PHASES)
+        histograms[op.ordinal()][phase.ordinal()] = new LatencyHistogram();
+      outcomes[op.ordinal()] = new ConcurrentHashMap<>();
+    }
+  }
+
+  private static final ThreadLocal<Timer> timers = ThreadLocal.withInitial(Timer::new);
+  private static final ThreadLocal<Timer> phaseTimers = ThreadLocal.withInitial(Timer::new);
+
+  /** Times the phases of one request. A timer belongs to the thread that started it and must be finished by that
+   * thread before it starts another request.
+   *
+   * <p>Each gateway method times the whole request with {@link #start}, and the operation that it runs through
+   * {@link GatewayExecutor} times its phases with a separate timer from {@link #startPhases}, so starting the phases
+   * doesn't reset the total.</p> */
+  static class Timer
+  {
+    private Operation op;
+    private long start;
+    private long last;
+
+    /** Records the time since the start of the request or the previous phase against a phase. */
+    void phase(Phase phase)
+    {
+      long now = System.nanoTime();
+      histograms[op.ordinal()][phase.ordinal()].record(now - last);
+      last = now;
+    }
+
+    /** Records the total time of the request and its outcome. */
+    void finish(Enum<?> outcome)
+    {
+      finish(outcome == null ? "null" : outcome.name());
+    }
+
+    /** Records the total time of a request that ended with an exception. */
+    void fail(Throwable e)
+    {
+      finish(e.getClass().getSimpleName());
+    }
+
+    void finish(String outcome)
+    {
+      histograms[op.ordinal()][Phase.TOTAL.ordinal()].record(System.nanoTime() - start);
+      Map<String, LongAdder> counts = outcomes[op.ordinal()];
+      LongAdder count = counts.get(outcome);
+      if (count == null)
+      {
+        counts.putIfAbsent(outcome, new LongAdder());
+        count = counts.get(outcome);
+      }
+      count.increment();
+      Readiness.requestFinished();
+    }
+  }
+
+  /** Starts timing a request on the current thread. */
+  static Timer start(Operation op)
+  {
+    Timer timer = timers.get();
+    timer.op = op;
+    timer.start = timer.last = System.nanoTime();
+    return timer;
+  }
+
+  /** Starts timing the phases of a request on the current thread, without affecting a timer from {@link #start} on
+   * the same thread. The returned timer must not be finished. */
+  static Timer startPhases(Operation op)
+  {
+    Timer timer = phaseTimers.get();
+    timer.op = op;
+    timer.start = timer.last = System.nanoTime();
+    return timer;
+  }
+
+  /** Appends all metrics in the Prometheus text exposition format (version 0.0.4). */
+  static void writePrometheus(StringBuilder out)
+  {
+    writeRequestMetrics(out);
+
+    String[] caches = { "config", "transfers" };
+    CacheStats[] stats = { RSAUDirectDebit.configCache.stats(), RSAUDirectDebit.recentTransfers.stats() };
+    long[] sizes = { RSAUDirectDebit.configCache.size(), RSAUDirectDebit.recentTransfers.size() };
+    out.append("# HELP turnstile_gw_cache_requests_total Cache lookups by result.\n");
+    out.append("# TYPE turnstile_gw_cache_requests_total counter\n");
+    for (int i = 0; i < caches.length; i++)
+    {
+      out.append("turnstile_gw_cache_requests_total{cache=\"").append(caches[i]).append("\",result=\"hit\"} ")
+        .append(stats[i].hitCount()).append('\n');
+      out.append("turnstile_gw_cache_requests_total{cache=\"").append(caches[i]).append("\",result=\"miss\"} ")
+        .append(stats[i].missCount()).append('\n');
+    }
+    out.append("# HELP turnstile_gw_cache_hit_ratio Fraction of cache lookups that were hits since startup.\n");
+    out.append("# TYPE turnstile_gw_cache_hit_ratio gauge\n");
+    for (int i = 0; i < caches.length; i++)
+    {
+      out.append("turnstile_gw_cache_hit_ratio{cache=\"").append(caches[i]).append("\"} ").append(stats[i].hitRate())
+        .append('\n');
+    }
+    out.append("# HELP turnstile_gw_cache_evictions_total Cache entries evicted for size or age.\n");
+    out.append("# TYPE turnstile_gw_cache_evictions_total counter\n");
+    for (int i = 0; i < caches.length; i++)
+    {
+      out.append("turnstile_gw_cache_evictions_total{cache=\"").append(caches[i]).append("\"} ")
+        .append(stats[i].evictionCount()).append('\n');
+    }
+    out.append("# HELP turnstile_gw_cache_entries Entries currently cached.\n");
+    out.append("# TYPE turnstile_gw_cache_entries gauge\n");
+    for (int i = 0; i < caches.length; i++)
+      out.append("turnstile_gw_cache_entries{cache=\"").append(caches[i]).append("\"} ").append(sizes[i]).append('\n');
+
+    out.append("# HELP turnstile_gw_log_dropped_total Request log messages dropped because the buffer was full.\n");
+    out.append("# TYPE turnstile_gw_log_dropped_total counter\n");
+    out.append("turnstile_gw_log_dropped_total ").append(RequestLog.dropped()).append('\n');
+    out.append("# HELP turnstile_gw_log_queued Request log messages waiting to be written.\n");
+    out.append("# TYPE turnstile_gw_log_queued gauge\n");
+    out.append("turnstile_gw_log_queued ").append(RequestLog.queued()).append('\n');
+
+    writePaymentQueueMetrics(out, RSAUDirectDebit.paymentRequests);
+
+    out.append("# HELP turnstile_gw_startup_seconds Time from JVM start until the gateway was ready, and until its "
+      + "first request finished.\n");
+    out.append("# TYPE turnstile_gw_startup_seconds gauge\n");
+    long ready = Readiness.readyUptimeMillis();
+    if (ready >= 0)
+      out.append("turnstile_gw_startup_seconds{milestone=\"ready\"} ").append(ready / 1e3).append('\n');
+    long firstRequest = Readiness.firstRequestUptimeMillis();
+    if (firstRequest >= 0)
+      out.append("turnstile_gw_startup_seconds{milestone=\"first_request\"} ").append(firstRequest / 1e3).append('\n');
+  }
+
+  private static void writePaymentQueueMetrics(StringBuilder out, PaymentRequestQueue queue)
+  {
+    out.append("# HELP turnstile_gw_payment_queue_depth Payment request messages waiting to be sent to Kafka.\n");
+    out.append("# TYPE turnstile_gw_payment_queue_depth gauge\n");
+    out.append("turnstile_gw_payment_queue_depth ").append(queue.queueDepth()).append('\n');
+    out.append("# HELP turnstile_gw_payment_sender_healthy 1 if payment request messages are being sent, 0 while the "
+      + "sender is waiting to restart after a failure.\n");
+    out.append("# TYPE turnstile_gw_payment_sender_healthy gauge\n");
+    out.append("turnstile_gw_payment_sender_healthy ").append(queue.isHealthy() ? 1 : 0).append('\n');
+    out.append("# HELP turnstile_gw_payment_sender_failures_total Times the payment request sender failed and was "
+      + "restarted.\n");
+    out.append("# TYPE turnstile_gw_payment_sender_failures_total counter\n");
+    out.append("turnstile_gw_payment_sender_failures_total ").append(queue.stats().senderFailures.get()).append('\n');
+  }
+
+  private static void writeRequestMetrics(StringBuilder out)
+  {
+    out.append("# HELP turnstile_gw_request_phase_seconds Time spent in each phase of a gateway request.\n");
+    out.append("# TYPE turnstile_gw_request_phase_seconds summary\n");
+    for (Operation op : OPERATIONS)
+    {
+      for (Phase phase : PHASES)
+      {
+        LatencyHistogram.Snapshot s = histograms[op.ordinal()][phase.ordinal()].snapshot();
+        if (s.count == 0)
+          continue;
+        String labels = "operation=\"" + op.label + "\",phase=\"" + phase.label + "\"";
+        for (double q : QUANTILES)
+        {
+          out.append("turnstile_gw_request_phase_seconds{").append(labels).append(",quantile=\"").append(q)
+            .append("\"} ").append(s.quantile(q) / 1e9).append('\n');
+        }
+        out.append("turnstile_gw_request_phase_seconds_sum{").append(labels).append("} ").append(s.sumNanos / 1e9)
+          .append('\n');
+        out.append("turnstile_gw_request_phase_seconds_count{").append(labels).append("} ").append(s.count)
+          .append('\n');
+      }
+    }
+
+    out.append("# HELP turnstile_gw_requests_total Gateway requests by outcome.\n");
+    out.append("# TYPE turnstile_gw_requests_total counter\n");
+    for (Operation op : OPERATIONS)
+    {
+      for (Map.Entry<String, LongAdder> e : outcomes[op.ordinal()].entrySet())
+      {
+        out.append("turnstile_gw_requests_total{operation=\"").append(op.label).append("\",outcome=\"")
+          .append(e.getKey()).append("\"} ").append(e.getValue().sum()).append('\n');
+      }
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import javax.ws.rs.ServiceUnavailableException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/** Remembers which captured-form HMACs have already been accepted, so that a web form can only be submitted once.
+ *
+ * <p>HMACs are remembered by a 64-bit fingerprint in one of {@link #GENERATIONS} open-addressing hash sets of
+ * {@code long}s, chosen by the form creation time: each generation holds the forms created during one bucket of
+ * {@code window / (GENERATIONS - 1)}, and is cleared and reused when a new bucket begins. So every form that is still
+ * within {@code window} of its creation time is remembered, and older forms are forgotten without any per-entry
+ * expiry. Checking and recording a fingerprint are a short linear probe, and the tables are allocated up front, so
+ * the filter's memory use is fixed by {@code WEBFORMMAC_REPLAY_FILTER_KB} however many forms are submitted.</p>
+ *
+ * <p>The window must be at least as long as the longest {@code webFormTimeoutSec} of any gateway configuration; forms
+ * older than the window can't be checked, so {@link #covers} reports them and the caller treats them as timed out.
+ * {@link #timeoutSec} caps a configured timeout to the window, logging an error the first time it has to.
+ * If a generation fills up, {@link #record} fails with {@link ServiceUnavailableException} rather than let replays
+ * through.</p>
+ *
+ * <p>The filter is per instance: a form replayed against a different instance of the gateway isn't detected.</p> */
+class HmacReplayFilter
+{
+  private static final Logger log = Logger.getLogger(HmacReplayFilter.class.getName());
+
+  /** Number of buckets remembered; the oldest is the one being forgotten, so the rest span the whole window. */
+  static final int GENERATIONS = 3;
+
+  /** Largest fraction of a generation's slots that may be used, to keep probes short. */
+  private static final double MAX_LOAD = 0.75;
+
+  private static final long EMPTY = 0;
+
+  private final long bucketMillis;
+  private final int maxSize;
+
+  /** Configured timeouts that have been found to be longer than the window, so they're only logged once. */
+  private final Set<Integer> cappedTimeouts = ConcurrentHashMap.newKeySet();
+
+  // Guarded by "this".
+  private final long[][] slots;
+  private final long[] bucket;
+  private final int[] size;
+
+  /** @param windowMillis Longest time after its creation that a form may be submitted.
+   * @param maxBytes Memory to use for all generations; rounded down so each generation is a power of two slots. */
+  HmacReplayFilter(long windowMillis, long maxBytes)
+  {
+    this.bucketMillis = Math.max(1, windowMillis / (GENERATIONS - 1));
+    long perGeneration = Math.max(16, maxBytes / Long.BYTES / GENERATIONS);
+    int capacity = Integer.highestOneBit((int)Math.min(perGeneration, 1 << 30));
+    this.maxSize = (int)(capacity * MAX_LOAD);
+    this.slots = new long[GENERATIONS][capacity];
+    this.bucket = new long[GENERATIONS];
+    Arrays.fill(bucket, Long.MIN_VALUE);
+    this.size = new int[GENERATIONS];
+  }
+
+  /** Creates a filter configured by {@code WEBFORMMAC_REPLAY_WINDOW_SEC} (default 900, the default form timeout) and
+   * {@code WEBFORMMAC_REPLAY_FILTER_KB} (default 8192). */
+  static HmacReplayFilter fromEnvironment()
+  {
+    long windowSec = Long.parseLong(System.getenv().getOrDefault("WEBFORMMAC_REPLAY_WINDOW_SEC", "900"));
+    long kb = Long.parseLong(System.getenv().getOrDefault("WEBFORMMAC_REPLAY_FILTER_KB", "8192"));
+    HmacReplayFilter filter = new HmacReplayFilter(windowSec * 1000, kb * 1024);
+    log.info("HMAC replay filter covers " + windowSec + "s and holds up to " + filter.maxSize
+      + " form(s) per " + filter.bucketMillis / 1000 + "s");
+    return filter;
+  }
+
+  /** @return Longest time, in seconds, after its creation that a form is always covered by the filter. */
+  long windowSec()
+  {
+    return bucketMillis * (GENERATIONS - 1) / 1000;
+  }
+
+  /** Caps a configured web form timeout to the window, since a form can't be accepted once the filter has forgotten
+   * it. Logs an error the first time each longer timeout is seen, as the forms will time out sooner than configured.
+   * @return Seconds after its creation that a form with this timeout may be submitted. */
+  int timeoutSec(int configuredSec)
+  {
+    long windowSec = windowSec();
+    if (configuredSec <= windowSec)
+      return configuredSec;
+    if (cappedTimeouts.add(configuredSec))
+      log.severe("webFormTimeoutSec of " + configuredSec + "s is longer than the HMAC replay filter window of "
+        + windowSec + "s, so forms will time out after " + windowSec + "s; increase WEBFORMMAC_REPLAY_WINDOW_SEC");
+    return (int)windowSec;
+  }
+
+  /** @return Whether a form created at the given time is young enough to be checked against the filter. */
+  boolean covers(long formCreationMillis, long nowMillis)
+  {
+    return Math.floorDiv(formCreationMillis, bucketMillis) > Math.floorDiv(nowMillis, bucketMillis) - GENERATIONS;
+  }
+
+  /** @return Whether a form with this HMAC has already been recorded. This is only a quick check ahead of verifying
+   * the HMAC; the outcome of {@link #record} is what counts. */
+  synchronized boolean isReplay(String hmac, long formCreationMillis, long nowMillis)
+  {
+    int gen = generation(formCreationMillis, nowMillis);
+    return gen >= 0 && find(slots[gen], fingerprint(hmac)) >= 0;
+  }
+
+  /** Records a form as submitted.
+   * @return {@code true} if it hadn't been recorded before; {@code false} if this is a replay (or the form is too old
+   * to be covered by the filter).
+   * @throws ServiceUnavailableException if the filter is full. */
+  synchronized boolean record(String hmac, long formCreationMillis, long nowMillis)
+  {
+    int gen = generation(formCreationMillis, nowMillis);
+    if (gen < 0)
+      return false;
+    long[] table = slots[gen];
+    long key = fingerprint(hmac);
+    int slot = find(table, key);
+    if (slot >= 0)
+      return false;
+    if (size[gen] >= maxSize)
+    {
+      log.warning("HMAC replay filter is full; increase WEBFORMMAC_REPLAY_FILTER_KB");
+      throw new ServiceUnavailableException("Too many web forms have been submitted recently; please retry later.");
+    }
+    table[~slot] = key;
+    size[gen]++;
+    return true;
+  }
+
+  /** @return Generation holding forms created at the given time, cleared first if it holds an older bucket, or -1 if
+   * the form is too old. Forms apparently created in the future (from clock skew between instances) are kept with the
+   * current bucket. */
+  private int generation(long formCreationMillis, long nowMillis)
+  {
+    long current = Math.floorDiv(nowMillis, bucketMillis);
+    long b = Math.min(Math.floorDiv(formCreationMillis, bucketMillis), current);
+    if (b <= current - GENERATIONS)
+      return -1;
+    int gen = (int)Math.floorMod(b, (long)GENERATIONS);
+    if (bucket[gen] != b)
+    {
+      Arrays.fill(slots[gen], EMPTY);
+      size[gen] = 0;
+      bucket[gen] = b;
+    }
+    return gen;
+  }
+
+  /** @return Slot holding the key, or {@code ~slot} of the empty slot where it would go. */
+  private static int find(long[] table, long key)
+  {
+    int mask = table.length - 1;
+    int slot = (int)key & mask;
+    while (true)
+    {
+      long k = table[slot];
+      if (k == key)
+        return slot;
+      if (k == EMPTY)
+        return ~slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /** @return 64-bit FNV-1a hash of the HMAC as given, finished with a mixing step so the low bits used to pick a slot
+   * depend on every character; never {@link #EMPTY}. */
+  static long fingerprint(String hmac)
+  {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0, n = hmac.length(); i < n; i++)
+      h = (h ^ hmac.charAt(i)) * 0x100000001b3L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h == EMPTY ? 1 : h;
+  }
+}
@@ -0,0 +1,81 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/** Writes one type of gateway result as JSON straight to the response stream.
+ *
+ * <p>The generic JAX-RS Jackson provider looks up a writer for the entity's type on every response; this writer is
+ * built once, for exactly one type, from the same {@link ObjectMapper} the generic provider would use (one supplied by
+ * a {@link ContextResolver}, if any, otherwise a default mapper). Jackson's generator buffers are recycled per thread,
+ * so writing a result allocates little beyond the generator itself.</p>
+ *
+ * <p>Subclasses must be annotated with {@code @Produces(MediaType.APPLICATION_JSON)}, and are registered in
+ * {@code META-INF/services/javax.ws.rs.ext.Providers}.</p> */
+abstract class JsonResultWriter<T> implements MessageBodyWriter<T>
+{
+  private final Class<T> type;
+
+  @Context
+  private Providers providers;
+
+  private volatile ObjectWriter writer;
+
+  JsonResultWriter(Class<T> type)
+  {
+    this.type = type;
+  }
+
+  @Override
+  public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+  {
+    return type == this.type && (mediaType == null || MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType));
+  }
+
+  @Override
+  public long getSize(T value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+  {
+    return -1;
+  }
+
+  @Override
+  public void writeTo(T value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+    MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException
+  {
+    writer(mediaType).writeValue(entityStream, value);
+  }
+
+  private ObjectWriter writer(MediaType mediaType)
+  {
+    ObjectWriter w = writer;
+    if (w == null)
+    {
+      ObjectMapper mapper = null;
+      if (providers != null)
+      {
+        ContextResolver<ObjectMapper> resolver = providers.getContextResolver(ObjectMapper.class,
+          mediaType == null ? MediaType.APPLICATION_JSON_TYPE : mediaType);
+        if (resolver != null)
+          mapper = resolver.getContext(type);
+      }
+      if (mapper == null)
+        mapper = new ObjectMapper();
+      // The container closes the response stream itself.
+      w = mapper.writerFor(type).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      writer = w;
+    }
+    return w;
+  }
+}
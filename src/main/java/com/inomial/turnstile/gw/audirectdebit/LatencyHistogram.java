@@ -0,0 +1,111 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Histogram of durations in nanoseconds, recorded lock-free from many threads.
+ *
+ * <p>Values are counted in log-linear buckets in the style of HdrHistogram: each power of two is divided into
+ * {@link #SUB_BUCKETS} equal buckets, so any value is reported to within 1/{@value #SUB_BUCKETS} of its true value,
+ * up to about 68 seconds (larger values are counted in the last bucket).</p>
+ *
+ * <p>Counters are striped over a fixed number of arrays, about one per processor (up to {@link #MAX_STRIPES}), and
+ * each thread records into the array picked by its thread ID, so threads rarely contend for the same counters, and
+ * memory doesn't grow however many threads come and go. {@link #snapshot()} adds up all the arrays.</p> */
+class LatencyHistogram
+{
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 36;
+
+  /** Number of buckets; the counters array has one more slot, holding the sum of all values. */
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+  private static final int SUM = BUCKETS;
+
+  private static final int MAX_STRIPES = 16;
+  private static final int STRIPES =
+    Integer.highestOneBit(Math.min(MAX_STRIPES, Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+  LatencyHistogram()
+  {
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new AtomicLongArray(BUCKETS + 1);
+  }
+
+  /** Counts of a histogram at a point in time. */
+  static class Snapshot
+  {
+    final long[] counts = new long[BUCKETS];
+    long count;
+    long sumNanos;
+
+    /** @return Value below which the given fraction of recorded values fall, in nanoseconds (0 if empty). */
+    long quantile(double q)
+    {
+      if (count == 0)
+        return 0;
+      long target = Math.max(1, (long)Math.ceil(q * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        seen += counts[i];
+        if (seen >= target)
+          return midpoint(i);
+      }
+      return midpoint(BUCKETS - 1);
+    }
+  }
+
+  void record(long nanos)
+  {
+    AtomicLongArray r = stripes[stripe(Thread.currentThread().getId())];
+    r.getAndIncrement(bucket(nanos));
+    r.getAndAdd(SUM, nanos);
+  }
+
+  Snapshot snapshot()
+  {
+    Snapshot s = new Snapshot();
+    for (AtomicLongArray r : stripes)
+    {
+      for (int i = 0; i < BUCKETS; i++)
+        s.counts[i] += r.get(i);
+      s.sumNanos += r.get(SUM);
+    }
+    for (long c : s.counts)
+      s.count += c;
+    return s;
+  }
+
+  /** @return Stripe for a thread ID. IDs are handed out in sequence, so they're mixed to spread pool threads that
+   * were created together. */
+  private static int stripe(long threadId)
+  {
+    long h = threadId * 0x9e3779b97f4a7c15L;
+    return (int)(h >>> 32) & (STRIPES - 1);
+  }
+
+  static int bucket(long nanos)
+  {
+    if (nanos < SUB_BUCKETS)
+      return nanos < 0 ? 0 : (int)nanos;
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent > MAX_EXPONENT)
+      return BUCKETS - 1;
+    int subBucket = (int)(nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** @return Value in the middle of a bucket. */
+  static long midpoint(int bucket)
+  {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int subBucket = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    long low = (1L << exponent) + subBucket * width;
+    return low + width / 2;
+  }
+}
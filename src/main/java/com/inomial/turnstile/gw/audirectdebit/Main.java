@@ -4,32 +4,141 @@ import com.google.common.collect.Sets;
 import com.inomial.secore.http.HttpServer;
 import com.inomial.secore.kafka.MessageProducer;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class Main
 {
-  public static void main(String[] argv)
+  private static final Logger log = Logger.getLogger(Main.class.getName());
+
+  /** Roles that may call the gateway. */
+  static final Set<String> ROLES = Sets.newHashSet(
+          "authenticated", // smile
+          "turnstile", // apps
+          "enduser"); // portal
+  /** Keycloak realms that callers may be authenticated in. */
+  static final Set<String> REALMS = Sets.newHashSet("smile", "soap", "portal", "apps");
+
+  public static void main(String[] argv) throws IOException, InterruptedException
   {
+    if (argv.length > 0 && "aba".equals(argv[0]))
+    {
+      BulkDebitRun.run(Arrays.copyOfRange(argv, 1, argv.length));
+      return;
+    }
+    if (argv.length > 0 && "returns".equals(argv[0]))
+    {
+      MessageProducer.start("turnstile-audirectdebit-gw");
+      ReturnFileProcessor.run(Arrays.copyOfRange(argv, 1, argv.length));
+      // The message producer's threads would otherwise keep the JVM running.
+      System.exit(0);
+    }
+
+    if (argv.length > 0 && "warmup".equals(argv[0]))
+    {
+      // Training run for the class-data sharing archive; see the appCdsClassList task.
+      WebFormMac.checkSecret();
+      StartupWarmup.run(argv.length > 1 ? Integer.parseInt(argv[1]) : StartupWarmup.ITERATIONS);
+      return;
+    }
+
     System.out.println("Australia Direct Debit Turnstile gateway is starting up.");
 
+    // Steps that don't depend on each other run in parallel, and alongside the HTTP server starting up; /ready
+    // reports when they've all finished. Any failure stops the gateway, as it would have before taking traffic.
+    ExecutorService startup = Executors.newCachedThreadPool(r ->
+    {
+      Thread t = new Thread(r, "startup");
+      t.setDaemon(true);
+      return t;
+    });
+
     // Load form HMAC secrets now so any configuration errors will appear in startup log messages,
     // rather than upon first transaction.
-    System.out.println("Checking if web form MAC secret is available.");
-    WebFormMac.checkSecret();
-    System.out.println("Web Form MAC secret is OK.");
+    CompletableFuture<Void> secret = step(startup, "web form MAC secret", () ->
+    {
+      System.out.println("Checking if web form MAC secret is available.");
+      WebFormMac.checkSecret();
+      System.out.println("Web Form MAC secret is OK.");
+    });
+
+    // Load the BSB directory now for the same reason.
+    CompletableFuture<Void> gateway = step(startup, "gateway", () ->
+    {
+      if (RSAUDirectDebit.bsbDirectory != null)
+        System.out.println("BSB directory is OK.");
+      else
+        System.out.println("BSB_DIRECTORY_FILE is not set; BSBs will not be checked.");
+    });
+
+    // Finished by the consumer once it has caught up with the payment events published before this start.
+    Readiness.starting(PaymentStatusConsumer.READINESS_STEP);
+    CompletableFuture<Void> kafka = step(startup, "Kafka", () ->
+    {
+      System.out.println("Starting Kafka MessageProducer.");
+      MessageProducer.start("turnstile-audirectdebit-gw");
+      System.out.println("MessageProducer started.");
+      RSAUDirectDebit.paymentRequests.start();
+      RSAUDirectDebit.paymentStatusConsumer.start();
+    }, gateway);
+    Readiness.require("payment request sender", RSAUDirectDebit.paymentRequests::isHealthy);
 
-    // Start message producer
-    System.out.println("Starting Kafka MessageProducer.");
-    MessageProducer.start("turnstile-audirectdebit-gw");
-    System.out.println("MessageProducer started.");
+    CompletableFuture<Void> warmup = StartupWarmup.ITERATIONS <= 0 ? secret
+      : step(startup, "warm-up", () -> StartupWarmup.run(StartupWarmup.ITERATIONS), secret);
 
     HttpServer.addResourceClass(RSAUDirectDebit.class);
-    Set<String> roles = Sets.newHashSet(
-            "authenticated", // smile
-            "turnstile", // apps
-            "enduser"); // portal
-    Set<String> realms = Sets.newHashSet("smile", "soap", "portal", "apps");
-    HttpServer.start(realms, roles);
+    HttpServer.addResourceClass(BulkCaptureResource.class);
+    HttpServer.addResourceClass(MetricsResource.class);
+    HttpServer.addResourceClass(ReadinessResource.class);
+    HttpServer.start(REALMS, ROLES);
     System.out.println("HTTP server started.");
+    // Only now can /ready be asked, so the gateway can't be reported ready before it can take requests.
+    Readiness.allStarted();
+
+    try
+    {
+      CompletableFuture.allOf(secret, gateway, kafka, warmup).join();
+    }
+    catch (CompletionException e)
+    {
+      log.log(Level.SEVERE, "Startup failed", e);
+      System.exit(1);
+    }
+    startup.shutdown();
+    System.out.println("Gateway is ready, " + Readiness.readyUptimeMillis() + " ms after the JVM started.");
+  }
+
+  /** Startup work that may throw checked exceptions. */
+  private interface StartupStep
+  {
+    void run() throws Exception;
+  }
+
+  /** Runs a startup step once the steps it depends on have finished, and tracks it in {@link Readiness}. */
+  private static CompletableFuture<Void> step(ExecutorService executor, String name, StartupStep step,
+    CompletableFuture<?>... after)
+  {
+    Readiness.starting(name);
+    return CompletableFuture.allOf(after).thenRunAsync(() ->
+    {
+      long start = System.nanoTime();
+      try
+      {
+        step.run();
+      }
+      catch (Exception e)
+      {
+        throw new CompletionException(name + " failed", e);
+      }
+      Readiness.finished(name);
+      System.out.println("Startup step " + name + " took " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }, executor);
   }
 }
@@ -0,0 +1,23 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.secore.kafka.KafkaMessage;
+import com.inomial.secore.kafka.MessageProducer;
+
+import java.util.concurrent.Future;
+
+/** Destination for outbound Kafka messages.
+ *
+ * <p>In production this is always {@link #KAFKA}; the indirection exists so that tests and the load test can drive the
+ * message pipeline against an in-process stand-in when there's no broker available. */
+interface MessageSink
+{
+  /** Sends messages to Kafka via the secore {@link MessageProducer}, which must have been started. */
+  MessageSink KAFKA = MessageProducer::send;
+
+  /** Sends a message asynchronously.
+   * @param topic Kafka topic to publish to.
+   * @param key Partitioning key for the message.
+   * @param message Message to be sent.
+   * @return Future that completes once the broker has acknowledged the message. */
+  Future<?> send(String topic, String key, KafkaMessage message);
+}
@@ -0,0 +1,19 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/** Exposes {@link GatewayMetrics} for scraping by Prometheus. */
+@Path("/metrics")
+public class MetricsResource
+{
+  @GET
+  @Produces("text/plain; version=0.0.4; charset=utf-8")
+  public String metrics()
+  {
+    StringBuilder out = new StringBuilder(8192);
+    GatewayMetrics.writePrometheus(out);
+    return out.toString();
+  }
+}
@@ -0,0 +1,537 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.inomial.secore.kafka.KafkaMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/** Durable write-ahead outbox for payment request messages.
+ *
+ * <p>Accepted messages are appended to a log of fixed-size, memory-mapped segment files in a local directory, with a
+ * single sequential write per message. A background drainer reads the log in order, publishes the messages to Kafka
+ * in batches (see {@link BatchSender}), and records how far it has got in a checkpoint file once each batch has been
+ * acknowledged. Segments are deleted once they have been fully drained. If the microservice restarts, the drainer
+ * resumes from the checkpoint and re-publishes anything that hadn't been acknowledged; the drainer does the same,
+ * after a backoff, if it fails (for example because the checkpoint can't be written). While it's waiting to restart,
+ * {@link #isHealthy} is false and the gateway isn't reported ready.</p>
+ *
+ * <p>This decouples request latency from broker latency: while the broker is unavailable, messages accumulate on
+ * disk until {@link #MAX_SEGMENTS} segments are in use, after which new messages are rejected.</p>
+ *
+ * <p>Each record is laid out as:</p>
+ * <pre>
+ *   length   4 bytes  (length of the payload; 0 marks the end of the written part of a segment)
+ *   crc      4 bytes  (CRC-32 of the payload)
+ *   payload  2-byte key length, UTF-8 key, JSON-serialised {@link KafkaMessage}
+ * </pre>
+ *
+ * <p>By default records are written to the page cache only, which survives the microservice crashing but not the
+ * host losing power; set {@code PAYMENT_OUTBOX_FSYNC=true} to force each record to disk before it is acknowledged
+ * (at a considerable cost in latency).</p>
+ *
+ * <p>A record that fails its CRC check can't be trusted to say where the next one starts, so the rest of its segment
+ * is skipped: the writer moves on to a new segment if it's still writing that one, and the segment is kept as
+ * {@code <segment>.seg.corrupt} rather than deleted, for whatever it holds to be recovered by hand.</p> */
+class PaymentOutbox implements PaymentRequestQueue
+{
+  private static final Logger log = Logger.getLogger(PaymentOutbox.class.getName());
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  /** The message body is read back untyped, so decimals must stay {@link java.math.BigDecimal}s (rather than
+   * doubles) for amounts to be re-published exactly as they were submitted. */
+  private static final ObjectReader messageReader =
+    objectMapper.readerFor(KafkaMessage.class).with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+
+  /** Size of each segment file, in bytes. */
+  private static final int SEGMENT_SIZE =
+    Integer.parseInt(System.getenv().getOrDefault("PAYMENT_OUTBOX_SEGMENT_BYTES", String.valueOf(16 << 20)));
+
+  /** Maximum number of segment files on disk; once reached, new messages are rejected until the drainer catches up. */
+  private static final int MAX_SEGMENTS =
+    Integer.parseInt(System.getenv().getOrDefault("PAYMENT_OUTBOX_MAX_SEGMENTS", "64"));
+
+  /** Whether each record is forced to disk before {@link #submit} returns. */
+  private static final boolean FSYNC =
+    Boolean.parseBoolean(System.getenv().getOrDefault("PAYMENT_OUTBOX_FSYNC", "false"));
+
+  private static final long MAX_RESTART_BACKOFF_MS = 10_000;
+
+  private static final int HEADER_SIZE = 8;
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String QUARANTINE_SUFFIX = ".corrupt";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+
+  private final File dir;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final Stats stats = new Stats();
+  private final BatchSender batchSender;
+
+  // Writer state, guarded by "this".
+  private int writeSegment;
+  private MappedByteBuffer writeBuf;
+  private int writeOffset;
+  private final CRC32 crc = new CRC32();
+
+  /** Segment number (high 32 bits) and offset (low 32 bits) up to which records have been completely written. */
+  private final AtomicLong committed = new AtomicLong();
+
+  // Drainer state, only accessed by the drainer thread (once started).
+  private int readSegment;
+  private ByteBuffer readBuf;
+  private int readOffset;
+  /** Whether the rest of the current read segment was skipped because of a corrupt record. */
+  private boolean readSegmentCorrupt;
+  private volatile Thread drainer;
+  /** Whether the drainer is running, rather than waiting to restart after a failure. */
+  private volatile boolean drainerHealthy = true;
+
+  /** Segment that the drainer is currently reading (or will read first); published for the writer's capacity check. */
+  private volatile int readSegmentPublished;
+
+  PaymentOutbox(File dir, String topic, MessageSink sink)
+  {
+    this(dir, topic, sink, SEGMENT_SIZE, MAX_SEGMENTS);
+  }
+
+  PaymentOutbox(File dir, String topic, MessageSink sink, int segmentSize, int maxSegments)
+  {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    this.batchSender = new BatchSender(topic, sink, stats);
+    try
+    {
+      open();
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException("Unable to open payment outbox in " + dir, e);
+    }
+  }
+
+  /** Recovers the read position from the checkpoint and starts a fresh segment for writing. */
+  private void open() throws IOException
+  {
+    Files.createDirectories(dir.toPath());
+    int[] segments = listSegments();
+    int[] checkpoint = readCheckpoint();
+    if (checkpoint != null)
+    {
+      readSegment = checkpoint[0];
+      readOffset = checkpoint[1];
+    }
+    else
+    {
+      readSegment = segments.length > 0 ? segments[0] : 0;
+      readOffset = 0;
+      // So that the drainer can always restart from a checkpoint.
+      writeCheckpoint(readSegment, readOffset);
+    }
+    readSegmentPublished = readSegment;
+    for (int segment : segments)
+    {
+      if (segment < readSegment)
+        Files.deleteIfExists(segmentFile(segment).toPath());
+    }
+
+    // Never append to a segment left over from a previous run, in case its last record was only partly written.
+    int lastSegment = segments.length > 0 ? segments[segments.length - 1] : readSegment - 1;
+    synchronized (this)
+    {
+      startSegment(Math.max(lastSegment + 1, readSegment));
+    }
+    if (lastSegment >= readSegment)
+      log.info("Payment outbox will replay segments " + readSegment + " to " + lastSegment + " from offset "
+        + readOffset);
+  }
+
+  @Override
+  public synchronized void start()
+  {
+    if (drainer != null)
+      return;
+    drainer = new Thread(this::drain, "payment-outbox-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /** Stops the drainer thread and waits for it to finish. Anything it hadn't checkpointed is sent again by the next
+   * outbox opened on the same directory. */
+  void stop() throws InterruptedException
+  {
+    Thread thread;
+    synchronized (this)
+    {
+      thread = drainer;
+    }
+    if (thread == null)
+      return;
+    thread.interrupt();
+    thread.join();
+  }
+
+  @Override
+  public boolean submit(String key, KafkaMessage message)
+  {
+    byte[] payload;
+    try
+    {
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      byte[] messageBytes = objectMapper.writeValueAsBytes(message);
+      payload = new byte[2 + keyBytes.length + messageBytes.length];
+      payload[0] = (byte)(keyBytes.length >>> 8);
+      payload[1] = (byte)keyBytes.length;
+      System.arraycopy(keyBytes, 0, payload, 2, keyBytes.length);
+      System.arraycopy(messageBytes, 0, payload, 2 + keyBytes.length, messageBytes.length);
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException("Unable to serialise payment request message", e);
+    }
+
+    if (!append(payload))
+    {
+      stats.rejected.incrementAndGet();
+      return false;
+    }
+    stats.accepted.incrementAndGet();
+    Thread d = drainer;
+    if (d != null)
+      LockSupport.unpark(d);
+    return true;
+  }
+
+  private synchronized boolean append(byte[] payload)
+  {
+    int recordSize = HEADER_SIZE + payload.length;
+    if (recordSize > segmentSize)
+      throw new IllegalArgumentException("Payment request message is too large for the outbox: " + recordSize);
+    try
+    {
+      if (writeOffset + recordSize > segmentSize)
+      {
+        int liveSegmentsAfterRoll = writeSegment + 2 - readSegmentPublished;
+        if (liveSegmentsAfterRoll > maxSegments)
+          return false;
+        startSegment(writeSegment + 1);
+      }
+    }
+    catch (IOException e)
+    {
+      log.log(Level.SEVERE, "Unable to create payment outbox segment in " + dir, e);
+      return false;
+    }
+
+    crc.reset();
+    crc.update(payload, 0, payload.length);
+    writeBuf.position(writeOffset + HEADER_SIZE);
+    writeBuf.put(payload);
+    writeBuf.putInt(writeOffset + 4, (int)crc.getValue());
+    // The length is written last, so a reader never sees a partially written record as complete.
+    writeBuf.putInt(writeOffset, payload.length);
+    if (FSYNC)
+      writeBuf.force();
+    writeOffset += recordSize;
+    committed.set(position(writeSegment, writeOffset));
+    return true;
+  }
+
+  /** Moves the writer on to a new segment if it's still writing {@code segment}, so that no more records are
+   * written after a corrupt one. */
+  private synchronized void abandonSegment(int segment)
+  {
+    if (writeSegment != segment)
+      return;
+    try
+    {
+      startSegment(segment + 1);
+    }
+    catch (IOException e)
+    {
+      // The drainer waits for the writer to fill the segment and move on by itself.
+      log.log(Level.SEVERE, "Unable to create payment outbox segment in " + dir, e);
+    }
+  }
+
+  private void startSegment(int segment) throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(segmentFile(segment), "rw"))
+    {
+      raf.setLength(segmentSize);
+      writeBuf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+    writeSegment = segment;
+    writeOffset = 0;
+    committed.set(position(segment, 0));
+  }
+
+  @Override
+  public long queueDepth()
+  {
+    return Math.max(0, stats.accepted.get() - stats.messagesSent.get());
+  }
+
+  @Override
+  public Stats stats()
+  {
+    return stats;
+  }
+
+  @Override
+  public boolean isHealthy()
+  {
+    return drainerHealthy;
+  }
+
+  /** Drains the outbox until interrupted. If draining fails, waits with backoff and starts again from the last
+   * checkpoint, so a failed checkpoint write or segment read doesn't stop delivery for good. */
+  private void drain()
+  {
+    long backoffMs = 100;
+    while (!Thread.currentThread().isInterrupted())
+    {
+      try
+      {
+        drainFromCheckpoint();
+      }
+      catch (InterruptedException e)
+      {
+        // Anything not yet checkpointed will be replayed on restart.
+        return;
+      }
+      catch (IOException | RuntimeException e)
+      {
+        // Such as a ClosedByInterruptException from writing the checkpoint while being stopped.
+        if (Thread.currentThread().isInterrupted())
+          return;
+        // Start the backoff again if the drainer had been making progress since the last failure.
+        if (drainerHealthy)
+          backoffMs = 100;
+        drainerHealthy = false;
+        stats.senderFailures.incrementAndGet();
+        log.log(Level.SEVERE, "Payment outbox drainer failed; restarting from the last checkpoint in " + backoffMs
+          + "ms", e);
+        try
+        {
+          Thread.sleep(backoffMs);
+        }
+        catch (InterruptedException ie)
+        {
+          return;
+        }
+        backoffMs = Math.min(backoffMs * 2, MAX_RESTART_BACKOFF_MS);
+      }
+    }
+  }
+
+  private void drainFromCheckpoint() throws IOException, InterruptedException
+  {
+    int[] checkpoint = readCheckpoint();
+    if (checkpoint == null)
+      throw new IOException("Payment outbox checkpoint is missing from " + dir);
+    readSegment = checkpoint[0];
+    readOffset = checkpoint[1];
+    readSegmentPublished = readSegment;
+    readSegmentCorrupt = false;
+    openReadSegment();
+
+    List<BatchSender.Pending> batch = new ArrayList<>(PaymentRequestSubmitter.BATCH_SIZE);
+    while (!Thread.currentThread().isInterrupted())
+    {
+      boolean segmentExhausted = fillBatch(batch);
+      if (!batch.isEmpty())
+      {
+        batchSender.sendWithRetry(batch);
+        batch.clear();
+        writeCheckpoint(readSegment, readOffset);
+      }
+      if (segmentExhausted)
+        advanceSegment();
+      else if (batch.isEmpty())
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+      drainerHealthy = true;
+    }
+    throw new InterruptedException();
+  }
+
+  /** Reads records into the batch until it's full, the drainer has caught up with the writer, or the end of the
+   * current segment is reached. If the batch isn't full, waits up to {@link PaymentRequestSubmitter#LINGER_MS} once for
+   * more records to arrive.
+   * @return {@code true} if the end of the current segment has been reached and the writer has moved on. */
+  private boolean fillBatch(List<BatchSender.Pending> batch)
+  {
+    boolean lingered = false;
+    while (batch.size() < PaymentRequestSubmitter.BATCH_SIZE)
+    {
+      long c = committed.get();
+      int committedSegment = (int)(c >>> 32);
+      int committedOffset = (int)c;
+      if (readSegment == committedSegment && readOffset >= committedOffset)
+      {
+        if (batch.isEmpty() || lingered)
+          return false;
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(PaymentRequestSubmitter.LINGER_MS));
+        lingered = true;
+        continue;
+      }
+
+      BatchSender.Pending record = readRecord();
+      if (record == null)
+        return readSegment < committedSegment;
+      batch.add(record);
+    }
+    return false;
+  }
+
+  /** @return The next record from the current read position (advancing past it), or {@code null} if there are no
+   * more complete records in this segment. Records that can't be deserialised are logged and skipped; a corrupt
+   * record is logged once and the rest of the segment skipped. */
+  private BatchSender.Pending readRecord()
+  {
+    while (readBuf != null && readOffset + HEADER_SIZE <= readBuf.limit())
+    {
+      int length = readBuf.getInt(readOffset);
+      if (length <= 0 || readOffset + HEADER_SIZE + length > readBuf.limit())
+        return null;
+      int expectedCrc = readBuf.getInt(readOffset + 4);
+      byte[] payload = new byte[length];
+      ByteBuffer src = readBuf.duplicate();
+      src.position(readOffset + HEADER_SIZE);
+      src.get(payload);
+      CRC32 readCrc = new CRC32();
+      readCrc.update(payload, 0, length);
+      if ((int)readCrc.getValue() != expectedCrc)
+      {
+        log.severe("Corrupt record in payment outbox segment " + readSegment + " at offset " + readOffset
+          + "; skipping the rest of the segment and keeping it as " + segmentFile(readSegment) + QUARANTINE_SUFFIX);
+        readOffset = readBuf.limit();
+        readSegmentCorrupt = true;
+        abandonSegment(readSegment);
+        return null;
+      }
+      int recordOffset = readOffset;
+      readOffset += HEADER_SIZE + length;
+
+      int keyLength = (payload[0] & 0xff) << 8 | (payload[1] & 0xff);
+      String key = new String(payload, 2, keyLength, StandardCharsets.UTF_8);
+      try
+      {
+        KafkaMessage message = messageReader.readValue(Arrays.copyOfRange(payload, 2 + keyLength, length));
+        return new BatchSender.Pending(key, message);
+      }
+      catch (IOException e)
+      {
+        log.log(Level.SEVERE, "Discarding unreadable payment request " + key + " in payment outbox segment "
+          + readSegment + " at offset " + recordOffset, e);
+      }
+    }
+    return null;
+  }
+
+  /** Deletes the fully drained segment (or quarantines it, if it was corrupt) and moves on to the next one. */
+  private void advanceSegment() throws IOException
+  {
+    int drained = readSegment;
+    readSegment++;
+    readOffset = 0;
+    readSegmentPublished = readSegment;
+    writeCheckpoint(readSegment, 0);
+    File drainedFile = segmentFile(drained);
+    if (readSegmentCorrupt)
+    {
+      Files.move(drainedFile.toPath(), new File(dir, drainedFile.getName() + QUARANTINE_SUFFIX).toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+      readSegmentCorrupt = false;
+    }
+    else
+    {
+      Files.deleteIfExists(drainedFile.toPath());
+    }
+    openReadSegment();
+  }
+
+  private void openReadSegment() throws IOException
+  {
+    File file = segmentFile(readSegment);
+    if (!file.exists())
+    {
+      readBuf = null;
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      readBuf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private void writeCheckpoint(int segment, int offset) throws IOException
+  {
+    ByteBuffer buf = ByteBuffer.allocate(8);
+    buf.putInt(segment).putInt(offset).flip();
+    File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      channel.write(buf);
+      channel.force(false);
+    }
+    Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** @return Segment and offset recorded in the checkpoint file, or {@code null} if there's no checkpoint. */
+  private int[] readCheckpoint() throws IOException
+  {
+    File file = new File(dir, CHECKPOINT_FILE);
+    if (!file.exists())
+      return null;
+    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    if (buf.remaining() < 8)
+      return null;
+    return new int[] { buf.getInt(), buf.getInt() };
+  }
+
+  private int[] listSegments()
+  {
+    String[] names = dir.list((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (names == null)
+      return new int[0];
+    return Arrays.stream(names)
+      .mapToInt(name -> Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+      .sorted()
+      .toArray();
+  }
+
+  private File segmentFile(int segment)
+  {
+    return new File(dir, String.format("%010d", segment) + SEGMENT_SUFFIX);
+  }
+
+  private static long position(int segment, int offset)
+  {
+    return (long)segment << 32 | (offset & 0xffffffffL);
+  }
+}
@@ -0,0 +1,60 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.secore.kafka.KafkaMessage;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Accepts payment request messages from request threads and delivers them to Kafka in the background.
+ *
+ * <p>Two implementations are available: {@link PaymentRequestSubmitter} holds pending messages in memory, while
+ * {@link PaymentOutbox} writes them to a local write-ahead log first so they survive a broker outage or a restart.
+ * The outbox is used if {@code PAYMENT_OUTBOX_DIR} is set. */
+interface PaymentRequestQueue
+{
+  /** Counters describing the sender's throughput and latency since startup. */
+  class Stats
+  {
+    final AtomicLong accepted = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong messagesSent = new AtomicLong();
+    final AtomicLong failedAttempts = new AtomicLong();
+    /** Total time from starting to send a batch until it was fully acknowledged, in nanoseconds. */
+    final AtomicLong batchNanosTotal = new AtomicLong();
+    final AtomicLong batchNanosMax = new AtomicLong();
+    /** Times the background sender failed and had to be restarted. */
+    final AtomicLong senderFailures = new AtomicLong();
+  }
+
+  /** Creates the queue implementation selected by the environment.
+   * @param topic Kafka topic that messages are published to.
+   * @param sink Destination for the messages. */
+  static PaymentRequestQueue create(String topic, MessageSink sink)
+  {
+    String outboxDir = System.getenv("PAYMENT_OUTBOX_DIR");
+    if (outboxDir == null || outboxDir.isEmpty())
+      return new PaymentRequestSubmitter(topic, sink);
+    return new PaymentOutbox(new File(outboxDir), topic, sink);
+  }
+
+  /** Starts delivering messages in the background. */
+  void start();
+
+  /** Accepts a message for delivery, without waiting for the broker.
+   * @return {@code true} if the message was accepted; {@code false} if there's no room for it (in which case the
+   * caller should report a temporary failure). */
+  boolean submit(String key, KafkaMessage message);
+
+  /** @return Number of messages accepted but not yet acknowledged by the broker (may be approximate). */
+  long queueDepth();
+
+  Stats stats();
+
+  /** @return {@code false} while the background sender has failed and is waiting to restart, so accepted messages
+   * aren't being delivered. */
+  default boolean isHealthy()
+  {
+    return true;
+  }
+}
@@ -0,0 +1,149 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.secore.kafka.KafkaMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/** Hands payment request messages off to Kafka asynchronously, so that request threads don't wait on the broker.
+ *
+ * <p>Messages are placed on a bounded in-memory queue and a single sender thread drains the queue in batches: a batch
+ * is sent once it reaches {@link #BATCH_SIZE} messages or once the first message in it has waited
+ * {@link #LINGER_MS}, whichever comes first. The sender then waits for the broker to acknowledge the whole batch
+ * before starting the next one. If sending fails, the batch is retried with backoff; meanwhile the queue fills up and
+ * new messages are rejected immediately rather than blocking the caller.</p>
+ *
+ * <p>Messages that are still queued are lost if the microservice stops (see {@link #stop()}); see
+ * {@link PaymentOutbox} for a durable alternative.</p> */
+class PaymentRequestSubmitter implements PaymentRequestQueue
+{
+  private static final Logger log = Logger.getLogger(PaymentRequestSubmitter.class.getName());
+
+  /** Maximum number of messages waiting to be sent; further messages are rejected. */
+  private static final int QUEUE_CAPACITY =
+    Integer.parseInt(System.getenv().getOrDefault("PAYMENT_QUEUE_CAPACITY", "10000"));
+
+  /** Maximum number of messages sent in one batch. */
+  static final int BATCH_SIZE =
+    Integer.parseInt(System.getenv().getOrDefault("PAYMENT_BATCH_SIZE", "100"));
+
+  /** Maximum time that a message waits for its batch to fill before the batch is sent anyway. */
+  static final long LINGER_MS =
+    Long.parseLong(System.getenv().getOrDefault("PAYMENT_LINGER_MS", "5"));
+
+  private final BlockingQueue<BatchSender.Pending> queue;
+  private final int batchSize;
+  private final long lingerMs;
+  private final Stats stats = new Stats();
+  private final BatchSender batchSender;
+  private Thread sender;
+  /** Messages accepted but not acknowledged when the sender stopped. */
+  private volatile int unsent;
+
+  PaymentRequestSubmitter(String topic, MessageSink sink)
+  {
+    this(topic, sink, QUEUE_CAPACITY, BATCH_SIZE, LINGER_MS);
+  }
+
+  PaymentRequestSubmitter(String topic, MessageSink sink, int capacity, int batchSize, long lingerMs)
+  {
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.batchSize = batchSize;
+    this.lingerMs = lingerMs;
+    this.batchSender = new BatchSender(topic, sink, stats);
+  }
+
+  @Override
+  public synchronized void start()
+  {
+    if (sender != null)
+      return;
+    sender = new Thread(this::run, "payment-request-sender");
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /** Stops the sender thread, interrupting any batch being sent, and waits for it to finish.
+   * @return Number of accepted messages that weren't acknowledged by the broker (some of them may have been sent),
+   * which are lost. */
+  int stop() throws InterruptedException
+  {
+    Thread thread;
+    synchronized (this)
+    {
+      thread = sender;
+    }
+    if (thread == null)
+      return queue.size();
+    thread.interrupt();
+    thread.join();
+    return unsent;
+  }
+
+  @Override
+  public boolean submit(String key, KafkaMessage message)
+  {
+    if (queue.offer(new BatchSender.Pending(key, message)))
+    {
+      stats.accepted.incrementAndGet();
+      return true;
+    }
+    stats.rejected.incrementAndGet();
+    return false;
+  }
+
+  @Override
+  public long queueDepth()
+  {
+    return queue.size();
+  }
+
+  @Override
+  public Stats stats()
+  {
+    return stats;
+  }
+
+  private void run()
+  {
+    List<BatchSender.Pending> batch = new ArrayList<>(batchSize);
+    try
+    {
+      while (!Thread.currentThread().isInterrupted())
+      {
+        fillBatch(batch);
+        batchSender.sendWithRetry(batch);
+        batch.clear();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    unsent = batch.size() + queue.size();
+    log.info("Payment request sender stopped with " + unsent + " message(s) unsent.");
+  }
+
+  /** Blocks until at least one message is available, then waits up to the linger time for the batch to fill. */
+  private void fillBatch(List<BatchSender.Pending> batch) throws InterruptedException
+  {
+    batch.add(queue.take());
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+    while (batch.size() < batchSize)
+    {
+      if (queue.drainTo(batch, batchSize - batch.size()) > 0)
+        continue;
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0)
+        break;
+      BatchSender.Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null)
+        break;
+      batch.add(next);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.PaymentStatus;
+
+import java.math.BigDecimal;
+
+/** Kafka message body reporting that the status of a direct debit has changed after it was submitted, e.g. because
+ * the bank returned it. */
+class PaymentStatusChange
+{
+  /** Transfer ID of the original {@link com.inomial.cim.turnstile.DirectDebitPaymentRequest}. */
+  public String transferId;
+
+  public PaymentStatus status;
+
+  /** Amount that was returned. */
+  public BigDecimal amount;
+
+  /** Bank's return reason code, if the debit was returned. */
+  public String returnCode;
+
+  /** Human-readable description of the reason for the change. */
+  public String reason;
+}
@@ -0,0 +1,348 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inomial.cim.turnstile.PaymentStatus;
+import com.inomial.secore.kafka.KafkaMessage;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Keeps a {@link PaymentStatusIndex} up to date by consuming payment events from Kafka.
+ *
+ * <p>Every instance of the microservice reads all partitions of the topic itself (without a consumer group), since
+ * each one answers status queries from its own index. Only messages that this gateway published (with
+ * {@link RSAUDirectDebit#KAFKA_MESSAGE_SOURCE} as their source) are indexed, since other services publish to the
+ * same topic: a {@link PaymentStatusChange} updates the status of its transfer, and a
+ * {@link com.inomial.cim.turnstile.DirectDebitPaymentRequest} records the transfer as
+ * {@link PaymentStatus#PENDING}. Other messages are ignored. Entries are timestamped with the Kafka record time, so
+ * replayed messages age correctly.</p>
+ *
+ * <p>If {@code PAYMENT_STATUS_SNAPSHOT_FILE} is set, the index is saved there every
+ * {@link #SNAPSHOT_INTERVAL_MS} along with the offset reached in each partition. On startup the index is loaded from
+ * the snapshot and the topic is replayed from those offsets. Without a snapshot, only messages newer than the longer
+ * of the two TTLs are replayed, since older entries would be evicted straight away. {@link #isReady()} reports
+ * whether the replay has caught up with the end of the topic as it was at startup, which is also a
+ * {@link Readiness} step ({@link #READINESS_STEP}), so the gateway doesn't take transfers before it can recognise one
+ * that was submitted before a restart.</p>
+ *
+ * <p>The consumer connects to the brokers named by {@code KAFKA}, as the secore {@code MessageProducer} does, and
+ * takes its security settings from the environment; see {@link #consumerProperties}.</p> */
+class PaymentStatusConsumer
+{
+  private static final Logger log = Logger.getLogger(PaymentStatusConsumer.class.getName());
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  /** Prefix of the environment variables that configure Kafka clients other than the bootstrap servers, such as
+   * {@code KAFKA_SECURITY_PROTOCOL} for {@code security.protocol}. */
+  private static final String KAFKA_ENV_PREFIX = "KAFKA_";
+
+  /** Kafka client settings that may be taken from the environment. */
+  private static final String[] KAFKA_ENV_SETTINGS = { "security.protocol", "sasl.", "ssl." };
+
+  private static final String SNAPSHOT_FILE = System.getenv("PAYMENT_STATUS_SNAPSHOT_FILE");
+
+  private static final long SNAPSHOT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(
+    Long.parseLong(System.getenv().getOrDefault("PAYMENT_STATUS_SNAPSHOT_INTERVAL_SEC", "300")));
+
+  /** How long a settled entry is kept after its last update. */
+  private static final long SETTLED_TTL_MS = TimeUnit.SECONDS.toMillis(
+    Long.parseLong(System.getenv().getOrDefault("PAYMENT_STATUS_SETTLED_TTL_SEC", "86400")));
+
+  /** How long a pending entry is kept after its last update, in case its outcome is never reported. */
+  private static final long PENDING_TTL_MS = TimeUnit.SECONDS.toMillis(
+    Long.parseLong(System.getenv().getOrDefault("PAYMENT_STATUS_PENDING_TTL_SEC", String.valueOf(45 * 86400))));
+
+  /** Example message, serialised to find out which fields of the {@link KafkaMessage} envelope hold the source and
+   * the body, as secore doesn't document its JSON form. */
+  private static final JsonNode ENVELOPE_PROBE = objectMapper.valueToTree(new KafkaMessage(
+    RSAUDirectDebit.KAFKA_MESSAGE_SOURCE, RSAUDirectDebit.INOMIAL_MESSAGE_VERSION,
+    Collections.singletonMap("envelopeProbe", true)));
+
+  private static final String SOURCE_FIELD =
+    envelopeField(v -> v.isTextual() && v.asText().equals(RSAUDirectDebit.KAFKA_MESSAGE_SOURCE));
+
+  private static final String BODY_FIELD = envelopeField(v -> v.has("envelopeProbe"));
+
+  /** Name of the startup step, registered by {@link Main}, that finishes once the index is up to date. */
+  static final String READINESS_STEP = "payment status index";
+
+  private static final long EVICT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+  private static final long POLL_TIMEOUT_MS = 1000;
+
+  private final PaymentStatusIndex index;
+  private final String topic;
+  /** Offset of the next record to be applied, by partition; only accessed by the consumer thread. */
+  private final Map<Integer, Long> offsets = new HashMap<>();
+  private volatile boolean ready;
+  private Thread consumer;
+
+  PaymentStatusConsumer(PaymentStatusIndex index, String topic)
+  {
+    this.index = index;
+    this.topic = topic;
+  }
+
+  synchronized void start()
+  {
+    if (consumer != null)
+      return;
+    consumer = new Thread(this::run, "payment-status-consumer");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  /** Treats the index as up to date without consuming anything, for when payment requests go to a stand-in rather
+   * than Kafka (as in the load test), so there are no payment events to replay. */
+  void skipReplay()
+  {
+    ready = true;
+    Readiness.finished(READINESS_STEP);
+  }
+
+  /** @return {@code true} once the index reflects every message that was on the topic at startup. */
+  boolean isReady()
+  {
+    return ready;
+  }
+
+  private void run()
+  {
+    Properties props = consumerProperties(System.getenv());
+    while (!Thread.currentThread().isInterrupted())
+    {
+      try (KafkaConsumer<String, String> kafka = new KafkaConsumer<>(props))
+      {
+        consume(kafka);
+      }
+      catch (RuntimeException e)
+      {
+        log.log(Level.SEVERE, "Payment status consumer failed; restarting in 10s", e);
+        try
+        {
+          Thread.sleep(10_000);
+        }
+        catch (InterruptedException ie)
+        {
+          return;
+        }
+      }
+    }
+  }
+
+  /** @return Consumer settings for the brokers in {@code KAFKA} (default {@code kafka:9092}), with any security
+   * settings given as {@code KAFKA_}-prefixed environment variables (upper case, with {@code _} for {@code .}), for
+   * example {@code KAFKA_SECURITY_PROTOCOL}, {@code KAFKA_SASL_JAAS_CONFIG} or
+   * {@code KAFKA_SSL_TRUSTSTORE_LOCATION}. */
+  private static Properties consumerProperties(Map<String, String> env)
+  {
+    Properties props = new Properties();
+    // Same default as the microservice template in docker/entrypoint.sh.
+    props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, env.getOrDefault("KAFKA", "kafka:9092"));
+    for (Map.Entry<String, String> e : env.entrySet())
+    {
+      if (!e.getKey().startsWith(KAFKA_ENV_PREFIX))
+        continue;
+      String name = e.getKey().substring(KAFKA_ENV_PREFIX.length()).toLowerCase(Locale.ROOT).replace('_', '.');
+      for (String setting : KAFKA_ENV_SETTINGS)
+      {
+        if (name.startsWith(setting))
+          props.put(name, e.getValue());
+      }
+    }
+    props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+    props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+    props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+    return props;
+  }
+
+  private void consume(KafkaConsumer<String, String> kafka)
+  {
+    List<TopicPartition> partitions = new ArrayList<>();
+    for (PartitionInfo info : kafka.partitionsFor(topic))
+      partitions.add(new TopicPartition(topic, info.partition()));
+    kafka.assign(partitions);
+
+    if (offsets.isEmpty() && SNAPSHOT_FILE != null && new File(SNAPSHOT_FILE).exists())
+    {
+      try
+      {
+        offsets.putAll(index.readSnapshot(new File(SNAPSHOT_FILE)));
+        log.info("Loaded " + index.size() + " payment status(es) from snapshot " + SNAPSHOT_FILE);
+      }
+      catch (IOException e)
+      {
+        log.log(Level.WARNING, "Unable to load payment status snapshot " + SNAPSHOT_FILE
+          + "; replaying recent payment events instead", e);
+        offsets.clear();
+      }
+    }
+    List<TopicPartition> unseen = new ArrayList<>();
+    for (TopicPartition partition : partitions)
+    {
+      Long offset = offsets.get(partition.partition());
+      if (offset != null)
+        kafka.seek(partition, offset);
+      else
+        unseen.add(partition);
+    }
+    if (!unseen.isEmpty())
+      seekToReplayHorizon(kafka, unseen);
+    Map<TopicPartition, Long> startupEnd = kafka.endOffsets(partitions);
+
+    long lastEvict = System.currentTimeMillis();
+    long lastSnapshot = lastEvict;
+    while (!Thread.currentThread().isInterrupted())
+    {
+      for (ConsumerRecord<String, String> record : kafka.poll(POLL_TIMEOUT_MS))
+      {
+        apply(record);
+        offsets.put(record.partition(), record.offset() + 1);
+      }
+
+      long now = System.currentTimeMillis();
+      if (!ready && caughtUp(kafka, startupEnd))
+      {
+        int evicted = index.evict(now - SETTLED_TTL_MS, now - PENDING_TTL_MS);
+        ready = true;
+        Readiness.finished(READINESS_STEP);
+        log.info("Payment status index is up to date with " + index.size() + " entries (" + evicted + " evicted)");
+      }
+      if (now - lastEvict >= EVICT_INTERVAL_MS)
+      {
+        index.evict(now - SETTLED_TTL_MS, now - PENDING_TTL_MS);
+        lastEvict = now;
+      }
+      if (SNAPSHOT_FILE != null && ready && now - lastSnapshot >= SNAPSHOT_INTERVAL_MS)
+      {
+        writeSnapshot();
+        lastSnapshot = now;
+      }
+    }
+  }
+
+  /** Seeks to the first message that's recent enough for its entry to survive eviction, or to the end of the
+   * partition if there isn't one. */
+  private static void seekToReplayHorizon(KafkaConsumer<String, String> kafka, List<TopicPartition> partitions)
+  {
+    long horizon = System.currentTimeMillis() - Math.max(SETTLED_TTL_MS, PENDING_TTL_MS);
+    Map<TopicPartition, Long> timestamps = new HashMap<>();
+    for (TopicPartition partition : partitions)
+      timestamps.put(partition, horizon);
+    Map<TopicPartition, OffsetAndTimestamp> found = kafka.offsetsForTimes(timestamps);
+    for (TopicPartition partition : partitions)
+    {
+      OffsetAndTimestamp offset = found.get(partition);
+      if (offset != null)
+        kafka.seek(partition, offset.offset());
+      else
+        kafka.seekToEnd(Collections.singleton(partition));
+    }
+  }
+
+  private static boolean caughtUp(KafkaConsumer<String, String> kafka, Map<TopicPartition, Long> end)
+  {
+    for (Map.Entry<TopicPartition, Long> e : end.entrySet())
+    {
+      if (kafka.position(e.getKey()) < e.getValue())
+        return false;
+    }
+    return true;
+  }
+
+  /** @return Name of the field of {@link #ENVELOPE_PROBE} whose value matches. */
+  private static String envelopeField(Predicate<JsonNode> matches)
+  {
+    for (Iterator<Map.Entry<String, JsonNode>> i = ENVELOPE_PROBE.fields(); i.hasNext(); )
+    {
+      Map.Entry<String, JsonNode> field = i.next();
+      if (matches.test(field.getValue()))
+        return field.getKey();
+    }
+    throw new IllegalStateException("Unrecognised KafkaMessage serialisation: " + ENVELOPE_PROBE);
+  }
+
+  private void apply(ConsumerRecord<String, String> record)
+  {
+    JsonNode message;
+    try
+    {
+      message = objectMapper.readTree(record.value());
+    }
+    catch (IOException | RuntimeException e)
+    {
+      return;
+    }
+    if (message == null || !RSAUDirectDebit.KAFKA_MESSAGE_SOURCE.equals(message.path(SOURCE_FIELD).asText(null)))
+      return;
+    JsonNode body = message.get(BODY_FIELD);
+    if (body == null || !body.hasNonNull("transferId"))
+      return;
+    PaymentStatus status;
+    UUID transferId;
+    try
+    {
+      transferId = UUID.fromString(body.get("transferId").asText());
+      if (isStatusChange(body))
+        status = PaymentStatus.valueOf(body.get("status").asText());
+      else if (isPaymentRequest(body))
+        status = PaymentStatus.PENDING;
+      else
+        return;
+    }
+    catch (IllegalArgumentException e)
+    {
+      log.fine("Ignoring payment event at " + record.topic() + "/" + record.partition() + "@" + record.offset()
+        + ": " + e.getMessage());
+      return;
+    }
+    index.put(transferId, status, record.timestamp() > 0 ? record.timestamp() : System.currentTimeMillis());
+  }
+
+  /** @return Whether a message body is a {@link PaymentStatusChange}. */
+  private static boolean isStatusChange(JsonNode body)
+  {
+    return body.hasNonNull("status") && !body.has("bankAccount");
+  }
+
+  /** @return Whether a message body is a {@link com.inomial.cim.turnstile.DirectDebitPaymentRequest}. */
+  private static boolean isPaymentRequest(JsonNode body)
+  {
+    return body.hasNonNull("bankAccount") && body.has("amount");
+  }
+
+  private void writeSnapshot()
+  {
+    long start = System.nanoTime();
+    try
+    {
+      index.writeSnapshot(new File(SNAPSHOT_FILE), offsets);
+      log.fine("Wrote payment status snapshot in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+    catch (IOException e)
+    {
+      log.log(Level.WARNING, "Unable to write payment status snapshot " + SNAPSHOT_FILE, e);
+    }
+  }
+}
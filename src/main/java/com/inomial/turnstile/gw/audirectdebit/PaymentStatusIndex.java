@@ -0,0 +1,357 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.PaymentStatus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** In-memory index of the latest known status of each direct debit, keyed by transfer ID.
+ *
+ * <p>Entries are held in parallel primitive arrays forming an open-addressing hash table with linear probing, so each
+ * entry costs a few dozen bytes and no objects, and a lookup is a handful of array reads. Deleted entries are removed
+ * with backward-shift deletion rather than tombstones, so lookups stay short however many entries have been
+ * evicted.</p>
+ *
+ * <p>{@link #evict} removes settled entries (anything other than {@link PaymentStatus#PENDING}) that haven't changed
+ * for a given time, since Turnstile stops polling once a debit has settled, and pending entries after a much longer
+ * time.</p>
+ *
+ * <p>The index can be saved to and restored from a snapshot file along with the Kafka offsets it reflects; see
+ * {@link PaymentStatusConsumer}. Reads may happen on any thread; updates are serialised by a read/write lock.</p> */
+class PaymentStatusIndex
+{
+  private static final int SNAPSHOT_MAGIC = 0x50534958; // "PSIX"
+  private static final int SNAPSHOT_VERSION = 1;
+
+  private static final int MIN_CAPACITY = 1024;
+  private static final byte EMPTY = -1;
+
+  private static final PaymentStatus[] STATUSES = PaymentStatus.values();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Hash table, guarded by "lock". A slot is in use if its status isn't EMPTY.
+  private long[] keyHi;
+  private long[] keyLo;
+  private byte[] status;
+  private long[] updatedMillis;
+  private int size;
+
+  PaymentStatusIndex()
+  {
+    allocate(MIN_CAPACITY);
+  }
+
+  /** @return Latest known status of a transfer, or {@code null} if it isn't in the index. */
+  PaymentStatus get(UUID transferId)
+  {
+    long hi = transferId.getMostSignificantBits();
+    long lo = transferId.getLeastSignificantBits();
+    lock.readLock().lock();
+    try
+    {
+      int slot = find(hi, lo);
+      return slot < 0 ? null : STATUSES[status[slot]];
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Records the status of a transfer, replacing any previous status. */
+  void put(UUID transferId, PaymentStatus newStatus, long nowMillis)
+  {
+    long hi = transferId.getMostSignificantBits();
+    long lo = transferId.getLeastSignificantBits();
+    lock.writeLock().lock();
+    try
+    {
+      insert(hi, lo, (byte)newStatus.ordinal(), nowMillis);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes settled entries last updated before {@code settledCutoffMillis}, and pending entries last updated before
+   * {@code pendingCutoffMillis}.
+   * @return Number of entries removed. */
+  int evict(long settledCutoffMillis, long pendingCutoffMillis)
+  {
+    byte pending = (byte)PaymentStatus.PENDING.ordinal();
+    int removed = 0;
+    lock.writeLock().lock();
+    try
+    {
+      int slot = 0;
+      while (slot < status.length)
+      {
+        byte s = status[slot];
+        long cutoff = s == pending ? pendingCutoffMillis : settledCutoffMillis;
+        if (s != EMPTY && updatedMillis[slot] < cutoff)
+        {
+          // Another entry may be shifted into this slot, so look at it again.
+          remove(slot);
+          removed++;
+        }
+        else
+        {
+          slot++;
+        }
+      }
+      int capacity = capacityFor(size);
+      if (capacity < status.length / 4)
+        rehash(capacity);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+    return removed;
+  }
+
+  int size()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return size;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return Number of slots in the hash table. */
+  int capacity()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return status.length;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Writes the index and the Kafka offsets that it reflects to a snapshot file, replacing it atomically.
+   *
+   * <p>The entries are copied under the read lock and written after it's released, so updates only wait for the copy
+   * and not for the disk.</p> */
+  void writeSnapshot(File file, Map<Integer, Long> offsets) throws IOException
+  {
+    long[] copyHi;
+    long[] copyLo;
+    byte[] copyStatus;
+    long[] copyUpdated;
+    lock.readLock().lock();
+    try
+    {
+      copyHi = new long[size];
+      copyLo = new long[size];
+      copyStatus = new byte[size];
+      copyUpdated = new long[size];
+      int entry = 0;
+      for (int slot = 0; slot < status.length; slot++)
+      {
+        if (status[slot] == EMPTY)
+          continue;
+        copyHi[entry] = keyHi[slot];
+        copyLo[entry] = keyLo[slot];
+        copyStatus[entry] = status[slot];
+        copyUpdated[entry] = updatedMillis[slot];
+        entry++;
+      }
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)))
+    {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      // Statuses are stored by ordinal, so record the names in case the enum changes between versions.
+      out.writeInt(STATUSES.length);
+      for (PaymentStatus s : STATUSES)
+        out.writeUTF(s.name());
+      out.writeInt(offsets.size());
+      for (Map.Entry<Integer, Long> e : offsets.entrySet())
+      {
+        out.writeInt(e.getKey());
+        out.writeLong(e.getValue());
+      }
+      out.writeInt(copyStatus.length);
+      for (int entry = 0; entry < copyStatus.length; entry++)
+      {
+        out.writeLong(copyHi[entry]);
+        out.writeLong(copyLo[entry]);
+        out.writeByte(copyStatus[entry]);
+        out.writeLong(copyUpdated[entry]);
+      }
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Replaces the contents of the index with a snapshot.
+   * @return Kafka offsets (by partition) that the snapshot reflects. */
+  Map<Integer, Long> readSnapshot(File file) throws IOException
+  {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+    {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+        throw new IOException("Unrecognised payment status snapshot format in " + file);
+      byte[] statusMap = new byte[in.readInt()];
+      for (int i = 0; i < statusMap.length; i++)
+      {
+        String name = in.readUTF();
+        statusMap[i] = EMPTY;
+        for (PaymentStatus s : STATUSES)
+        {
+          if (s.name().equals(name))
+            statusMap[i] = (byte)s.ordinal();
+        }
+      }
+      int partitions = in.readInt();
+      Map<Integer, Long> offsets = new HashMap<>();
+      for (int i = 0; i < partitions; i++)
+        offsets.put(in.readInt(), in.readLong());
+
+      int entries = in.readInt();
+      lock.writeLock().lock();
+      try
+      {
+        allocate(capacityFor(entries));
+        for (int i = 0; i < entries; i++)
+        {
+          long hi = in.readLong();
+          long lo = in.readLong();
+          byte s = statusMap[in.readByte()];
+          long updated = in.readLong();
+          if (s != EMPTY)
+            insert(hi, lo, s, updated);
+        }
+      }
+      finally
+      {
+        lock.writeLock().unlock();
+      }
+      return offsets;
+    }
+  }
+
+  private int find(long hi, long lo)
+  {
+    int mask = status.length - 1;
+    for (int slot = hash(hi, lo) & mask; status[slot] != EMPTY; slot = (slot + 1) & mask)
+    {
+      if (keyHi[slot] == hi && keyLo[slot] == lo)
+        return slot;
+    }
+    return -1;
+  }
+
+  private void insert(long hi, long lo, byte s, long updated)
+  {
+    if ((size + 1) * 4L > status.length * 3L)
+      rehash(status.length * 2);
+    int mask = status.length - 1;
+    int slot = hash(hi, lo) & mask;
+    while (status[slot] != EMPTY && (keyHi[slot] != hi || keyLo[slot] != lo))
+      slot = (slot + 1) & mask;
+    if (status[slot] == EMPTY)
+    {
+      keyHi[slot] = hi;
+      keyLo[slot] = lo;
+      size++;
+    }
+    status[slot] = s;
+    updatedMillis[slot] = updated;
+  }
+
+  /** Empties a slot, shifting back any later entries in the same probe sequence so they remain reachable. */
+  private void remove(int slot)
+  {
+    int mask = status.length - 1;
+    int gap = slot;
+    for (int next = (gap + 1) & mask; status[next] != EMPTY; next = (next + 1) & mask)
+    {
+      int home = hash(keyHi[next], keyLo[next]) & mask;
+      // The entry can move into the gap only if its home slot isn't cyclically within (gap, next].
+      boolean homeBetween = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+      if (homeBetween)
+        continue;
+      keyHi[gap] = keyHi[next];
+      keyLo[gap] = keyLo[next];
+      status[gap] = status[next];
+      updatedMillis[gap] = updatedMillis[next];
+      gap = next;
+    }
+    status[gap] = EMPTY;
+    size--;
+  }
+
+  private void rehash(int capacity)
+  {
+    long[] oldHi = keyHi;
+    long[] oldLo = keyLo;
+    byte[] oldStatus = status;
+    long[] oldUpdated = updatedMillis;
+    allocate(capacity);
+    for (int slot = 0; slot < oldStatus.length; slot++)
+    {
+      if (oldStatus[slot] != EMPTY)
+        insert(oldHi[slot], oldLo[slot], oldStatus[slot], oldUpdated[slot]);
+    }
+  }
+
+  private void allocate(int capacity)
+  {
+    keyHi = new long[capacity];
+    keyLo = new long[capacity];
+    status = new byte[capacity];
+    updatedMillis = new long[capacity];
+    Arrays.fill(status, EMPTY);
+    size = 0;
+  }
+
+  /** @return Power-of-two table size that holds the given number of entries at no more than half full. */
+  private static int capacityFor(int entries)
+  {
+    int capacity = MIN_CAPACITY;
+    while (capacity < entries * 2L)
+      capacity <<= 1;
+    return capacity;
+  }
+
+  /** @return Hash of a transfer ID's bits; an entry's home slot is this modulo the capacity. */
+  static int hash(long hi, long lo)
+  {
+    long h = hi ^ Long.rotateLeft(lo, 32);
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int)h;
+  }
+}
@@ -0,0 +1,159 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.turnstile.gw.common.ParseUtil;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+
+/** Read-only view of the arguments in a URL query string, tokenised in a single pass.
+ *
+ * <p>Each {@code name=value} pair is recorded as offsets into the original string; values are only URL-decoded when
+ * they are actually read (and only if they contain escape characters at all). This avoids
+ * rescanning and decoding the whole query string for every argument that's looked up, as repeated calls to
+ * {@link ParseUtil#getQueryArgValue(String, String)} would.</p>
+ *
+ * <p>Only the common case (the argument occurs exactly once, no argument name needs decoding, and the value decodes
+ * cleanly) is handled here. Anything else - a missing or duplicated argument, an argument without a value, an escaped
+ * name, or a malformed escape sequence - is passed through to {@link ParseUtil} against the original query string, so
+ * the results and exceptions in those cases are exactly the same as calling {@code ParseUtil} directly.</p> */
+class QueryArgs
+{
+  /** Offsets of each argument, four per argument: name start, name end, value start, value end.
+   * Value start is -1 if the argument has no '=' separator. */
+  private int[] slices = new int[4 * 8];
+  private int count;
+  /** Whether any argument name contains escape characters. */
+  private boolean escapedNames;
+  private final String query;
+  /** Query string as given, possibly {@code null}, for passing to {@code ParseUtil}. */
+  private final String original;
+
+  private QueryArgs(String query)
+  {
+    this.original = query;
+    this.query = query == null ? "" : query;
+    tokenise();
+  }
+
+  /** Tokenises a URL query string (without the leading '?'). */
+  static QueryArgs parse(String query)
+  {
+    return new QueryArgs(query);
+  }
+
+  private void tokenise()
+  {
+    int len = query.length();
+    int start = 0;
+    while (start <= len)
+    {
+      int end = query.indexOf('&', start);
+      if (end < 0)
+        end = len;
+      if (end > start)
+      {
+        int eq = query.indexOf('=', start);
+        if (eq < 0 || eq > end)
+          addSlice(start, end, -1, -1);
+        else
+          addSlice(start, eq, eq + 1, end);
+      }
+      start = end + 1;
+    }
+  }
+
+  private void addSlice(int nameStart, int nameEnd, int valueStart, int valueEnd)
+  {
+    int i = count * 4;
+    if (i + 4 > slices.length)
+      slices = Arrays.copyOf(slices, slices.length * 2);
+    slices[i] = nameStart;
+    slices[i + 1] = nameEnd;
+    slices[i + 2] = valueStart;
+    slices[i + 3] = valueEnd;
+    count++;
+    escapedNames |= needsDecoding(nameStart, nameEnd);
+  }
+
+  /** Equivalent to {@link ParseUtil#getQueryArgValue(String, String)} on the original query string. */
+  String getValue(String name)
+  {
+    int i = find(name);
+    if (i < 0)
+      return ParseUtil.getQueryArgValue(original, name);
+    String value = decode(slices[i + 2], slices[i + 3]);
+    return (value != null) ? value : ParseUtil.getQueryArgValue(original, name);
+  }
+
+  /** Equivalent to {@link ParseUtil#getLongQueryArg(String, String)} on the original query string. */
+  long getLong(String name)
+  {
+    int i = find(name);
+    if (i >= 0)
+    {
+      String value = decode(slices[i + 2], slices[i + 3]);
+      if (value != null)
+      {
+        try
+        {
+          return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+          // Fall through, so ParseUtil reports the error in the usual manner.
+        }
+      }
+    }
+    return ParseUtil.getLongQueryArg(original, name);
+  }
+
+  /** @return Offset into {@link #slices} of the only well-formed argument with the given name, or -1 if the argument
+   * is missing, duplicated or has no value, or if any name is escaped. How {@code ParseUtil} matches an escaped name
+   * (or one with a malformed escape) against the one asked for is left to it. */
+  private int find(String name)
+  {
+    if (escapedNames)
+      return -1;
+    int found = -1;
+    for (int i = 0; i < count * 4; i += 4)
+    {
+      int start = slices[i];
+      int end = slices[i + 1];
+      if (end - start == name.length() && query.regionMatches(start, name, 0, name.length()))
+      {
+        if (found >= 0 || slices[i + 2] < 0)
+          return -1;
+        found = i;
+      }
+    }
+    return found;
+  }
+
+  private boolean needsDecoding(int start, int end)
+  {
+    for (int i = start; i < end; i++)
+    {
+      char c = query.charAt(i);
+      if (c == '%' || c == '+')
+        return true;
+    }
+    return false;
+  }
+
+  /** @return The URL-decoded substring, or {@code null} if it contains a malformed escape sequence. */
+  private String decode(int start, int end)
+  {
+    String raw = query.substring(start, end);
+    if (!needsDecoding(start, end))
+      return raw;
+    try
+    {
+      return URLDecoder.decode(raw, "UTF-8");
+    }
+    catch (IllegalArgumentException | UnsupportedEncodingException e)
+    {
+      return null;
+    }
+  }
+}
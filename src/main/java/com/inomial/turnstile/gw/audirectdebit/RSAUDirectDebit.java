@@ -13,8 +13,8 @@ import com.inomial.secore.kafka.KafkaMessage;
 import com.inomial.secore.kafka.MessageProducer;
 import com.inomial.secore.scope.RequestScope;
 import com.inomial.turnstile.api.status.CaptureStatus;
-import com.inomial.turnstile.gw.common.ConfigUnmarshaller;
-import com.inomial.turnstile.gw.common.ParseUtil;
+import com.inomial.turnstile.gw.audirectdebit.GatewayMetrics.Operation;
+import com.inomial.turnstile.gw.audirectdebit.GatewayMetrics.Phase;
 import com.inomial.turnstile.gw.common.Results;
 import com.inomial.turnstile.gw.common.URLInterpolator;
 import com.inomial.turnstile.gw.common.ValidationHelper;
@@ -35,6 +35,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.lf5.LogLevel;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ServiceUnavailableException;
 import javax.ws.rs.core.Application;
 import javax.ws.rs.core.Context;
 import java.time.Instant;
@@ -51,19 +53,19 @@ public class RSAUDirectDebit extends Application implements TurnstileGateway
   private static final ObjectMapper objectMapper = new ObjectMapper();
 
   /** <code>{gw}</code> substitution code for this gateway */
-  private static final String GW = "audirectdebit";
+  static final String GW = "audirectdebit";
 
   /** Default web form submission timeout, in seconds. */
   private static final int DEFAULT_WEB_FORM_TIMEOUT_SEC = 900; // 15min
 
   /** Version number of Kafka messages that we generate */
-  private static final int INOMIAL_MESSAGE_VERSION = 1;
+  static final int INOMIAL_MESSAGE_VERSION = 1;
 
   /** Kakfa Topic that payment request messages are sent on */
-  private static final String PAYMENT_REQUEST_TOPIC = "petal.event";
+  static final String PAYMENT_REQUEST_TOPIC = "petal.event";
 
   /** Message source that we'll post Kafka messages as */
-  private static final String KAFKA_MESSAGE_SOURCE = "turnstile-audirectdebit-gw";
+  static final String KAFKA_MESSAGE_SOURCE = "turnstile-audirectdebit-gw";
 
   @Context
   private HttpServletRequest httpServletRequest;
@@ -83,13 +85,63 @@ public class RSAUDirectDebit extends Application implements TurnstileGateway
 
     @JsonPropertyDescription("Web form data entry timeout, in seconds.")
     public int webFormTimeoutSec = DEFAULT_WEB_FORM_TIMEOUT_SEC;
+
+    @JsonPropertyDescription("Whether the hint for a captured bank account also names its institution and branch, "
+      + "as in \"062XXXXXX789 (CBA Sydney)\", when BSBs are checked against a BSB directory.")
+    public boolean hintShowsBranch;
+
+    @JsonPropertyDescription("Sustained web form requests per second allowed for this tenant; 0 for no limit.")
+    public double webFormRatePerSec = AdmissionControl.DEFAULT_TENANT_RATE;
+
+    @JsonPropertyDescription("Web form requests this tenant may make at once above its sustained rate.")
+    public int webFormBurst = AdmissionControl.DEFAULT_TENANT_BURST;
+
+    @JsonPropertyDescription("Sustained web form requests per second allowed from one end-user IP address; "
+      + "0 for no limit.")
+    public double webFormRatePerSecPerIp = AdmissionControl.DEFAULT_IP_RATE;
+
+    @JsonPropertyDescription("Web form requests one end-user IP address may make at once above its sustained rate.")
+    public int webFormBurstPerIp = AdmissionControl.DEFAULT_IP_BURST;
   }
 
+  /** Where payment request messages are sent: always Kafka, except that the load test swaps in a stand-in before it
+   * starts {@link #paymentRequests}. */
+  static volatile MessageSink messageSink = MessageSink.KAFKA;
+
+  /** Queues direct debit payment requests for sending to Kafka. */
+  static final PaymentRequestQueue paymentRequests = PaymentRequestQueue.create(PAYMENT_REQUEST_TOPIC,
+    (topic, key, message) -> messageSink.send(topic, key, message));
+
+  /** Latest known status of each direct debit, for answering status queries. */
+  static final PaymentStatusIndex paymentStatuses = new PaymentStatusIndex();
+
+  /** Keeps {@link #paymentStatuses} up to date from payment events on Kafka. */
+  static final PaymentStatusConsumer paymentStatusConsumer =
+    new PaymentStatusConsumer(paymentStatuses, PAYMENT_REQUEST_TOPIC);
+
+  /** Directory used to check BSBs before bank account details are tokenised, or {@code null} if not configured. */
+  static final BsbDirectory bsbDirectory = BsbDirectory.fromEnvironment();
+
+  /** Unmarshalled gateway configurations, shared across requests. */
+  static final ConfigCache<Config> configCache = new ConfigCache<>(Config.class);
+
+  /** Results of recent transfer requests, so that retries don't submit the same debit twice. */
+  static final TransferDedupeCache recentTransfers = new TransferDedupeCache();
+
+  /** Captured-form HMACs that have already been accepted, so each form can only be submitted once. */
+  static final HmacReplayFilter submittedForms = HmacReplayFilter.fromEnvironment();
+
+  /** Limits the rate of web form requests from each tenant and end-user. */
+  static final AdmissionControl admissionControl = new AdmissionControl();
+
+  /** Limits concurrent gateway operations of each kind, when enabled with {@code GATEWAY_LIMITS}. */
+  static final GatewayExecutor executor = new GatewayExecutor();
 
 
   @Override
   public WebFormResult getCPPaymentUrl(CppTransferRequest transferRequest)
   {
+    GatewayMetrics.start(Operation.GET_CP_PAYMENT_URL).finish(WebFormStatus.OPERATION_NOT_SUPPORTED);
     return Results.webFormFailed(WebFormStatus.OPERATION_NOT_SUPPORTED,
       "Card-present payments are not implemented in turnstile-audirectdebit-gw.");
   }
@@ -97,30 +149,94 @@ public class RSAUDirectDebit extends Application implements TurnstileGateway
   @Override
   public TransferResult queryPaymentStatus(CppQueryRequest queryRequest)
   {
-    return Results.transferFailed(PaymentStatus.OPERATION_NOT_SUPPORTED,
-      "Card-present payments are not implemented in turnstile-audirectdebit-gw.");
+    GatewayMetrics.Timer timer = GatewayMetrics.start(Operation.QUERY_PAYMENT_STATUS);
+    try
+    {
+      TransferResult result = doQueryPaymentStatus(queryRequest);
+      timer.finish(result.status);
+      return result;
+    }
+    catch (RuntimeException e)
+    {
+      timer.fail(e);
+      throw e;
+    }
+  }
+
+  private TransferResult doQueryPaymentStatus(CppQueryRequest queryRequest)
+  {
+    return RequestScope.enterScope(httpServletRequest, () ->
+    {
+      if (queryRequest.transferId == null)
+        return Results.transferFailed(PaymentStatus.INVALID_REQUEST, "transferId is required");
+
+      // Answered entirely from the local index, which is kept up to date from Kafka.
+      PaymentStatus status = paymentStatuses.get(queryRequest.transferId);
+      if (status == null)
+      {
+        if (!paymentStatusConsumer.isReady())
+          return Results.transferFailed(PaymentStatus.TIMED_OUT,
+            "Payment status index is still being rebuilt; please retry later.");
+        return Results.transferFailed(PaymentStatus.INVALID_REQUEST,
+          "No direct debit found with transferId " + queryRequest.transferId);
+      }
+
+      TransferResult result = new TransferResult();
+      result.status = status;
+      return result;
+    });
   }
 
   @Override
   public WebFormResult getCaptureUrl(TokeniseRequest tokeniseRequest)
   {
-    return RequestScope.enterScope(httpServletRequest, () -> 
+    GatewayMetrics.Timer timer = GatewayMetrics.start(Operation.GET_CAPTURE_URL);
+    try
+    {
+      WebFormResult result =
+        executor.call(Operation.GET_CAPTURE_URL, () -> doGetCaptureUrl(httpServletRequest, tokeniseRequest));
+      timer.finish("SUCCESS");
+      return result;
+    }
+    catch (RuntimeException e)
+    {
+      timer.fail(e);
+      throw e;
+    }
+  }
+
+  private WebFormResult doGetCaptureUrl(HttpServletRequest request, TokeniseRequest tokeniseRequest)
+  {
+    GatewayMetrics.Timer timer = GatewayMetrics.startPhases(Operation.GET_CAPTURE_URL);
+    return RequestScope.enterScope(request, () ->
     {
-      log.info("Received request for card capture URL: tid=" + RequestScope.getTid() 
-        + ", tokeniseRequest=" + tokeniseRequest);
+      // Turn away tenants over their limits before doing anything else.
+      admissionControl.admit(RequestScope.getTid(), tokeniseRequest.endUserIpAddress);
+      timer.phase(Phase.ADMISSION);
+      RequestLog.info(log, "Received request for card capture URL: tid={0}, accountId={1}, paymentMethodId={2}",
+        RequestScope.getTid(), tokeniseRequest.accountId, tokeniseRequest.paymentMethodId);
       ValidationHelper.validateGetCaptureUrlArgs(tokeniseRequest);
-      Config config = ConfigUnmarshaller.unmarshal(tokeniseRequest, Config.class);
+      Config config = configCache.get(tokeniseRequest);
+      admissionControl.configure(RequestScope.getTid(), tokeniseRequest.endUserIpAddress, config);
+      // Warn now, rather than when the end-user submits the form, if it will time out sooner than configured.
+      submittedForms.timeoutSec(config.webFormTimeoutSec);
+      timer.phase(Phase.CONFIG);
       
       // Ensure that only the end-user that requested this form can be the one that submits the token to us.
       WebFormMac.HmacTimestamp authMac = WebFormMac.createCaptureFormHmac(tokeniseRequest);
+      timer.phase(Phase.HMAC);
       
-      String redirectUrl = URLInterpolator.forCardCaptureUrl(config.tokenCaptureUrl, GW, httpServletRequest)
-        .addQueryArg("hmac", authMac.hmac)
-        .addQueryArg("fct", authMac.formCreationTime.toEpochMilli())
-        .addQueryArgIfNotNull("prevStatus", tokeniseRequest.prevStatus)
-        .addBase64QueryArg("action", tokeniseRequest.returnUrl)
-        .render();
-      log.info("Redirecting to self-hosted card present payment page at: " + redirectUrl);
+      long fct = authMac.formCreationTime.toEpochMilli();
+      String redirectUrl = CaptureUrlTemplate.render(config.tokenCaptureUrl, authMac.hmac, fct,
+        tokeniseRequest.prevStatus, tokeniseRequest.returnUrl, () ->
+          URLInterpolator.forCardCaptureUrl(config.tokenCaptureUrl, GW, request)
+            .addQueryArg("hmac", authMac.hmac)
+            .addQueryArg("fct", fct)
+            .addQueryArgIfNotNull("prevStatus", tokeniseRequest.prevStatus)
+            .addBase64QueryArg("action", tokeniseRequest.returnUrl)
+            .render());
+      timer.phase(Phase.URL_RENDER);
+      RequestLog.info(log, "Redirecting to self-hosted card present payment page at: {0}", redirectUrl);
           
       return Results.webFormSuccess(redirectUrl);
     });
@@ -129,35 +245,81 @@ public class RSAUDirectDebit extends Application implements TurnstileGateway
   @Override
   public CaptureResult queryCardCapture(CaptureQueryRequest queryRequest)
   {
-    return RequestScope.enterScope(httpServletRequest, () ->
+    GatewayMetrics.Timer timer = GatewayMetrics.start(Operation.QUERY_CARD_CAPTURE);
+    try
+    {
+      CaptureResult result =
+        executor.call(Operation.QUERY_CARD_CAPTURE, () -> doQueryCardCapture(httpServletRequest, queryRequest));
+      timer.finish(result.status);
+      return result;
+    }
+    catch (RuntimeException e)
+    {
+      timer.fail(e);
+      throw e;
+    }
+  }
+
+  private CaptureResult doQueryCardCapture(HttpServletRequest request, CaptureQueryRequest queryRequest)
+  {
+    GatewayMetrics.Timer timer = GatewayMetrics.startPhases(Operation.QUERY_CARD_CAPTURE);
+    return RequestScope.enterScope(request, () ->
     {
-      log.info("Looking up card capture result for: tid=" + RequestScope.getTid() + ", queryRequest=" + queryRequest);
+      admissionControl.admit(RequestScope.getTid(), queryRequest.endUserIpAddress);
+      timer.phase(Phase.ADMISSION);
+      RequestLog.info(log, "Looking up card capture result for: tid={0}, accountId={1}, paymentMethodId={2}, query={3}",
+        RequestScope.getTid(), queryRequest.accountId, queryRequest.paymentMethodId,
+        RequestLog.redactNow(queryRequest.urlQueryString));
       ValidationHelper.validateQueryCardCaptureArgs(queryRequest);
-      Config config = ConfigUnmarshaller.unmarshal(queryRequest, Config.class);
+      Config config = configCache.get(queryRequest);
+      admissionControl.configure(RequestScope.getTid(), queryRequest.endUserIpAddress, config);
+      timer.phase(Phase.CONFIG);
       
       // Validate inbound HMAC
-      String expectedHmac = ParseUtil.getQueryArgValue(queryRequest.urlQueryString, "hmac");
-      Instant formCreationTime = Instant.ofEpochMilli(ParseUtil.getLongQueryArg(queryRequest.urlQueryString, "fct"));
-      if (Instant.now().isAfter(formCreationTime.plus(config.webFormTimeoutSec, ChronoUnit.SECONDS)))
-        return Results.captureFailed(CaptureStatus.TIMED_OUT,
-          "Web form timed out (" + config.webFormTimeoutSec + " seconds)");
-      if (!WebFormMac.verifyCaptureFormHmac(expectedHmac, queryRequest, formCreationTime))
+      QueryArgs queryArgs = QueryArgs.parse(queryRequest.urlQueryString);
+      String expectedHmac = queryArgs.getValue("hmac");
+      Instant formCreationTime = Instant.ofEpochMilli(queryArgs.getLong("fct"));
+      long now = System.currentTimeMillis();
+      int timeoutSec = submittedForms.timeoutSec(config.webFormTimeoutSec);
+      if (Instant.ofEpochMilli(now).isAfter(formCreationTime.plus(timeoutSec, ChronoUnit.SECONDS))
+          || !submittedForms.covers(formCreationTime.toEpochMilli(), now))
+        return Results.captureFailed(CaptureStatus.TIMED_OUT, "Web form timed out (" + timeoutSec + " seconds)");
+      // Turn away replays of a form before paying for the HMAC; only the record() below is authoritative, though.
+      if (expectedHmac != null && submittedForms.isReplay(expectedHmac, formCreationTime.toEpochMilli(), now))
+        return Results.captureFailed(CaptureStatus.INVALID_REQUEST, "Web form has already been submitted");
+      boolean authentic = WebFormMac.verifyCaptureFormHmac(expectedHmac, queryRequest, formCreationTime);
+      timer.phase(Phase.HMAC);
+      if (!authentic)
         return Results.captureFailed(CaptureStatus.INVALID_REQUEST, "HMAC validation failure");
       
       // Request has been verified as authentic - ensure that the account number is a valid AU bank account number.
-      AUBankAccountDetails bankAcct = new AUBankAccountDetails();
-      bankAcct.name = ParseUtil.getQueryArgValue(queryRequest.urlQueryString, "name");
-      bankAcct.account = ParseUtil.getQueryArgValue(queryRequest.urlQueryString, "bsb")
-              + ParseUtil.getQueryArgValue(queryRequest.urlQueryString, "account");
+      String bsb = queryArgs.getValue("bsb");
+      String branchHint = "";
+      if (bsbDirectory != null)
+      {
+        BsbDirectory.Entries bsbs = bsbDirectory.entries();
+        int entry = bsb == null ? -1 : bsbs.find(bsb);
+        if (entry < 0)
+          return Results.captureFailed(CaptureStatus.INVALID_REQUEST, "Unknown BSB: " + bsb);
+        if (config.hintShowsBranch)
+          branchHint = " (" + bsbs.institution(entry) + " " + bsbs.branch(entry) + ")";
+        timer.phase(Phase.BSB_LOOKUP);
+      }
+      // The directory accepts "NNN-NNN", but the token must hold the six digits that ABA files need.
+      bsb = BsbDirectory.normalise(bsb);
 
       // Pass AUBankAccountDetails as a JSON String with key and token type to encrypt at Turnstile
       CaptureResult result = new CaptureResult();
-      result.token = objectMapper.writeValueAsString(bankAcct);
+      CaptureToken.fill(result, queryArgs.getValue("name"), bsb, queryArgs.getValue("account"), branchHint);
+      timer.phase(Phase.JSON_TOKEN);
       result.key = String.valueOf(config.institution);
       result.expiryDate = null;
-      result.hint = toHint(bankAcct.account);
       result.status = CaptureStatus.ACCEPTED;
-      
+
+      // Only now that the details have passed every check is the form used up, so the end-user can correct a mistyped
+      // BSB or account number and submit the same form again.
+      if (!submittedForms.record(expectedHmac, formCreationTime.toEpochMilli(), now))
+        return Results.captureFailed(CaptureStatus.INVALID_REQUEST, "Web form has already been submitted");
       return result;
     });
   }
@@ -165,26 +327,93 @@ public class RSAUDirectDebit extends Application implements TurnstileGateway
   @Override
   public TransferResult cnpTransfer(CnpTransferRequest transferRequest)
   {
-    //to do : VIE-324
-    return Results.transferFailed(PaymentStatus.OPERATION_NOT_SUPPORTED,
-            "Direct Debit payments are not implemented in turnstile-audirectdebit-gw.");
+    GatewayMetrics.Timer timer = GatewayMetrics.start(Operation.CNP_TRANSFER);
+    try
+    {
+      TransferResult result =
+        executor.call(Operation.CNP_TRANSFER, () -> doCnpTransfer(httpServletRequest, transferRequest));
+      timer.finish(result.status);
+      return result;
+    }
+    catch (RuntimeException e)
+    {
+      timer.fail(e);
+      throw e;
+    }
+  }
+
+  private TransferResult doCnpTransfer(HttpServletRequest request, CnpTransferRequest transferRequest)
+  {
+    GatewayMetrics.Timer timer = GatewayMetrics.startPhases(Operation.CNP_TRANSFER);
+    return RequestScope.enterScope(request, () ->
+    {
+      RequestLog.info(log, "Received direct debit transfer request: tid={0}, transferId={1}", RequestScope.getTid(),
+        transferRequest.transferId);
+      validateCnpTransferArgs(transferRequest);
+      Config config = configCache.get(transferRequest);
+      timer.phase(Phase.CONFIG);
+
+      DirectDebitPaymentRequest paymentRequest = new DirectDebitPaymentRequest();
+      paymentRequest.transferId = transferRequest.transferId;
+      paymentRequest.institution = config.institution;
+      paymentRequest.accountId = transferRequest.accountId;
+      paymentRequest.paymentMethodId = transferRequest.paymentMethodId;
+      paymentRequest.bankAccount = objectMapper.readValue(transferRequest.token, AUBankAccountDetails.class);
+      timer.phase(Phase.JSON_TOKEN);
+      paymentRequest.amount = transferRequest.amount;
+      paymentRequest.currency = transferRequest.currency;
+
+      // Turnstile retries transfers that time out; a retry gets the original result rather than a second debit.
+      return recentTransfers.transfer(transferRequest, () -> submitTransfer(paymentRequest, timer));
+    });
+  }
+
+  /** Submits a direct debit unless the payment status index shows it has been submitted already (by an earlier
+   * request whose result is no longer in {@link #recentTransfers}, possibly before a restart). */
+  private static TransferResult submitTransfer(DirectDebitPaymentRequest paymentRequest, GatewayMetrics.Timer timer)
+  {
+    TransferResult result = new TransferResult();
+    PaymentStatus known = paymentStatuses.get(paymentRequest.transferId);
+    if (known != null)
+    {
+      RequestLog.info(log, "Direct debit {0} was already submitted; status is {1}", paymentRequest.transferId, known);
+      result.status = known;
+      return result;
+    }
+    // Hand the message off to the sender thread; the outcome is reported later via payment status events. Never for a
+    // request that has already been answered with a timeout, though, as Turnstile will retry it.
+    KafkaMessage message = new KafkaMessage(KAFKA_MESSAGE_SOURCE, INOMIAL_MESSAGE_VERSION, paymentRequest);
+    GatewayExecutor.commit();
+    if (!paymentRequests.submit(paymentRequest.transferId.toString(), message))
+      throw new ServiceUnavailableException("Direct debit submission queue is full; please retry later.");
+    paymentStatuses.put(paymentRequest.transferId, PaymentStatus.PENDING, System.currentTimeMillis());
+    timer.phase(Phase.SUBMIT);
+
+    result.status = PaymentStatus.PENDING;
+    return result;
+  }
+
+  private static void validateCnpTransferArgs(CnpTransferRequest transferRequest)
+  {
+    if (transferRequest.transferId == null)
+      throw new BadRequestException("transferId is required");
+    if (StringUtils.isEmpty(transferRequest.token))
+      throw new BadRequestException("token is required");
+    if (transferRequest.amount == null || transferRequest.amount.signum() <= 0)
+      throw new BadRequestException("amount must be positive");
   }
 
   @Override
   public DeleteTokenResult deleteToken(DeleteTokenRequest deleteTokenRequest)
   {
+    GatewayMetrics.start(Operation.DELETE_TOKEN).finish(DeleteTokenStatus.OPERATION_NOT_SUPPORTED);
     return Results.deleteTokenFailed(DeleteTokenStatus.OPERATION_NOT_SUPPORTED,
         "Token deletion is yet to be implemented in turnstile-audirectdebit-gw");
   }
 
-  private String toHint(String account)
+  static String toHint(String account)
   {
-
-    int len = account.length();
-    if (len < 12) {
-      throw new IllegalArgumentException("AU account number should not be less than 12 digits.");
-    }
     // Want first 3 digits and last 3 digits, with Xs filling in the missing bits
-    return account.substring(0, 3) + StringUtils.repeat("X",len - 6) + account.substring(len - 3);
+    return CaptureToken.hint(account);
   }
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/** Progress of the startup steps that must finish before the gateway takes traffic, and the conditions that must
+ * keep holding while it does; see {@link ReadinessResource}.
+ *
+ * <p>{@link Main} starts independent steps in parallel, including the HTTP server, so requests can arrive before
+ * everything else is done. Each step is registered with {@link #starting} before the HTTP server starts, and the
+ * gateway is ready once all of them have {@link #finished} and the HTTP server has started ({@link #allStarted}).
+ * The JVM uptime at that point, and when the first gateway request finished, are reported in {@link GatewayMetrics}
+ * so that cold starts can be compared between versions.</p>
+ *
+ * <p>After startup, the gateway stops being ready whenever a condition registered with {@link #require} is false,
+ * such as the payment request sender having failed.</p> */
+class Readiness
+{
+  private static final Set<String> pending = ConcurrentHashMap.newKeySet();
+  private static final Map<String, BooleanSupplier> conditions = new ConcurrentHashMap<>();
+  private static volatile boolean started;
+  private static volatile long readyUptimeMillis = -1;
+  private static volatile long firstRequestUptimeMillis = -1;
+
+  private Readiness()
+  {
+    // Static methods only
+  }
+
+  /** Registers a startup step that must finish before the gateway is ready. */
+  static void starting(String step)
+  {
+    pending.add(step);
+  }
+
+  static void finished(String step)
+  {
+    pending.remove(step);
+    checkReady();
+  }
+
+  /** Registers a condition that must hold, once startup has finished, for the gateway to be ready. */
+  static void require(String name, BooleanSupplier condition)
+  {
+    conditions.put(name, condition);
+  }
+
+  /** Called once every startup step has been registered and the HTTP server has started. */
+  static void allStarted()
+  {
+    started = true;
+    checkReady();
+  }
+
+  private static synchronized void checkReady()
+  {
+    if (started && pending.isEmpty() && readyUptimeMillis < 0)
+      readyUptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+  }
+
+  static boolean isReady()
+  {
+    if (readyUptimeMillis < 0)
+      return false;
+    for (BooleanSupplier condition : conditions.values())
+    {
+      if (!condition.getAsBoolean())
+        return false;
+    }
+    return true;
+  }
+
+  /** @return Startup steps that haven't finished yet and conditions that don't hold, in alphabetical order. */
+  static Set<String> pending()
+  {
+    Set<String> result = new TreeSet<>(pending);
+    conditions.forEach((name, condition) ->
+    {
+      if (!condition.getAsBoolean())
+        result.add(name);
+    });
+    return result;
+  }
+
+  /** Notes that a gateway request has finished; only the first one is remembered. */
+  static void requestFinished()
+  {
+    if (firstRequestUptimeMillis < 0)
+    {
+      synchronized (Readiness.class)
+      {
+        if (firstRequestUptimeMillis < 0)
+          firstRequestUptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+      }
+    }
+  }
+
+  /** @return Milliseconds from JVM start until the gateway first became ready, or -1 if it hasn't yet. */
+  static long readyUptimeMillis()
+  {
+    return readyUptimeMillis;
+  }
+
+  /** @return Milliseconds from JVM start until the first gateway request finished, or -1 if none has. */
+  static long firstRequestUptimeMillis()
+  {
+    return firstRequestUptimeMillis;
+  }
+}
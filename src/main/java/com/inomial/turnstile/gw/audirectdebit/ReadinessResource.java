@@ -0,0 +1,23 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/** Readiness probe: 200 while the gateway is ready (see {@link Readiness}), otherwise 503 listing what isn't. */
+@Path("/ready")
+public class ReadinessResource
+{
+  @GET
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response ready()
+  {
+    if (Readiness.isReady())
+      return Response.ok("ready\n").build();
+    return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+      .entity("not ready: " + String.join(", ", Readiness.pending()) + "\n")
+      .build();
+  }
+}
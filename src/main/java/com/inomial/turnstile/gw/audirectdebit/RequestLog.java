@@ -0,0 +1,296 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Logging for the request path that never blocks on the console, and keeps bank details and HMACs out of the log.
+ *
+ * <p>Messages are parameterised with {@code {0}} to {@code {3}} placeholders, as for {@link Logger}, but each
+ * argument is substituted with {@link String#valueOf} (so numbers aren't grouped). Logging a message only stores the
+ * format and arguments in a slot of a fixed-size ring buffer of {@code REQUEST_LOG_BUFFER} slots; a background thread
+ * formats the messages later and passes them on to the {@link Logger}, and so to the console. Arguments should
+ * therefore be immutable scalars such as strings, numbers and UUIDs, never request objects, which a slot would keep
+ * reachable (and could see changed) until the message is logged. If the buffer is full the message is dropped and
+ * counted, rather than making the request wait; see {@link #dropped()}.</p>
+ *
+ * <p>Formatted messages go through {@link #redact} before they're logged, which masks the values of the
+ * {@code hmac}, {@code bsb}, {@code account}, {@code name} and {@code token} fields wherever they appear, whether as
+ * query arguments, in {@code toString()} output or in JSON. A request thread that logs a value holding such fields,
+ * such as a query string, should mask it first with {@link #redactNow}, so the unmasked value isn't held in the
+ * buffer.</p>
+ *
+ * <p>Setting {@code REQUEST_LOG_ASYNC=false} formats, redacts and logs each message on the calling thread
+ * instead.</p> */
+class RequestLog
+{
+  private static final boolean ASYNC =
+    Boolean.parseBoolean(System.getenv().getOrDefault("REQUEST_LOG_ASYNC", "true"));
+  private static final int BUFFER_SIZE =
+    Integer.highestOneBit(Math.max(2, Integer.parseInt(System.getenv().getOrDefault("REQUEST_LOG_BUFFER", "8192"))));
+
+  /** How long the background thread waits before looking for more messages once it has logged all of them. */
+  private static final long IDLE_NANOS = 5_000_000;
+
+  /** Fields whose values are masked, along with the rest of the field up to a delimiter: for {@code name=value} up to
+   * {@code &}, a comma, a closing bracket or the end of the line, and for {@code "name":"value"} up to the closing
+   * quote. */
+  private static final Pattern SENSITIVE = Pattern.compile(
+    "(?<![A-Za-z0-9_])(?:hmac|bsb|account|name|token)(?:=[^&,)\\]}\\r\\n]*|\"\\s*:\\s*\"(?:[^\"\\\\]|\\\\.)*)");
+
+  private static final String MASK = "***";
+
+  /** Buffer slot. A slot is free for the message with sequence number {@code n} when its {@link #sequence} is
+   * {@code n}, and holds that message when its sequence is {@code n + 1} (as in Dmitry Vyukov's bounded queue). */
+  private static class Slot
+  {
+    volatile long sequence;
+    Logger logger;
+    Level level;
+    String format;
+    String thread;
+    long millis;
+    Object arg0;
+    Object arg1;
+    Object arg2;
+    Object arg3;
+  }
+
+  private static final Slot[] slots = new Slot[BUFFER_SIZE];
+  private static final AtomicLong tail = new AtomicLong();
+  private static volatile long head; // Only changed with the RequestLog.class lock held
+  private static final LongAdder dropped = new LongAdder();
+  private static long droppedReported; // Guarded by RequestLog.class
+
+  private static final Logger log = Logger.getLogger(RequestLog.class.getName());
+
+  /** Reused by whichever thread is formatting; guarded by RequestLog.class. */
+  private static final StringBuilder formatted = new StringBuilder(512);
+  private static final StringBuffer redacted = new StringBuffer(512);
+  private static final Matcher matcher = SENSITIVE.matcher("");
+
+  static
+  {
+    for (int i = 0; i < BUFFER_SIZE; i++)
+    {
+      slots[i] = new Slot();
+      slots[i].sequence = i;
+    }
+    if (ASYNC)
+    {
+      Thread writer = new Thread(RequestLog::drainForever, "request-log");
+      writer.setDaemon(true);
+      writer.start();
+      // Don't lose the last messages before an orderly exit.
+      Runtime.getRuntime().addShutdownHook(new Thread(RequestLog::drain, "request-log-flush"));
+    }
+  }
+
+  private RequestLog()
+  {
+    // Static methods only
+  }
+
+  static void info(Logger logger, String format, Object arg0)
+  {
+    log(logger, Level.INFO, format, arg0, null, null, null);
+  }
+
+  static void info(Logger logger, String format, Object arg0, Object arg1)
+  {
+    log(logger, Level.INFO, format, arg0, arg1, null, null);
+  }
+
+  static void info(Logger logger, String format, Object arg0, Object arg1, Object arg2)
+  {
+    log(logger, Level.INFO, format, arg0, arg1, arg2, null);
+  }
+
+  static void info(Logger logger, String format, Object arg0, Object arg1, Object arg2, Object arg3)
+  {
+    log(logger, Level.INFO, format, arg0, arg1, arg2, arg3);
+  }
+
+  /** Logs a message with up to four arguments, if the logger would log it at that level. */
+  static void log(Logger logger, Level level, String format, Object arg0, Object arg1, Object arg2, Object arg3)
+  {
+    if (!logger.isLoggable(level))
+      return;
+    if (!ASYNC)
+    {
+      String thread = Thread.currentThread().getName();
+      synchronized (RequestLog.class)
+      {
+        publish(logger, level, format, thread, System.currentTimeMillis(), arg0, arg1, arg2, arg3);
+      }
+      return;
+    }
+
+    Slot slot;
+    long n = tail.get();
+    while (true)
+    {
+      slot = slots[(int)n & (BUFFER_SIZE - 1)];
+      long sequence = slot.sequence;
+      if (sequence == n)
+      {
+        if (tail.compareAndSet(n, n + 1))
+          break;
+        n = tail.get();
+      }
+      else if (sequence < n)
+      {
+        // The writer hasn't got through the message that was in this slot a lap ago, so the buffer is full.
+        dropped.increment();
+        return;
+      }
+      else
+      {
+        n = tail.get();
+      }
+    }
+    slot.logger = logger;
+    slot.level = level;
+    slot.format = format;
+    slot.thread = Thread.currentThread().getName();
+    slot.millis = System.currentTimeMillis();
+    slot.arg0 = arg0;
+    slot.arg1 = arg1;
+    slot.arg2 = arg2;
+    slot.arg3 = arg3;
+    slot.sequence = n + 1;
+  }
+
+  /** @return Number of messages dropped because the buffer was full, since startup. */
+  static long dropped()
+  {
+    return dropped.sum();
+  }
+
+  /** @return Number of messages waiting to be logged. */
+  static long queued()
+  {
+    return Math.max(0, tail.get() - head);
+  }
+
+  private static void drainForever()
+  {
+    while (true)
+    {
+      if (drain() == 0)
+        LockSupport.parkNanos(IDLE_NANOS);
+    }
+  }
+
+  /** Logs the messages in the buffer, in the order they were added.
+   * @return Number of messages logged. */
+  private static synchronized int drain()
+  {
+    int count = 0;
+    while (true)
+    {
+      Slot slot = slots[(int)head & (BUFFER_SIZE - 1)];
+      if (slot.sequence != head + 1)
+        break;
+      try
+      {
+        publish(slot.logger, slot.level, slot.format, slot.thread, slot.millis, slot.arg0, slot.arg1, slot.arg2,
+          slot.arg3);
+      }
+      catch (RuntimeException e)
+      {
+        log.log(Level.WARNING, "Unable to log message: " + slot.format, e);
+      }
+      slot.logger = null;
+      slot.format = null;
+      slot.thread = null;
+      slot.arg0 = slot.arg1 = slot.arg2 = slot.arg3 = null;
+      slot.sequence = head + BUFFER_SIZE;
+      head++;
+      count++;
+    }
+
+    long lost = dropped.sum();
+    if (lost != droppedReported)
+    {
+      log.warning("Dropped " + (lost - droppedReported) + " log messages because the request log buffer was full");
+      droppedReported = lost;
+    }
+    return count;
+  }
+
+  /** Formats, redacts and logs a message; the caller must hold the RequestLog.class lock. */
+  private static void publish(Logger logger, Level level, String format, String thread, long millis, Object arg0,
+    Object arg1, Object arg2, Object arg3)
+  {
+    StringBuilder message = formatted;
+    message.setLength(0);
+    message.append('[').append(thread).append("] ");
+    for (int i = 0, n = format.length(); i < n; i++)
+    {
+      char c = format.charAt(i);
+      if (c == '{' && i + 2 < n && format.charAt(i + 2) == '}' && format.charAt(i + 1) >= '0'
+        && format.charAt(i + 1) <= '3')
+      {
+        int arg = format.charAt(i + 1) - '0';
+        message.append(arg == 0 ? arg0 : arg == 1 ? arg1 : arg == 2 ? arg2 : arg3);
+        i += 2;
+      }
+      else
+      {
+        message.append(c);
+      }
+    }
+
+    LogRecord record = new LogRecord(level, redact(message));
+    record.setLoggerName(logger.getName());
+    // The caller is long gone; naming its class saves the record from walking this thread's stack to find it.
+    record.setSourceClassName(logger.getName());
+    record.setMillis(millis);
+    logger.log(record);
+  }
+
+  /** @return Text with the values of sensitive fields replaced by {@value #MASK}. */
+  static synchronized String redact(CharSequence text)
+  {
+    return redact(text, matcher.reset(text), redacted);
+  }
+
+  /** As {@link #redact}, but without the buffers that it shares with the background thread, so the caller never
+   * waits for it. */
+  static String redactNow(CharSequence text)
+  {
+    return text == null ? null : redact(text, SENSITIVE.matcher(text), new StringBuffer(text.length()));
+  }
+
+  private static String redact(CharSequence text, Matcher m, StringBuffer out)
+  {
+    if (!m.find())
+      return text.toString();
+    out.setLength(0);
+    int last = 0;
+    do
+    {
+      out.append(text, last, m.start());
+      // Keep the field name and separator: everything up to and including the '=' or the value's opening quote.
+      int valueStart = m.start();
+      while (text.charAt(valueStart) != '=' && text.charAt(valueStart) != ':')
+        valueStart++;
+      if (text.charAt(valueStart) == ':')
+      {
+        while (text.charAt(valueStart) != '"')
+          valueStart++;
+      }
+      out.append(text, m.start(), valueStart + 1).append(MASK);
+      last = m.end();
+    }
+    while (m.find());
+    out.append(text, last, text.length());
+    return out.toString();
+  }
+}
@@ -0,0 +1,262 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.PaymentStatus;
+import com.inomial.secore.kafka.KafkaMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/** Processes bank return (dishonour) files, publishing a {@link PaymentStatusChange} for each returned debit.
+ *
+ * <p>Run as {@code Main returns <aba-dir> <return-file>...}, where {@code aba-dir} is the directory that bulk debit
+ * runs were written to (see {@link BulkDebitRun}). Return records are read incrementally with
+ * {@link AbaReturnReader} and handled in batches of {@link #BATCH_SIZE}: the batch is matched to the original
+ * transfer IDs using the references files written alongside each ABA file, the status changes are published via
+ * {@link BatchSender}, and once the broker has acknowledged them the offset reached in the return file is recorded in
+ * a checkpoint file ({@code <return-file>.checkpoint}). If processing is interrupted it resumes from the checkpoint,
+ * so at most one batch is published again; a file that has been completely processed is skipped.</p>
+ *
+ * <p>Matching a batch scans the (memory-mapped) references files once, so memory use depends on the batch size but
+ * not on the size of the return file or of the original debit runs. Only references files modified within the last
+ * {@link #LOOKBACK_DAYS} days are considered. Returns that can't be matched are logged and skipped.</p> */
+class ReturnFileProcessor
+{
+  private static final Logger log = Logger.getLogger(ReturnFileProcessor.class.getName());
+
+  /** Maximum number of returns matched and published together. */
+  private static final int BATCH_SIZE =
+    Integer.parseInt(System.getenv().getOrDefault("ABA_RETURN_BATCH_SIZE", "1000"));
+
+  /** Age of the oldest debit runs whose returns are matched, in days. */
+  private static final int LOOKBACK_DAYS =
+    Integer.parseInt(System.getenv().getOrDefault("ABA_RETURN_LOOKBACK_DAYS", "60"));
+
+  private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+  private final File abaDir;
+  private final BatchSender batchSender;
+  private final PaymentRequestQueue.Stats stats = new PaymentRequestQueue.Stats();
+  private long unmatched;
+
+  ReturnFileProcessor(File abaDir, String topic, MessageSink sink)
+  {
+    this.abaDir = abaDir;
+    this.batchSender = new BatchSender(topic, sink, stats);
+  }
+
+  static void run(String[] args) throws IOException, InterruptedException
+  {
+    if (args.length < 2)
+    {
+      System.err.println("Usage: returns <aba-dir> <return-file>...");
+      System.exit(2);
+    }
+    ReturnFileProcessor processor = new ReturnFileProcessor(new File(args[0]),
+      RSAUDirectDebit.PAYMENT_REQUEST_TOPIC, MessageSink.KAFKA);
+    for (int i = 1; i < args.length; i++)
+      processor.process(new File(args[i]));
+    System.out.println("Published " + processor.stats.messagesSent.get() + " payment status change(s); "
+      + processor.unmatched + " return(s) could not be matched.");
+  }
+
+  /** Processes a return file, starting from its checkpoint if there is one. */
+  void process(File returnFile) throws IOException, InterruptedException
+  {
+    File checkpoint = new File(returnFile.getParentFile(), returnFile.getName() + CHECKPOINT_SUFFIX);
+    long startOffset = readCheckpoint(checkpoint);
+    if (startOffset > 0)
+      log.info("Resuming return file " + returnFile + " from offset " + startOffset);
+
+    try (AbaReturnReader reader = new AbaReturnReader(returnFile, startOffset))
+    {
+      List<AbaReturnReader.Return> batch = new ArrayList<>(BATCH_SIZE);
+      List<BatchSender.Pending> messages = new ArrayList<>(BATCH_SIZE);
+      while (true)
+      {
+        AbaReturnReader.Return r = null;
+        while (batch.size() < BATCH_SIZE && (r = reader.next()) != null)
+          batch.add(r);
+        if (batch.isEmpty())
+          break;
+
+        match(batch);
+        for (AbaReturnReader.Return ret : batch)
+        {
+          if (ret.transferId == null)
+          {
+            unmatched++;
+            log.warning("Unable to match return with reference " + ret.reference + " at offset " + ret.offset
+              + " of " + returnFile);
+            continue;
+          }
+          messages.add(new BatchSender.Pending(ret.transferId, new KafkaMessage(RSAUDirectDebit.KAFKA_MESSAGE_SOURCE,
+            RSAUDirectDebit.INOMIAL_MESSAGE_VERSION, toStatusChange(ret))));
+        }
+        if (!messages.isEmpty())
+          batchSender.sendWithRetry(messages);
+        writeCheckpoint(checkpoint, reader.offset());
+        batch.clear();
+        messages.clear();
+        if (r == null)
+          break;
+      }
+    }
+  }
+
+  /** Sets the transfer ID of each return in the batch that matches a debit in one of the references files. */
+  private void match(List<AbaReturnReader.Return> batch) throws IOException
+  {
+    // Only references consisting of 18 hex digits can have come from AbaFileWriter; the first 16 digits form the
+    // search key and the last 2 are compared once a candidate is found.
+    List<AbaReturnReader.Return> candidates = new ArrayList<>(batch.size());
+    for (AbaReturnReader.Return r : batch)
+    {
+      if (r.reference.length() == AbaFileWriter.REFERENCE_LENGTH && parseKey(r.reference) != null)
+        candidates.add(r);
+    }
+    if (candidates.isEmpty())
+      return;
+    candidates.sort(Comparator.comparingLong(r -> parseKey(r.reference)));
+    long[] keys = new long[candidates.size()];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = parseKey(candidates.get(i).reference);
+
+    long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(LOOKBACK_DAYS);
+    File[] refsFiles = abaDir.listFiles((d, name) -> name.endsWith(".aba" + AbaFileWriter.REFS_SUFFIX));
+    if (refsFiles == null)
+      throw new IOException("Unable to list debit run directory " + abaDir);
+    int remaining = candidates.size();
+    for (File refsFile : refsFiles)
+    {
+      if (remaining == 0)
+        break;
+      if (refsFile.lastModified() >= cutoff)
+        remaining -= matchFile(refsFile, candidates, keys);
+    }
+  }
+
+  /** @return Number of candidates newly matched against this references file. */
+  private static int matchFile(File refsFile, List<AbaReturnReader.Return> candidates, long[] keys) throws IOException
+  {
+    MappedByteBuffer refs;
+    try (FileChannel channel = FileChannel.open(refsFile.toPath(), StandardOpenOption.READ))
+    {
+      refs = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    int matched = 0;
+    byte[] transferId = new byte[36];
+    for (int pos = 0; pos + AbaFileWriter.REFS_LINE_LENGTH <= refs.limit(); pos += AbaFileWriter.REFS_LINE_LENGTH)
+    {
+      long key = 0;
+      boolean valid = true;
+      for (int i = 0; i < 16 && valid; i++)
+      {
+        int digit = Character.digit(refs.get(pos + i), 16);
+        valid = digit >= 0;
+        key = key << 4 | digit;
+      }
+      if (!valid)
+        continue;
+      int index = Arrays.binarySearch(keys, key);
+      if (index < 0)
+        continue;
+      while (index > 0 && keys[index - 1] == key)
+        index--;
+      for (; index < keys.length && keys[index] == key; index++)
+      {
+        AbaReturnReader.Return r = candidates.get(index);
+        // The bank may return the reference's hex digits in the other case, so compare their values.
+        if (r.transferId != null
+          || Character.digit(r.reference.charAt(16), 16) != Character.digit(refs.get(pos + 16), 16)
+          || Character.digit(r.reference.charAt(17), 16) != Character.digit(refs.get(pos + 17), 16))
+          continue;
+        ByteBuffer src = refs.duplicate();
+        src.position(pos + AbaFileWriter.REFERENCE_LENGTH + 1);
+        src.get(transferId);
+        r.transferId = new String(transferId, StandardCharsets.US_ASCII).trim();
+        matched++;
+      }
+    }
+    return matched;
+  }
+
+  /** @return The first 16 hex digits of a lodgement reference, or {@code null} if it isn't all hex digits. */
+  private static Long parseKey(String reference)
+  {
+    long key = 0;
+    for (int i = 0; i < reference.length(); i++)
+    {
+      int digit = Character.digit(reference.charAt(i), 16);
+      if (digit < 0)
+        return null;
+      if (i < 16)
+        key = key << 4 | digit;
+    }
+    return key;
+  }
+
+  private static PaymentStatusChange toStatusChange(AbaReturnReader.Return r)
+  {
+    PaymentStatusChange change = new PaymentStatusChange();
+    change.transferId = r.transferId;
+    change.status = PaymentStatus.DECLINED;
+    change.amount = BigDecimal.valueOf(r.amountCents, 2);
+    change.returnCode = String.valueOf(r.returnCode);
+    change.reason = "Returned by bank: " + describeReturnCode(r.returnCode);
+    return change;
+  }
+
+  /** @return Description of a BECS return reason code. */
+  static String describeReturnCode(char code)
+  {
+    switch (code)
+    {
+      case '1': return "invalid BSB number";
+      case '2': return "payment stopped";
+      case '3': return "account closed";
+      case '4': return "customer deceased";
+      case '5': return "no account or incorrect account number";
+      case '6': return "refer to customer";
+      case '7': return "deleted";
+      case '8': return "invalid user ID number";
+      case '9': return "technically invalid";
+      default: return "return code " + code;
+    }
+  }
+
+  private static long readCheckpoint(File file) throws IOException
+  {
+    if (!file.exists())
+      return 0;
+    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    return buf.remaining() < 8 ? 0 : buf.getLong();
+  }
+
+  private static void writeCheckpoint(File file, long offset) throws IOException
+  {
+    ByteBuffer buf = ByteBuffer.allocate(8);
+    buf.putLong(offset).flip();
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      channel.write(buf);
+      channel.force(false);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
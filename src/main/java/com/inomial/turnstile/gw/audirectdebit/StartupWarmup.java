@@ -0,0 +1,103 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.inomial.cim.turnstile.AUBankAccountDetails;
+import com.inomial.turnstile.api.status.CaptureStatus;
+import com.inomial.turnstile.gw.common.ConfigUnmarshaller;
+import com.inomial.turnstile.gw.common.Results;
+import com.inomial.turnstile.gw.common.URLInterpolator;
+import com.inomial.turnstile.gw.spi.CaptureQueryRequest;
+import com.inomial.turnstile.gw.spi.CaptureResult;
+import com.inomial.turnstile.gw.spi.TokeniseRequest;
+import com.inomial.turnstile.gw.spi.WebFormResult;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.UUID;
+
+/** Runs the web form code paths on canned requests at startup, so that their classes are loaded and the JIT has
+ * compiled them before the first end-user arrives.
+ *
+ * <p>It covers what {@code getCaptureUrl}, {@code queryCardCapture} and {@code cnpTransfer} spend their time on:
+ * Jackson reading requests and configuration, computing and verifying the HMAC, rendering the capture URL, parsing
+ * the query string the capture page sends back, building the token, and writing the results. These are called
+ * directly on behalf of tenant 0 rather than through the gateway methods, so the warm-up leaves nothing behind in the
+ * metrics, caches, replay filter or rate limits.</p>
+ *
+ * <p>{@code STARTUP_WARMUP_ITERATIONS} sets how many times the paths are run (default 2000, which is enough for
+ * them to be compiled by C1); 0 skips the warm-up.</p> */
+class StartupWarmup
+{
+  static final int ITERATIONS =
+    Integer.parseInt(System.getenv().getOrDefault("STARTUP_WARMUP_ITERATIONS", "2000"));
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final int TID = 0;
+  private static final UUID PRINCIPAL = new UUID(0, 0);
+
+  private static final String COMMON_JSON =
+    "\"accountId\":\"00000000-0000-0000-0000-000000000001\","
+      + "\"paymentMethodId\":\"00000000-0000-0000-0000-000000000002\",\"endUserIpAddress\":\"192.0.2.1\","
+      + "\"config\":{\"institution\":0,\"tokenCaptureUrl\":\"https://capture.example.com/{gw}\"}";
+
+  private static final String TOKENISE_JSON =
+    "{" + COMMON_JSON + ",\"returnUrl\":\"https://portal.example.com/return\"}";
+
+  /** Query arguments that the capture page adds to those from the capture URL. */
+  private static final String CAPTURED_ACCOUNT_ARGS = "&name=Warm%20Up&bsb=000000&account=12345678";
+
+  private StartupWarmup()
+  {
+    // Static methods only
+  }
+
+  /** @throws IllegalStateException if a HMAC fails to verify, which would mean the secret isn't usable. */
+  static void run(int iterations) throws IOException
+  {
+    HttpServletRequest request = StubHttpServletRequest.create("http://localhost:8080/", "127.0.0.1", null);
+    WebFormResultWriter webFormWriter = new WebFormResultWriter();
+    CaptureResultWriter captureWriter = new CaptureResultWriter();
+    OutputStream discard = ByteStreams.nullOutputStream();
+
+    for (int i = 0; i < iterations; i++)
+    {
+      TokeniseRequest tokeniseRequest = objectMapper.readValue(TOKENISE_JSON, TokeniseRequest.class);
+      RSAUDirectDebit.Config config = ConfigUnmarshaller.unmarshal(tokeniseRequest, RSAUDirectDebit.Config.class);
+      WebFormMac.HmacTimestamp authMac = WebFormMac.createCaptureFormHmac(TID, PRINCIPAL, tokeniseRequest);
+      // The same rendering as getCaptureUrl, so the compiled template is what gets warmed up.
+      long fct = authMac.formCreationTime.toEpochMilli();
+      String url = CaptureUrlTemplate.render(config.tokenCaptureUrl, authMac.hmac, fct, tokeniseRequest.prevStatus,
+        tokeniseRequest.returnUrl, () ->
+          URLInterpolator.forCardCaptureUrl(config.tokenCaptureUrl, RSAUDirectDebit.GW, request)
+            .addQueryArg("hmac", authMac.hmac)
+            .addQueryArg("fct", fct)
+            .addQueryArgIfNotNull("prevStatus", tokeniseRequest.prevStatus)
+            .addBase64QueryArg("action", tokeniseRequest.returnUrl)
+            .render());
+      webFormWriter.writeTo(Results.webFormSuccess(url), WebFormResult.class, WebFormResult.class, null,
+        MediaType.APPLICATION_JSON_TYPE, null, discard);
+
+      String query = url.substring(url.indexOf('?') + 1) + CAPTURED_ACCOUNT_ARGS;
+      CaptureQueryRequest queryRequest = objectMapper.readValue("{" + COMMON_JSON + ",\"urlQueryString\":"
+        + objectMapper.writeValueAsString(query) + "}", CaptureQueryRequest.class);
+      QueryArgs queryArgs = QueryArgs.parse(queryRequest.urlQueryString);
+      if (!WebFormMac.verifyCaptureFormHmac(TID, PRINCIPAL, queryArgs.getValue("hmac"), queryRequest,
+          Instant.ofEpochMilli(queryArgs.getLong("fct"))))
+        throw new IllegalStateException("Warm-up web form HMAC failed to verify");
+      CaptureResult result = new CaptureResult();
+      CaptureToken.fill(result, queryArgs.getValue("name"), queryArgs.getValue("bsb"), queryArgs.getValue("account"),
+        "");
+      result.status = CaptureStatus.ACCEPTED;
+      captureWriter.writeTo(result, CaptureResult.class, CaptureResult.class, null, MediaType.APPLICATION_JSON_TYPE,
+        null, discard);
+
+      // cnpTransfer reads the token back.
+      objectMapper.readValue(result.token, AUBankAccountDetails.class);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/** Stand-in {@link HttpServletRequest} for running gateway code outside a real request: the startup warm-up, tests
+ * and benchmarks. It answers the calls that rendering capture URLs and scoping requests make; anything else returns
+ * {@code null}, zero, {@code false} or an empty enumeration. */
+class StubHttpServletRequest
+{
+  private StubHttpServletRequest()
+  {
+    // Static methods only
+  }
+
+  /** @param url Absolute URL of the request, with no query string; its path is the request URI.
+   * @param remoteAddr End-user IP address.
+   * @param principal Authenticated user, who is in every role; or {@code null} for an unauthenticated request. */
+  static HttpServletRequest create(String url, String remoteAddr, Principal principal)
+  {
+    URI uri = URI.create(url);
+    String scheme = uri.getScheme();
+    boolean secure = "https".equals(scheme);
+    int port = uri.getPort() >= 0 ? uri.getPort() : secure ? 443 : 80;
+    String path = uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+    return (HttpServletRequest)Proxy.newProxyInstance(StubHttpServletRequest.class.getClassLoader(),
+      new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) ->
+      {
+        switch (method.getName())
+        {
+          case "getScheme": return scheme;
+          case "getServerName": return uri.getHost();
+          case "getServerPort": return port;
+          case "isSecure": return secure;
+          case "getContextPath": return "";
+          case "getServletPath": return "";
+          case "getRequestURI": return path;
+          case "getRequestURL": return new StringBuffer(url);
+          case "getRemoteAddr": return remoteAddr;
+          case "getUserPrincipal": return principal;
+          case "isUserInRole": return principal != null;
+          case "hashCode": return System.identityHashCode(proxy);
+          case "equals": return proxy == args[0];
+          case "toString": return "StubHttpServletRequest(" + url + ")";
+          default: break;
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class)
+          return false;
+        if (type == int.class)
+          return 0;
+        if (type == long.class)
+          return 0L;
+        if (type == Enumeration.class)
+          return Collections.emptyEnumeration();
+        return null;
+      });
+  }
+}
@@ -0,0 +1,112 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.inomial.turnstile.gw.spi.CnpTransferRequest;
+import com.inomial.turnstile.gw.spi.TransferResult;
+
+import javax.ws.rs.BadRequestException;
+import java.math.BigDecimal;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/** Recent direct debit transfer results, keyed by transfer ID, so that a transfer request retried by Turnstile is
+ * answered with the original result instead of submitting the debit again.
+ *
+ * <p>Concurrent requests for the same transfer wait for the first one to finish and share its result; later requests
+ * get the cached result straight away. Failed transfers aren't cached, so a retry after a failure tries again. A
+ * request that reuses a transfer ID with different details is rejected.</p>
+ *
+ * <p>The cache is split into {@code TRANSFER_DEDUPE_STRIPES} independently locked segments, holds at most
+ * {@code TRANSFER_DEDUPE_MAX_ENTRIES} results (least recently used are evicted first), and forgets results
+ * {@code TRANSFER_DEDUPE_TTL_SEC} after they were computed. Retries after that are caught by the payment status
+ * index instead; see {@link RSAUDirectDebit#cnpTransfer}.</p> */
+class TransferDedupeCache
+{
+  private static final int MAX_ENTRIES =
+    Integer.parseInt(System.getenv().getOrDefault("TRANSFER_DEDUPE_MAX_ENTRIES", "65536"));
+  private static final long TTL_SEC =
+    Long.parseLong(System.getenv().getOrDefault("TRANSFER_DEDUPE_TTL_SEC", "3600"));
+  private static final int STRIPES =
+    Integer.parseInt(System.getenv().getOrDefault("TRANSFER_DEDUPE_STRIPES", "16"));
+
+  /** Transfer result along with the details it was computed for. */
+  private static class Entry
+  {
+    final UUID accountId;
+    final UUID paymentMethodId;
+    final BigDecimal amount;
+    final TransferResult result;
+
+    Entry(CnpTransferRequest request, TransferResult result)
+    {
+      this.accountId = request.accountId;
+      this.paymentMethodId = request.paymentMethodId;
+      this.amount = request.amount;
+      this.result = result;
+    }
+
+    boolean matches(CnpTransferRequest request)
+    {
+      return Objects.equals(accountId, request.accountId)
+        && Objects.equals(paymentMethodId, request.paymentMethodId)
+        && (amount == null ? request.amount == null : request.amount != null && amount.compareTo(request.amount) == 0);
+    }
+  }
+
+  private final Cache<UUID, Entry> cache = CacheBuilder.newBuilder()
+    .concurrencyLevel(STRIPES)
+    .maximumSize(MAX_ENTRIES)
+    .expireAfterWrite(TTL_SEC, TimeUnit.SECONDS)
+    .recordStats()
+    .build();
+
+  /** Returns the result of a transfer, computing it only if it isn't already cached or being computed.
+   * @param request Transfer request; its {@code transferId} must not be {@code null}.
+   * @param transfer Computes the result if needed.
+   * @throws BadRequestException if the transfer ID was used for a transfer with different details.
+   * @throws RuntimeException the same exception as {@code transfer} threw, if it failed. */
+  TransferResult transfer(CnpTransferRequest request, Supplier<TransferResult> transfer)
+  {
+    Entry entry;
+    try
+    {
+      entry = cache.get(request.transferId, () -> new Entry(request, transfer.get()));
+    }
+    catch (UncheckedExecutionException | ExecutionError e)
+    {
+      // Rethrow the transfer's own exception, so callers see the same errors as without the cache.
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw e;
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException("Unable to process transfer " + request.transferId, e.getCause());
+    }
+    if (!entry.matches(request))
+      throw new BadRequestException("transferId " + request.transferId + " was already used for a different transfer");
+    return entry.result;
+  }
+
+  /** @return Hit/miss/eviction counters since startup; requests that waited for a concurrent duplicate count as
+   * hits. */
+  CacheStats stats()
+  {
+    return cache.stats();
+  }
+
+  long size()
+  {
+    return cache.size();
+  }
+}
@@ -0,0 +1,352 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.DestroyFailedException;
+import javax.ws.rs.InternalServerErrorException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** In-memory cache of the web form MAC secret.
+ *
+ * <p>The secret file is read once, and then re-read only when a {@link FileChangeMonitor} reports that it has changed,
+ * so computing or verifying a MAC doesn't involve any disk I/O. This still allows secret keys to be rotated without
+ * restarting the microservice.</p>
+ *
+ * <p>When the secret is rotated, the key that was previously current is kept for a limited time (see
+ * {@link #PREVIOUS_KEY_RETENTION}) so that web forms which were issued just before the rotation can still be
+ * verified once the end-user submits them.</p>
+ *
+ * <p>Raw secret bytes read from disk are zero-filled as soon as the key has been constructed, and keys that have been
+ * retired from the keyring are destroyed (see {@link ThreadMacs} for the {@link Mac}s initialised with them).</p> */
+class WebFormKeyring
+{
+  private static final Logger log = Logger.getLogger(WebFormKeyring.class.getName());
+
+  /** Maximum number of previous keys that are retained for verification after the secret has been rotated. */
+  private static final int MAX_PREVIOUS_KEYS =
+    Integer.parseInt(System.getenv().getOrDefault("WEBFORMMAC_PREVIOUS_KEYS", "2"));
+
+  /** Length of time that a previous key remains usable for verification after it has been replaced.
+   * This should be at least as long as the longest web form timeout configured for any tenant. */
+  private static final Duration PREVIOUS_KEY_RETENTION = Duration.ofSeconds(
+    Long.parseLong(System.getenv().getOrDefault("WEBFORMMAC_PREVIOUS_KEY_RETENTION_SEC", "3600")));
+
+  /** A key held in the keyring. */
+  class Key
+  {
+    private final SecretKey secret;
+    /** Time (in epoch milliseconds) after which this key may no longer be used for verification. */
+    private final long expiresAtMillis;
+
+    private Key(SecretKey secret, long expiresAtMillis)
+    {
+      this.secret = secret;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    private Key retire(long nowMillis)
+    {
+      return new Key(secret, nowMillis + PREVIOUS_KEY_RETENTION.toMillis());
+    }
+
+    SecretKey secret()
+    {
+      return secret;
+    }
+
+    /** @return A {@code Mac} initialised with this key, for exclusive use by the calling thread. */
+    Mac mac()
+    {
+      return threadMacs.get().mac(this);
+    }
+
+    boolean isExpired(long nowMillis)
+    {
+      return nowMillis > expiresAtMillis;
+    }
+
+    private Mac newMac()
+    {
+      try
+      {
+        Mac mac = Mac.getInstance(secret.getAlgorithm());
+        mac.init(secret);
+        return mac;
+      }
+      catch (GeneralSecurityException e)
+      {
+        throw new InternalServerErrorException("Unable to initialise web form MAC", e);
+      }
+    }
+  }
+
+  /** Immutable snapshot of the keyring contents; replaced as a whole whenever the secret is reloaded. */
+  private static class Keys
+  {
+    final Key current;
+    /** The current key followed by any previous keys, in order of preference. */
+    final List<Key> all;
+    /** Incremented each time the secret is rotated. */
+    final long generation;
+
+    Keys(Key current, List<Key> previous, long generation)
+    {
+      this.current = current;
+      List<Key> keys = new ArrayList<>(1 + previous.size());
+      keys.add(current);
+      keys.addAll(previous);
+      this.all = Collections.unmodifiableList(keys);
+      this.generation = generation;
+    }
+
+    List<Key> previous()
+    {
+      return all.subList(1, all.size());
+    }
+
+    /** @return Whether a key with this secret is still in the keyring. */
+    boolean holds(SecretKey secret)
+    {
+      for (Key key : all)
+      {
+        if (key.secret == secret)
+          return true;
+      }
+      return false;
+    }
+  }
+
+  /** The {@link Mac} instances that one thread has initialised with keys in the keyring. Initialising a {@code Mac} is
+   * comparatively expensive, but a {@code Mac} instance is reset by {@link Mac#doFinal()} and can be reused
+   * indefinitely by the same thread.
+   *
+   * <p>A {@code Mac} holds its own copy of the key, so one that outlives its key would keep a retired secret in
+   * memory. Whenever a thread finds that the secret has been rotated since it last used the keyring, it drops the
+   * {@code Mac}s for keys that have left the keyring. A thread that stops computing MACs keeps its {@code Mac}s until
+   * it next computes one or ends.</p> */
+  private class ThreadMacs
+  {
+    /** Keyed by the identity of the {@link SecretKey}, so that a key keeps its {@code Mac} when it is retired. */
+    private final Map<SecretKey, Mac> macs = new IdentityHashMap<>();
+    private long generation;
+
+    Mac mac(Key key)
+    {
+      Keys k = keys;
+      if (generation != k.generation)
+      {
+        macs.keySet().removeIf(secret -> !k.holds(secret));
+        generation = k.generation;
+      }
+      Mac mac = macs.get(key.secret);
+      if (mac == null)
+      {
+        mac = key.newMac();
+        // The key may have been retired since the caller looked it up; if so, don't keep its Mac.
+        if (k.holds(key.secret))
+          macs.put(key.secret, mac);
+      }
+      return mac;
+    }
+  }
+
+  private final File secretFile;
+  private final String algorithm;
+  private volatile Keys keys;
+  private final ThreadLocal<ThreadMacs> threadMacs = ThreadLocal.withInitial(ThreadMacs::new);
+
+  WebFormKeyring(File secretFile, String algorithm)
+  {
+    this.secretFile = secretFile;
+    this.algorithm = algorithm;
+  }
+
+  /** @return The key that should be used to sign new web forms.
+   * @throws InternalServerErrorException if the secret has never been successfully loaded and can't be loaded now. */
+  Key currentKey()
+  {
+    return loadedKeys().current;
+  }
+
+  /** @return The keys that may be used to verify a web form MAC, in order of preference: the current key followed by
+   * any previous keys. Callers must skip keys for which {@link Key#isExpired(long)} is {@code true}.
+   * @throws InternalServerErrorException if the secret has never been successfully loaded and can't be loaded now. */
+  List<Key> verificationKeys()
+  {
+    return loadedKeys().all;
+  }
+
+  /** Forces the secret to be (re)loaded from disk immediately.
+   * @throws InternalServerErrorException if the secret file can't be loaded. */
+  synchronized void reload()
+  {
+    Keys old = keys;
+    Object fingerprint = old == null ? FileChangeMonitor.fingerprint(secretFile) : null;
+    Key newKey = new Key(readSecret(), Long.MAX_VALUE);
+    if (old == null)
+    {
+      keys = new Keys(newKey, Collections.emptyList(), 0);
+      FileChangeMonitor.watch(secretFile, fingerprint, this::reloadQuietly);
+      return;
+    }
+    if (sameKey(old.current.secret, newKey.secret))
+    {
+      destroySecret(newKey.secret);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    List<Key> previous = new ArrayList<>(MAX_PREVIOUS_KEYS);
+    if (MAX_PREVIOUS_KEYS > 0)
+      previous.add(old.current.retire(now));
+    else
+      destroySecret(old.current.secret);
+    for (Key retired : old.previous())
+    {
+      if (previous.size() < MAX_PREVIOUS_KEYS && !retired.isExpired(now))
+        previous.add(retired);
+      else
+        destroySecret(retired.secret);
+    }
+    keys = new Keys(newKey, previous, old.generation + 1);
+    log.info("Web form MAC secret has been rotated; retaining " + previous.size() + " previous key(s).");
+  }
+
+  private void reloadQuietly()
+  {
+    try
+    {
+      reload();
+    }
+    catch (InternalServerErrorException e)
+    {
+      // Most likely caught the file part-way through being replaced; keep using the keys we already have.
+      log.log(Level.WARNING, "Unable to reload web form MAC secret; continuing to use existing keys", e);
+    }
+  }
+
+  private Keys loadedKeys()
+  {
+    Keys k = keys;
+    if (k == null)
+    {
+      synchronized (this)
+      {
+        if (keys == null)
+          reload();
+        k = keys;
+      }
+    }
+    return k;
+  }
+
+  /** Compares two keys in constant time, zero-filling the encoded copies of the keys afterwards. */
+  private static boolean sameKey(SecretKey a, SecretKey b)
+  {
+    byte[] aBytes = a.getEncoded();
+    byte[] bBytes = b.getEncoded();
+    try
+    {
+      return MessageDigest.isEqual(aBytes, bBytes);
+    }
+    finally
+    {
+      Arrays.fill(aBytes, (byte)0);
+      Arrays.fill(bBytes, (byte)0);
+    }
+  }
+
+  /** Loads web form MAC secret from disk.
+   * @return SecretKey that can be used to intialise the {@code javax.crypto.Mac} class.
+   * @throws InternalServerErrorException if there was an error loading the secret. */
+  private SecretKey readSecret()
+  {
+    byte[] secretBytes = null;
+    try (InputStream is = new FileInputStream(secretFile))
+    {
+      secretBytes = loadRawSecret(is);
+      return new SecretKeySpec(secretBytes, algorithm);
+    }
+    catch (IOException | IllegalArgumentException e)
+    {
+      throw new InternalServerErrorException("Unable to load web form MAC secret file: " + secretFile, e);
+    }
+    finally
+    {
+      // Need to blank the secret from memory (in case of an I/O error or OOM occurs)
+      if (secretBytes != null)
+        Arrays.fill(secretBytes, (byte)0);
+    }
+  }
+
+  private static byte[] secureResize(byte[] oldBuf, int newSize)
+  {
+    byte[] newBuf = Arrays.copyOf(oldBuf, newSize);
+    Arrays.fill(oldBuf, (byte)0);
+    return newBuf;
+  }
+
+  /** Reads the entire contents of the stream.
+   * <p>Bytes are read in blocks directly into the returned buffer rather than through an intermediate buffer (such
+   * as {@link java.io.BufferedInputStream} would use), so no stray copies of the secret are left behind.</p>
+   * @param is Binary stream to read the secret from.
+   * @return Byte buffer containing the contents of the stream.
+   * <p>The byte data in this buffer will be guaranteed to be the only copy of this data in the entire JVM
+   * memory (any other intermediate buffers will be zero-filled before being relegated to garbage collection).</p>
+   * <p>If the stream returns EOF immedidately, then a zero-length array will be returned.</p>
+   * @throws IOException if an I/O error occurs while reading the stream */
+  private static byte[] loadRawSecret(InputStream is) throws IOException
+  {
+    final int ALLOC_STEP_SIZE = 32;
+    byte[] secretBuf = new byte[ALLOC_STEP_SIZE];
+    int secretLen = 0;
+
+    try
+    {
+      for (int n = is.read(secretBuf, 0, secretBuf.length); n >= 0;
+           n = is.read(secretBuf, secretLen, secretBuf.length - secretLen))
+      {
+        secretLen += n;
+        if (secretLen >= secretBuf.length)
+          secretBuf = secureResize(secretBuf, secretBuf.length + ALLOC_STEP_SIZE);
+      }
+      return (secretLen < secretBuf.length) ? secureResize(secretBuf, secretLen) : secretBuf;
+    }
+    catch (Throwable e)
+    {
+      // Need to blank the buffer if an I/O error or OOM occurs (so the secret doesn't appear in the heap dump).
+      if (secretBuf != null)
+        Arrays.fill(secretBuf, (byte)0);
+      throw e;
+    }
+  }
+
+  static void destroySecret(SecretKey secret)
+  {
+    try
+    {
+      if (secret != null)
+        secret.destroy();
+    }
+    catch (DestroyFailedException e)
+    {
+      // Unlikely to happen - all we can do is log the exception.
+      log.log(Level.FINEST, "Unable to destroy secret", e);
+    }
+  }
+}
@@ -9,22 +9,13 @@ import com.inomial.turnstile.gw.spi.GatewayRequest;
 import com.inomial.turnstile.gw.spi.TokeniseRequest;
 
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-import javax.security.auth.DestroyFailedException;
 import javax.ws.rs.InternalServerErrorException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
 import java.util.UUID;
-import java.util.function.Consumer;
-import java.util.function.Function;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /** Routines used for ensuring security of the web form entry for the AU Direct Debit gateway by computing a MAC
@@ -50,6 +41,12 @@ class WebFormMac
   private static final String SECRET_ALGORITHM =
       System.getenv().getOrDefault("WEBFORMMAC_ALGORITHM", "HmacSHA256");
 
+  /** Whether HMACs issued in the legacy (Java object serialisation) format are still accepted.
+   * <p>Legacy HMACs stop being useful once every web form issued before the upgrade has timed out, after which this
+   * can be turned off.</p> */
+  private static final boolean LEGACY_HMAC_COMPAT =
+      Boolean.parseBoolean(System.getenv().getOrDefault("WEBFORMMAC_LEGACY_COMPAT", "true"));
+
   /** Contains an HMAC-timestamp pair for a web form creation; the HMAC is computed over the security-sensitive
    * parameters of the form (including the timestamp), and the timestamp is made separately available so it can be
    * used to recompute the HMAC when verifiying it. */
@@ -109,11 +106,6 @@ class WebFormMac
       this.formCreationTime = formCreationTime;
     }
     
-    /** Use this constructor when creating a new HMAC */
-    protected WebFormAuthorisation(int tid, UUID principal, GatewayRequest req)
-    {
-      this(tid, principal, req, Instant.now().truncatedTo(ChronoUnit.MILLIS));
-    }
 
     /** Tenant ID that request was made under */
     public final int tid;
@@ -131,18 +123,12 @@ class WebFormMac
     // Operation-specific fields will follow hereon in subclasses.
   }
   
-  /** HMAC message body used when signing a token-capture web form request. */
+  /** HMAC message body that was used when signing a token-capture web form request, prior to
+   * {@link CaptureFormEncoding}. Only retained so that HMACs issued by earlier versions can still be verified. */
   private static class CaptureFormAuthorisation extends WebFormAuthorisation
   {
     private static final long serialVersionUID = 5679156574001177919L;
 
-    /** Use this constructor when creating a new HMAC */
-    CaptureFormAuthorisation(int tid, UUID principal, TokeniseRequest req)
-    {
-      super(tid, principal, req);
-      this.paymentMethodId = req.paymentMethodId;
-    }
-    
     /** Use this constructor when verifying against a previous HMAC */
     CaptureFormAuthorisation(int tid, UUID principal, CaptureQueryRequest req, Instant formCreationTime)
     {
@@ -174,113 +160,8 @@ class WebFormMac
     }
   }
 
-  private static byte[] secureResize(byte[] oldBuf, int newSize)
-  {
-    byte[] newBuf = Arrays.copyOf(oldBuf, newSize);
-    Arrays.fill(oldBuf, (byte)0);
-    return newBuf;
-  }
-
-  /** Reads the first line of the stream (up to first CR or LF chracter).
-   * @param is Binary stream to read line of text from.
-   * @return Byte buffer containing the first line of text read from the stream, including trailing spaces.
-   * <p>The byte data in this buffer will be guaranteed to be the only copy of this data in the entire JVM
-   * memory (any other intermediate buffers will be zero-filled before being relegated to garbage collection).</p>
-   * <p>If the stream returns EOF immedidately, then a zero-length array will be returned.</p>
-   * @throws IOException if an I/O error occurs while reading the line */
-  private static byte[] loadRawSecret(InputStream is) throws IOException
-  {
-    final int ALLOC_STEP_SIZE = 32;
-    byte[] secretBuf = new byte[ALLOC_STEP_SIZE];
-    int secretLen = 0;
-
-    try
-    {
-      for (int b = is.read(); b >= 0; b = is.read())
-      {
-        if (secretLen >= secretBuf.length)
-          secretBuf = secureResize(secretBuf, secretBuf.length + ALLOC_STEP_SIZE);
-        secretBuf[secretLen++] = (byte)b;
-      }
-      return (secretLen < secretBuf.length) ? secureResize(secretBuf, secretLen) : secretBuf;
-    }
-    catch (Throwable e)
-    {
-      // Need to blank the buffer if an I/O error or OOM occurs (so the secret doesn't appear in the heap dump).
-      if (secretBuf != null)
-        Arrays.fill(secretBuf, (byte)0);
-      throw e;
-    }
-  }
-
-  /** Loads web form MAC secret from disk.
-   * @return SecretKey that can be used to intialise the {@code javax.crypto.Mac} class.
-   * @throws InternalServerErrorException if there was an error loading the secret. */
-  private static SecretKey getSecret()
-  {
-    // As an experiment for now, we'll read the secret from disk every time it's requested.
-    // This makes it easy to rotate secret keys without having to restart the microservice.
-    // However if this strategy is causing performance bottlenecks, then we may need to look at using a file change
-    // monitor to notify us if the secret file is modified.  -BLR
-    byte[] secretBytes = null;
-    try
-    {
-      secretBytes = loadRawSecret(new FileInputStream(SECRET_FILE));
-      return new SecretKeySpec(secretBytes, SECRET_ALGORITHM);
-    }
-    catch (IOException e)
-    {
-      throw new InternalServerErrorException("Unable to load web form MAC secret file: " + SECRET_FILE, e);
-    }
-    finally
-    {
-      // Need to blank the secret from memory (in case of an I/O error or OOM occurs)
-      if (secretBytes != null)
-        Arrays.fill(secretBytes, (byte)0);
-    }
-  }
-  
-  // This is an experiment to see if it makes it easier for callers
-  // that need the key to remember to destroy it when done.
-  private static <R> R withSecret(Function<SecretKey, R> action)
-  {
-    SecretKey secret = getSecret();
-    try
-    {
-      return action.apply(secret);
-    }
-    finally
-    {
-      destroySecret(secret);
-    }
-  }
-
-  private static void withSecret(Consumer<SecretKey> action)
-  {
-    SecretKey secret = getSecret();
-    try
-    {
-      action.accept(secret);
-    }
-    finally
-    {
-      destroySecret(secret);
-    }
-  }
-
-  private static void destroySecret(SecretKey secret)
-  {
-    try
-    {
-      if (secret != null)
-        secret.destroy();
-    }
-    catch (DestroyFailedException e)
-    {
-      // Unlikely to happen - all we can do is log the exception.
-      log.log(Level.FINEST, "Unable to destroy secret", e);
-    }
-  }
+  /** Cached copy of the web form MAC secret (including any previous keys that are retained after rotation). */
+  private static final WebFormKeyring keyring = new WebFormKeyring(SECRET_FILE, SECRET_ALGORITHM);
 
   /** Performs a check to ensure that the webform MAC secret is available and usable.
    * <p>This allows a microservice to perform a start-up self-test to ensure that it can rely on the webform MAC secret
@@ -290,11 +171,11 @@ class WebFormMac
   static void checkSecret()
   {
     final String testMessage = "TotallyLooksLikeAWebFormMacMessage";
-    withSecret((secret) -> {
-      byte[] testMac = HmacUtil.computeMac(secret, testMessage, MessageSerialisers.UTF8_STRING, MacSerialisers.RAW);
-      if (!HmacUtil.verifyMac(secret, testMac, testMessage, MessageSerialisers.UTF8_STRING, MacSerialisers.RAW))
-        throw new IllegalArgumentException("Web Form MAC failed to validate test string");
-    });
+    keyring.reload();
+    SecretKey secret = keyring.currentKey().secret();
+    byte[] testMac = HmacUtil.computeMac(secret, testMessage, MessageSerialisers.UTF8_STRING, MacSerialisers.RAW);
+    if (!HmacUtil.verifyMac(secret, testMac, testMessage, MessageSerialisers.UTF8_STRING, MacSerialisers.RAW))
+      throw new IllegalArgumentException("Web Form MAC failed to validate test string");
   }
 
   /** Compute the HMAC for a token-capture web form request.
@@ -304,13 +185,18 @@ class WebFormMac
    * (used to enforce timeouts on the web form). */
   static HmacTimestamp createCaptureFormHmac(TokeniseRequest tokeniseRequest)
   {
-    return withSecret((secret) -> {
-      CaptureFormAuthorisation authMsg = new CaptureFormAuthorisation(
-        RequestScope.getTid(), RequestScope.getPrincipalId(), tokeniseRequest);
-      String hmac = HmacUtil.computeMac(secret, authMsg,
-        MessageSerialisers.OBJECT_STREAM, MacSerialisers.BASE64_URL);
-      return new HmacTimestamp(hmac,authMsg.formCreationTime);
-    });
+    return createCaptureFormHmac(RequestScope.getTid(), RequestScope.getPrincipalId(), tokeniseRequest);
+  }
+
+  /** Compute the HMAC for a token-capture web form request on behalf of the given tenant and principal.
+   * @see #createCaptureFormHmac(TokeniseRequest) */
+  static HmacTimestamp createCaptureFormHmac(int tid, UUID principal, TokeniseRequest tokeniseRequest)
+  {
+    Instant formCreationTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    String hmac = CaptureFormEncoding.sign(keyring.currentKey().mac(), tid, principal,
+      tokeniseRequest.endUserIpAddress, tokeniseRequest.accountId, tokeniseRequest.paymentMethodId,
+      formCreationTime.toEpochMilli());
+    return new HmacTimestamp(hmac, formCreationTime);
   }
   
   /** Verifies that a HMAC isued for a token-capture web form is authentic.
@@ -324,11 +210,58 @@ class WebFormMac
    * {@code formCreationTime} match; {@code false} if there is a mismatch. */
   static boolean verifyCaptureFormHmac(String expectedHmac, CaptureQueryRequest queryRequest, Instant formCreationTime)
   {
-    return withSecret((secret) -> {
-      CaptureFormAuthorisation actualAuthMsg = new CaptureFormAuthorisation(
-        RequestScope.getTid(), RequestScope.getPrincipalId(), queryRequest, formCreationTime);
-      return HmacUtil.verifyMac(secret, expectedHmac, actualAuthMsg,
-        MessageSerialisers.OBJECT_STREAM, MacSerialisers.BASE64_URL);
-    });
+    return verifyCaptureFormHmac(RequestScope.getTid(), RequestScope.getPrincipalId(), expectedHmac, queryRequest,
+      formCreationTime);
+  }
+
+  /** Verifies that a HMAC issued for a token-capture web form on behalf of the given tenant and principal is authentic.
+   * @see #verifyCaptureFormHmac(String, CaptureQueryRequest, Instant) */
+  static boolean verifyCaptureFormHmac(int tid, UUID principal, String expectedHmac, CaptureQueryRequest queryRequest,
+    Instant formCreationTime)
+  {
+    if (expectedHmac == null)
+      return false;
+    if (!CaptureFormEncoding.isCanonical(expectedHmac))
+      return LEGACY_HMAC_COMPAT && verifyLegacyCaptureFormHmac(tid, principal, expectedHmac, queryRequest,
+        formCreationTime);
+
+    // Try the current key first; previous keys are only consulted for forms issued shortly before a key rotation.
+    long now = System.currentTimeMillis();
+    for (WebFormKeyring.Key key : keyring.verificationKeys())
+    {
+      if (!key.isExpired(now) && CaptureFormEncoding.verify(key.mac(), expectedHmac, tid, principal,
+          queryRequest.endUserIpAddress, queryRequest.accountId, queryRequest.paymentMethodId,
+          formCreationTime.toEpochMilli()))
+        return true;
+    }
+    return false;
+  }
+
+  /** Computes a HMAC for a token-capture web form in the legacy format: over the Java object serialisation of
+   * {@link CaptureFormAuthorisation}, with a new {@link javax.crypto.Mac} for each call, as earlier versions of this
+   * gateway issued them. Only used by {@code WebFormMacBenchmark}, to compare the cost of the two formats. */
+  static String createLegacyCaptureFormHmac(int tid, UUID principal, CaptureQueryRequest queryRequest,
+    Instant formCreationTime)
+  {
+    CaptureFormAuthorisation authMsg = new CaptureFormAuthorisation(tid, principal, queryRequest, formCreationTime);
+    return HmacUtil.computeMac(keyring.currentKey().secret(), authMsg, MessageSerialisers.OBJECT_STREAM,
+      MacSerialisers.BASE64_URL);
+  }
+
+  /** Verifies a HMAC that was computed over the Java object serialisation of {@link CaptureFormAuthorisation}, as
+   * issued by earlier versions of this gateway. */
+  private static boolean verifyLegacyCaptureFormHmac(int tid, UUID principal, String expectedHmac,
+    CaptureQueryRequest queryRequest, Instant formCreationTime)
+  {
+    CaptureFormAuthorisation actualAuthMsg = new CaptureFormAuthorisation(
+      tid, principal, queryRequest, formCreationTime);
+    long now = System.currentTimeMillis();
+    for (WebFormKeyring.Key key : keyring.verificationKeys())
+    {
+      if (!key.isExpired(now) && HmacUtil.verifyMac(key.secret(), expectedHmac, actualAuthMsg,
+          MessageSerialisers.OBJECT_STREAM, MacSerialisers.BASE64_URL))
+        return true;
+    }
+    return false;
   }
 }
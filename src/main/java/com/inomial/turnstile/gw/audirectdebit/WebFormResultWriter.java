@@ -0,0 +1,18 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.turnstile.gw.spi.WebFormResult;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+
+/** Streams {@link WebFormResult}s to the response; see {@link JsonResultWriter}. */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class WebFormResultWriter extends JsonResultWriter<WebFormResult>
+{
+  public WebFormResultWriter()
+  {
+    super(WebFormResult.class);
+  }
+}
@@ -0,0 +1,159 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.AUBankAccountDetails;
+import com.inomial.cim.turnstile.DirectDebitPaymentRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/** Checks the ABA files and references files that {@link AbaFileWriter} writes against golden files in
+ * {@code src/test/resources/aba}, which were laid out by hand from the ABA record formats. */
+public class AbaFileWriterTest
+{
+  static final AbaFileWriter.Descriptor DESCRIPTOR = new AbaFileWriter.Descriptor("CBA", "INOMIAL PTY LTD", 301500,
+    "DIRECT DEBIT", "062000987654321", "INOMIAL");
+
+  static final LocalDate PROCESSING_DATE = LocalDate.of(2026, 10, 16);
+
+  private File dir;
+
+  @Before
+  public void createDirectory() throws IOException
+  {
+    dir = Files.createTempDirectory("aba").toFile();
+  }
+
+  @After
+  public void deleteDirectory() throws IOException
+  {
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+        Files.delete(file.toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+
+  @Test
+  public void writesTheGoldenFiles() throws Exception
+  {
+    List<File> files;
+    try (AbaFileWriter writer = new AbaFileWriter(dir, "debits", DESCRIPTOR, PROCESSING_DATE, 2))
+    {
+      // A 9-digit account number, with a plain name.
+      writer.write(debit("3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "062000123456789", "12.34", "J CITIZEN"));
+      // A short account number, right-justified; a name that is truncated and has a non-ASCII character.
+      writer.write(debit("00000000-0000-0000-0000-00000000002a", "0830041234", "0.01",
+        "Zo\u00eb O'Brien-Smith & Associates Pty Ltd"));
+      // The third debit starts a second file; the tab in the name is written as a blank.
+      writer.write(debit("c0ffee00-1234-5678-9abc-def012345678", "73300012345678", "1000.00", "A\tB"));
+      files = writer.finish();
+      assertEquals(3, writer.totalRecords());
+      assertEquals(101235, writer.totalDebitCents());
+    }
+
+    assertEquals(Arrays.asList(new File(dir, "debits-0001.aba"), new File(dir, "debits-0002.aba")), files);
+    for (File file : files)
+    {
+      assertGolden(file);
+      assertGolden(AbaFileWriter.refsFile(file));
+    }
+    assertEquals("Temporary files were left behind", 4, dir.listFiles().length);
+  }
+
+  @Test
+  public void writesEveryRecordAtTheFixedLength() throws IOException
+  {
+    try (AbaFileWriter writer = new AbaFileWriter(dir, "debits", DESCRIPTOR, PROCESSING_DATE, 1000))
+    {
+      for (int i = 0; i < 1500; i++)
+        writer.write(debit(new UUID(i, i).toString(), "06200012345" + (i % 10), "1." + (10 + i % 90), "N" + i));
+      for (File file : writer.finish())
+      {
+        String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).split("\r\n", -1);
+        assertEquals("File should end with CRLF", "", lines[lines.length - 1]);
+        for (int i = 0; i < lines.length - 1; i++)
+          assertEquals(file.getName() + " line " + (i + 1), AbaFileWriter.RECORD_LENGTH, lines[i].length());
+        assertEquals('0', lines[0].charAt(0));
+        assertEquals('7', lines[lines.length - 2].charAt(0));
+      }
+    }
+  }
+
+  @Test
+  public void rejectsDebitsThatCantBeWrittenWithoutWritingAnything() throws IOException
+  {
+    try (AbaFileWriter writer = new AbaFileWriter(dir, "debits", DESCRIPTOR, PROCESSING_DATE, 10))
+    {
+      for (DirectDebitPaymentRequest bad : new DirectDebitPaymentRequest[] {
+        debit("3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "062000", "1.00", "TOO SHORT"),
+        debit("3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "0620001234567890", "1.00", "TOO LONG"),
+        debit("3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "062-000-1234", "1.00", "NOT DIGITS"),
+        debit("3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "0620001234", "0.00", "ZERO"),
+        debit("3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "0620001234", "1.001", "FRACTION OF A CENT"),
+        debit("3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "0620001234", "100000000.00", "TOO MUCH"),
+      })
+      {
+        try
+        {
+          writer.write(bad);
+          fail("Accepted " + bad.bankAccount.name);
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+      }
+      assertEquals(0, writer.totalRecords());
+      assertEquals(0, writer.finish().size());
+    }
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  static DirectDebitPaymentRequest debit(String transferId, String account, String amount, String name)
+  {
+    DirectDebitPaymentRequest request = new DirectDebitPaymentRequest();
+    request.transferId = UUID.fromString(transferId);
+    request.amount = new BigDecimal(amount);
+    request.bankAccount = new AUBankAccountDetails();
+    request.bankAccount.name = name;
+    request.bankAccount.account = account;
+    return request;
+  }
+
+  /** @return Contents of a golden file. */
+  static byte[] golden(String name) throws IOException, URISyntaxException
+  {
+    URL url = AbaFileWriterTest.class.getResource("/aba/" + name);
+    if (url == null)
+      throw new IOException("No golden file " + name);
+    return Files.readAllBytes(Paths.get(url.toURI()));
+  }
+
+  private static void assertGolden(File file) throws IOException, URISyntaxException
+  {
+    byte[] expected = golden(file.getName());
+    byte[] actual = Files.readAllBytes(file.toPath());
+    // Compare as text first, so that a mismatch shows where the records differ.
+    assertEquals(file.getName(), new String(expected, StandardCharsets.US_ASCII),
+      new String(actual, StandardCharsets.US_ASCII));
+    assertArrayEquals(expected, actual);
+  }
+}
@@ -0,0 +1,88 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inomial.cim.turnstile.AUBankAccountDetails;
+import com.inomial.turnstile.gw.spi.CaptureResult;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/** Checks that {@link CaptureToken} builds exactly the token that Jackson would serialise from an
+ * {@link AUBankAccountDetails}, and that it reads back as the same details, for random names and account numbers. */
+public class CaptureTokenTest
+{
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final int CASES = 20_000;
+
+  /** Characters that random names and account numbers are made of, besides control characters: digits, JSON syntax,
+   * DEL, non-ASCII characters of two, three and four UTF-8 bytes, and unpaired surrogates. */
+  private static final String[] CHARS = {
+    "0", "1", "5", "9", "J", " ", "-", "'", "\"", "\\", "/", "{", "}", ":", ",", "\u007f", "\u00e9", "\u00a0",
+    "\u2028", "\u4e2d", "\ud83d\ude00", "\ud800", "\udc00", "\ufeff",
+  };
+
+  @Test
+  public void buildsTheSameTokenAsJackson() throws Exception
+  {
+    Random random = new Random(20261016);
+    CaptureResult result = new CaptureResult();
+    for (int i = 0; i < CASES; i++)
+    {
+      String name = random.nextInt(20) == 0 ? null : randomString(random, 30);
+      String bsb = random.nextInt(4) == 0 ? randomString(random, 8) : randomDigits(random, 6);
+      String account = random.nextInt(4) == 0 ? randomString(random, 16) : randomDigits(random, 6 + random.nextInt(4));
+      if (bsb.length() + account.length() < CaptureToken.MIN_ACCOUNT_LENGTH)
+        account += randomDigits(random, CaptureToken.MIN_ACCOUNT_LENGTH);
+
+      AUBankAccountDetails details = new AUBankAccountDetails();
+      details.name = name;
+      details.account = bsb + account;
+      CaptureToken.fill(result, name, bsb, account, "");
+
+      String context = "name=" + name + ", account=" + details.account;
+      assertEquals(context, objectMapper.writeValueAsString(details), result.token);
+      AUBankAccountDetails read = objectMapper.readValue(result.token, AUBankAccountDetails.class);
+      assertEquals(context, name, read.name);
+      assertEquals(context, details.account, read.account);
+      assertEquals(context, CaptureToken.hint(details.account), result.hint);
+    }
+  }
+
+  @Test
+  public void escapesEveryControlCharacterAsJacksonDoes() throws Exception
+  {
+    CaptureResult result = new CaptureResult();
+    for (char c = 0; c < 0x20; c++)
+    {
+      AUBankAccountDetails details = new AUBankAccountDetails();
+      details.name = "a" + c + "b";
+      details.account = "062000" + c + "12345678";
+      CaptureToken.fill(result, details.name, "062000", c + "12345678", "");
+      assertEquals("U+" + Integer.toHexString(c), objectMapper.writeValueAsString(details), result.token);
+    }
+  }
+
+  private static String randomString(Random random, int maxLength)
+  {
+    StringBuilder s = new StringBuilder();
+    for (int i = random.nextInt(maxLength + 1); i > 0; i--)
+    {
+      if (random.nextInt(4) == 0)
+        s.append((char)random.nextInt(0x20));
+      else
+        s.append(CHARS[random.nextInt(CHARS.length)]);
+    }
+    return s.toString();
+  }
+
+  private static String randomDigits(Random random, int length)
+  {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < length; i++)
+      s.append((char)('0' + random.nextInt(10)));
+    return s.toString();
+  }
+}
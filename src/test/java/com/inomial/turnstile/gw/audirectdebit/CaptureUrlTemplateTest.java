@@ -0,0 +1,148 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.inomial.turnstile.api.status.CaptureStatus;
+import com.inomial.turnstile.gw.common.URLInterpolator;
+import com.inomial.turnstile.gw.spi.TokeniseRequest;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that compiled capture URL templates render exactly what {@code URLInterpolator} does, for random templates,
+ * previous statuses and return URLs. */
+public class CaptureUrlTemplateTest
+{
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final int CASES = 20_000;
+
+  /** Pieces that random templates are made of, including some that can't be compiled. */
+  private static final String[] TEMPLATE_PIECES = {
+    "https://", "http://", "pay.example.com", "localhost:8443", "/capture", "/{gw}", "{gw}", "/", "/a-b_c.d~e",
+    "/%20x", "/caf\u00e9", ";v=1", "?", "?tenant=42", "&mode=dd", "=", "&", "#top", "{host}", "{", "}", "{gw",
+  };
+
+  /** Characters that random return URLs and HMACs are made of: URL syntax, characters that need escaping, and
+   * non-ASCII characters of two, three and four UTF-8 bytes. */
+  private static final String[] VALUE_CHARS = {
+    "a", "Z", "0", "9", "-", "_", ".", "*", "~", " ", "+", "/", "=", "?", "&", "#", "%", ":", "@", "!", "'", "\"",
+    "<", "\u00e9", "\u00a0", "\u4e2d", "\ud83d\ude00",
+  };
+
+  private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+  private final HttpServletRequest request =
+    StubHttpServletRequest.create("https://gw.example.com/turnstile/gw", "203.0.113.5", null);
+
+  @Test
+  public void compilesTemplatesWithOnlyTheGatewayPlaceholder()
+  {
+    assertNotNull(CaptureUrlTemplate.compile("https://pay.example.com/capture/{gw}"));
+    assertNotNull(CaptureUrlTemplate.compile("https://pay.example.com/{gw}/capture?tenant=42"));
+    assertNull(CaptureUrlTemplate.compile("https://{host}/capture/{gw}"));
+    assertNull(CaptureUrlTemplate.compile("https://pay.example.com/capture#{gw}"));
+    assertNull(CaptureUrlTemplate.compile("https://pay.example.com/capture?tenant=42&"));
+  }
+
+  @Test
+  public void rendersTheSameUrlsAsUrlInterpolator() throws Exception
+  {
+    Random random = new Random(20261016);
+    int compiled = 0;
+    for (int i = 0; i < CASES; i++)
+    {
+      String template = randomTemplate(random);
+      TokeniseRequest tokeniseRequest = randomTokeniseRequest(random);
+      String hmac = random.nextInt(10) == 0 ? randomValue(random) : randomBase64(random);
+      long fct = random.nextLong() & Long.MAX_VALUE;
+
+      String expected;
+      try
+      {
+        expected = interpolate(template, hmac, fct, tokeniseRequest);
+      }
+      catch (RuntimeException e)
+      {
+        // Not a template that URLInterpolator accepts; there's nothing to compare.
+        continue;
+      }
+      boolean compilable = CaptureUrlTemplate.compile(template) != null && tokeniseRequest.returnUrl != null;
+      if (compilable)
+        compiled++;
+      Supplier<String> interpolator = compilable
+        ? () -> { throw new AssertionError("Compiled template fell back to URLInterpolator: " + template); }
+        : () -> interpolate(template, hmac, fct, tokeniseRequest);
+      String actual = CaptureUrlTemplate.render(template, hmac, fct, tokeniseRequest.prevStatus,
+        tokeniseRequest.returnUrl, interpolator);
+      assertEquals("template=" + template + ", hmac=" + hmac + ", prevStatus=" + tokeniseRequest.prevStatus
+        + ", returnUrl=" + tokeniseRequest.returnUrl, expected, actual);
+    }
+    // Most of the comparisons must have been of the compiled path, or this test proves nothing.
+    assertTrue("Only " + compiled + " of " + CASES + " templates were compiled", compiled > CASES / 4);
+  }
+
+  private String interpolate(String template, String hmac, long fct, TokeniseRequest tokeniseRequest)
+  {
+    return URLInterpolator.forCardCaptureUrl(template, RSAUDirectDebit.GW, request)
+      .addQueryArg("hmac", hmac)
+      .addQueryArg("fct", fct)
+      .addQueryArgIfNotNull("prevStatus", tokeniseRequest.prevStatus)
+      .addBase64QueryArg("action", tokeniseRequest.returnUrl)
+      .render();
+  }
+
+  private static String randomTemplate(Random random)
+  {
+    StringBuilder template = new StringBuilder("https://pay.example.com");
+    for (int i = random.nextInt(6); i >= 0; i--)
+    {
+      // Mostly pieces that can be compiled.
+      int pieces = random.nextInt(4) == 0 ? TEMPLATE_PIECES.length : 13;
+      template.append(TEMPLATE_PIECES[random.nextInt(pieces)]);
+    }
+    return template.toString();
+  }
+
+  /** @return A request with a random previous status (or none) and return URL, with the types that the gateway
+   * gets them as. */
+  private static TokeniseRequest randomTokeniseRequest(Random random) throws Exception
+  {
+    ObjectNode json = objectMapper.createObjectNode();
+    CaptureStatus[] statuses = CaptureStatus.values();
+    if (random.nextBoolean())
+      json.put("prevStatus", statuses[random.nextInt(statuses.length)].name());
+    if (random.nextInt(50) != 0)
+    {
+      String returnUrl = random.nextInt(4) == 0 ? randomValue(random)
+        : "https://portal.example.com/payment-methods/" + randomValue(random);
+      json.put("returnUrl", returnUrl);
+    }
+    return objectMapper.treeToValue(json, TokeniseRequest.class);
+  }
+
+  /** @return A value of up to 40 characters, covering every length modulo 3 once encoded in UTF-8. */
+  private static String randomValue(Random random)
+  {
+    StringBuilder value = new StringBuilder();
+    for (int i = random.nextInt(41); i > 0; i--)
+      value.append(VALUE_CHARS[random.nextInt(VALUE_CHARS.length)]);
+    return value.toString();
+  }
+
+  /** @return A value shaped like a Base64 HMAC. */
+  private static String randomBase64(Random random)
+  {
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 43; i++)
+      value.append(BASE64_CHARS.charAt(random.nextInt(BASE64_CHARS.length())));
+    return value.append('=').toString();
+  }
+}
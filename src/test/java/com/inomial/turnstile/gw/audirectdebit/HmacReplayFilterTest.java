@@ -0,0 +1,146 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import org.junit.Test;
+
+import javax.ws.rs.ServiceUnavailableException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Checks {@link HmacReplayFilter}'s window and generations, and compares it with a set of every form recorded. */
+public class HmacReplayFilterTest
+{
+  private static final long WINDOW = 900_000;
+  private static final long BUCKET = WINDOW / (HmacReplayFilter.GENERATIONS - 1);
+  private static final long MAX_BYTES = 1 << 20;
+
+  /** Some time well after the epoch, at the start of a bucket. */
+  private static final long START = 1_000 * BUCKET;
+
+  @Test
+  public void coversEveryFormWithinTheWindowAndNoneOlderThanAllGenerations()
+  {
+    HmacReplayFilter filter = new HmacReplayFilter(WINDOW, MAX_BYTES);
+    Random random = new Random(20261016);
+    for (int i = 0; i < 10_000; i++)
+    {
+      long now = START + random.nextInt((int)(10 * BUCKET));
+      long age = random.nextInt((int)(WINDOW + 1));
+      assertTrue("Form " + age + "ms old not covered", filter.covers(now - age, now));
+      long tooOld = age + HmacReplayFilter.GENERATIONS * BUCKET;
+      assertFalse("Form " + tooOld + "ms old covered", filter.covers(now - tooOld, now));
+    }
+    // Exactly at the edges: the first moment of the oldest remembered bucket, and the last moment before it.
+    long now = START + BUCKET / 2;
+    assertTrue(filter.covers(START - (HmacReplayFilter.GENERATIONS - 1) * BUCKET, now));
+    assertFalse(filter.covers(START - (HmacReplayFilter.GENERATIONS - 1) * BUCKET - 1, now));
+    // Clock skew between instances: forms from the future are covered.
+    assertTrue(filter.covers(now + WINDOW, now));
+  }
+
+  @Test
+  public void recordsEachFormOnce()
+  {
+    HmacReplayFilter filter = new HmacReplayFilter(WINDOW, MAX_BYTES);
+    long now = START + 1234;
+    assertFalse(filter.isReplay("a", now - 10, now));
+    assertTrue(filter.record("a", now - 10, now));
+    assertTrue(filter.isReplay("a", now - 10, now));
+    assertFalse(filter.record("a", now - 10, now));
+    // The same HMAC with a different creation time in the same bucket is still a replay; the HMAC covers the time.
+    assertFalse(filter.record("a", now - 20, now));
+    assertTrue(filter.record("b", now - 10, now));
+    // Too old to be covered: never accepted.
+    long old = now - HmacReplayFilter.GENERATIONS * BUCKET;
+    assertFalse(filter.isReplay("c", old, now));
+    assertFalse(filter.record("c", old, now));
+  }
+
+  @Test
+  public void forgetsAGenerationOnlyWhenItsBucketIsReused()
+  {
+    HmacReplayFilter filter = new HmacReplayFilter(WINDOW, MAX_BYTES);
+    long created = START + 10;
+    assertTrue(filter.record("a", created, created));
+    assertTrue(filter.record("b", created + BUCKET, created + BUCKET));
+
+    // Still remembered at the end of the window, even though newer buckets have been used meanwhile.
+    for (int g = 1; g < HmacReplayFilter.GENERATIONS; g++)
+    {
+      long now = created + g * BUCKET;
+      assertTrue(filter.record("new" + g, now, now));
+      assertFalse("Forgotten after " + g + " bucket(s)", filter.record("a", created, now));
+    }
+
+    // The next bucket reuses the first generation, clearing "a" but keeping "b", which is in another generation.
+    long now = START + HmacReplayFilter.GENERATIONS * BUCKET;
+    assertTrue(filter.record("c", now, now));
+    assertFalse(filter.isReplay("a", created, now));
+    assertFalse("Forms that are too old are not accepted", filter.record("a", created, now));
+    assertTrue(filter.isReplay("b", created + BUCKET, now));
+    assertFalse(filter.record("b", created + BUCKET, now));
+  }
+
+  @Test
+  public void matchesAMapOfRecordedForms()
+  {
+    HmacReplayFilter filter = new HmacReplayFilter(WINDOW, MAX_BYTES);
+    // Forms are told apart by HMAC within each bucket, so the model is keyed by both.
+    Set<String> recorded = new HashSet<>();
+    Random random = new Random(20261016);
+    long now = START;
+    for (int i = 0; i < 200_000; i++)
+    {
+      now += random.nextInt(50);
+      long created = now - random.nextInt((int)(2 * WINDOW));
+      // Reuse earlier HMACs often, so there are plenty of replays.
+      String hmac = Integer.toString(random.nextInt(50_000), 36);
+      String key = hmac + "@" + Math.floorDiv(created, BUCKET);
+      boolean covered = filter.covers(created, now);
+      boolean replay = recorded.contains(key);
+
+      assertEquals("isReplay for " + hmac, covered && replay, filter.isReplay(hmac, created, now));
+      boolean accepted = filter.record(hmac, created, now);
+      assertEquals("record for " + hmac, covered && !replay, accepted);
+      if (accepted)
+        recorded.add(key);
+    }
+  }
+
+  @Test
+  public void refusesFormsWhenAGenerationIsFull()
+  {
+    // The smallest filter: 16 slots per generation, of which 12 may be used.
+    HmacReplayFilter filter = new HmacReplayFilter(WINDOW, 0);
+    long now = START;
+    for (int i = 0; i < 12; i++)
+      assertTrue(filter.record("form" + i, now, now));
+    try
+    {
+      filter.record("form12", now, now);
+      fail("Full filter accepted a form");
+    }
+    catch (ServiceUnavailableException expected)
+    {
+    }
+    assertFalse("Replays are still detected when full", filter.record("form0", now, now));
+    // Other generations have their own space.
+    assertTrue(filter.record("form12", now + BUCKET, now + BUCKET));
+  }
+
+  @Test
+  public void capsTimeoutsToTheWindow()
+  {
+    HmacReplayFilter filter = new HmacReplayFilter(WINDOW, MAX_BYTES);
+    assertEquals(900, filter.windowSec());
+    assertEquals(60, filter.timeoutSec(60));
+    assertEquals(900, filter.timeoutSec(900));
+    assertEquals(900, filter.timeoutSec(3600));
+    assertEquals(900, filter.timeoutSec(3600));
+  }
+}
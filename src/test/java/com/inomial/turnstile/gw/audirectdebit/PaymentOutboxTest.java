@@ -0,0 +1,288 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inomial.cim.turnstile.AUBankAccountDetails;
+import com.inomial.cim.turnstile.DirectDebitPaymentRequest;
+import com.inomial.secore.kafka.KafkaMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Drives the {@link PaymentOutbox} against a recording {@link MessageSink}, reopening it on the same directory to
+ * stand in for the microservice restarting. */
+public class PaymentOutboxTest
+{
+  private static final String TOPIC = "petal.event";
+
+  /** Small enough that a few dozen messages fill several segments. */
+  private static final int SEGMENT_SIZE = 4096;
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private File dir;
+  private final List<PaymentOutbox> outboxes = new ArrayList<>();
+  private final List<BatchSender.Pending> sent = Collections.synchronizedList(new ArrayList<>());
+  private final MessageSink sink = (topic, key, message) ->
+  {
+    sent.add(new BatchSender.Pending(key, message));
+    return CompletableFuture.completedFuture(null);
+  };
+
+  @Before
+  public void createDirectory() throws IOException
+  {
+    dir = Files.createTempDirectory("payment-outbox").toFile();
+  }
+
+  @After
+  public void stopOutboxes() throws InterruptedException, IOException
+  {
+    for (PaymentOutbox outbox : outboxes)
+      outbox.stop();
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+        Files.delete(file.toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+
+  @Test
+  public void sendsAcceptedMessagesInOrder() throws InterruptedException
+  {
+    PaymentOutbox outbox = open(16);
+    outbox.start();
+    for (int i = 0; i < 20; i++)
+      assertTrue(outbox.submit(key(i), message(i)));
+
+    await(() -> sent.size() == 20);
+    assertEquals(keys(0, 20), sentKeys());
+    assertEquals(20, outbox.stats().messagesSent.get());
+    assertTrue(outbox.isHealthy());
+  }
+
+  @Test
+  public void replaysUnsentMessagesAfterARestart() throws InterruptedException
+  {
+    // Never started, as if the microservice stopped before the drainer got to them.
+    PaymentOutbox first = open(16);
+    for (int i = 0; i < 10; i++)
+      assertTrue(first.submit(key(i), message(i)));
+
+    PaymentOutbox second = open(16);
+    second.start();
+    await(() -> sent.size() == 10);
+    assertEquals(keys(0, 10), sentKeys());
+  }
+
+  @Test
+  public void resumesFromTheCheckpointAfterARestart() throws InterruptedException, IOException
+  {
+    PaymentOutbox first = open(16);
+    first.start();
+    for (int i = 0; i < 10; i++)
+      assertTrue(first.submit(key(i), message(i)));
+    // Stopping before the checkpoint is written would rightly send them again.
+    int end = endOfRecords(segmentFile(0));
+    await(() -> Arrays.equals(new int[] { 0, end }, checkpoint()));
+    first.stop();
+    sent.clear();
+
+    PaymentOutbox second = open(16);
+    second.start();
+    for (int i = 10; i < 15; i++)
+      assertTrue(second.submit(key(i), message(i)));
+    await(() -> sent.size() == 5);
+    Thread.sleep(200);
+    assertEquals("Acknowledged messages were sent again", keys(10, 15), sentKeys());
+  }
+
+  @Test
+  public void rejectsMessagesOnceEverySegmentIsInUseAndRecyclesDrainedSegments() throws InterruptedException
+  {
+    PaymentOutbox outbox = open(3);
+    int accepted = 0;
+    while (outbox.submit(key(accepted), message(accepted)))
+      accepted++;
+    assertTrue("Messages should have filled more than one segment", accepted > 5);
+    assertEquals(1, outbox.stats().rejected.get());
+    assertEquals(3, segmentFiles().size());
+
+    outbox.start();
+    int expected = accepted;
+    await(() -> sent.size() == expected);
+    assertEquals(keys(0, accepted), sentKeys());
+    // Drained segments are deleted, leaving only the one being written.
+    await(() -> segmentFiles().size() == 1);
+
+    // ...so there's room for as many again, once the drainer has caught up.
+    for (int i = accepted; i < 2 * accepted; i++)
+    {
+      int n = i;
+      await(() -> outbox.submit(key(n), message(n)));
+    }
+    await(() -> sent.size() == 2 * expected);
+    assertEquals(keys(0, 2 * accepted), sentKeys());
+  }
+
+  @Test
+  public void quarantinesTheRestOfASegmentAfterACorruptRecord() throws InterruptedException, IOException
+  {
+    PaymentOutbox outbox = open(16);
+    for (int i = 0; i < 3; i++)
+      assertTrue(outbox.submit(key(i), message(i)));
+
+    // Flip a byte in the second record's payload, after the 8-byte header of each record.
+    File segment = segmentFile(0);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw"))
+    {
+      int firstLength = raf.readInt();
+      long corruptAt = 8 + firstLength + 8 + 4;
+      raf.seek(corruptAt);
+      int b = raf.read();
+      raf.seek(corruptAt);
+      raf.write(b ^ 0xff);
+    }
+
+    outbox.start();
+    await(() -> new File(dir, segment.getName() + ".corrupt").exists());
+    assertFalse(segment.exists());
+    // Later messages go into a new segment, so they're still sent.
+    assertTrue(outbox.submit(key(3), message(3)));
+    await(() -> sent.size() == 2);
+    assertEquals(Arrays.asList(key(0), key(3)), sentKeys());
+  }
+
+  @Test
+  public void republishesPaymentRequestsExactlyAsSubmitted() throws IOException, InterruptedException
+  {
+    DirectDebitPaymentRequest request = new DirectDebitPaymentRequest();
+    request.transferId = UUID.randomUUID();
+    request.bankAccount = new AUBankAccountDetails();
+    request.bankAccount.name = "Zoë O'Brien-Łukasiewicz \u0001\t\"quoted\"";
+    request.bankAccount.account = "062000123456789";
+    // More significant digits than a double holds, and a trailing zero that a double would drop.
+    request.amount = new BigDecimal("123456789012345.50");
+    KafkaMessage message =
+      new KafkaMessage(RSAUDirectDebit.KAFKA_MESSAGE_SOURCE, RSAUDirectDebit.INOMIAL_MESSAGE_VERSION, request);
+
+    PaymentOutbox outbox = open(16);
+    outbox.start();
+    assertTrue(outbox.submit(request.transferId.toString(), message));
+    await(() -> sent.size() == 1);
+
+    BatchSender.Pending replayed = sent.get(0);
+    assertEquals(request.transferId.toString(), replayed.key);
+    assertArrayEquals(objectMapper.writeValueAsBytes(message), objectMapper.writeValueAsBytes(replayed.message));
+  }
+
+  private PaymentOutbox open(int maxSegments)
+  {
+    PaymentOutbox outbox = new PaymentOutbox(dir, TOPIC, sink, SEGMENT_SIZE, maxSegments);
+    outboxes.add(outbox);
+    return outbox;
+  }
+
+  private List<String> sentKeys()
+  {
+    synchronized (sent)
+    {
+      return sent.stream().map(p -> p.key).collect(Collectors.toList());
+    }
+  }
+
+  private File segmentFile(int segment)
+  {
+    return new File(dir, String.format("%010d.seg", segment));
+  }
+
+  /** @return Offset just past the last record written to a segment. */
+  private static int endOfRecords(File segment) throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "r"))
+    {
+      int offset = 0;
+      int length;
+      while (offset + 8 <= raf.length() && (length = readInt(raf, offset)) > 0)
+        offset += 8 + length;
+      return offset;
+    }
+  }
+
+  /** @return Segment and offset recorded in the checkpoint file. */
+  private int[] checkpoint()
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "checkpoint"), "r"))
+    {
+      return new int[] { raf.readInt(), raf.readInt() };
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static int readInt(RandomAccessFile raf, long offset) throws IOException
+  {
+    raf.seek(offset);
+    return raf.readInt();
+  }
+
+  private List<File> segmentFiles()
+  {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+    return files == null ? Collections.emptyList() : Arrays.asList(files);
+  }
+
+  private static List<String> keys(int from, int to)
+  {
+    List<String> keys = new ArrayList<>();
+    for (int i = from; i < to; i++)
+      keys.add(key(i));
+    return keys;
+  }
+
+  private static String key(int i)
+  {
+    return "transfer-" + i;
+  }
+
+  private static KafkaMessage message(int i)
+  {
+    return new KafkaMessage(RSAUDirectDebit.KAFKA_MESSAGE_SOURCE, RSAUDirectDebit.INOMIAL_MESSAGE_VERSION,
+      Collections.singletonMap("transferId", key(i)));
+  }
+
+  /** Waits up to five seconds for a condition to become true. */
+  private static void await(BooleanSupplier condition) throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean())
+    {
+      assertTrue("Timed out waiting for the drainer", System.nanoTime() < deadline);
+      Thread.sleep(5);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.secore.kafka.KafkaMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Drives the batched payment request pipeline against stand-in {@link MessageSink}s in place of Kafka. */
+public class PaymentRequestSubmitterTest
+{
+  private static final String TOPIC = "petal.event";
+
+  /** Longer than any test waits, so it's as good as never. */
+  private static final long NEVER_MS = TimeUnit.MINUTES.toMillis(10);
+
+  /** Broker that acknowledges each message straight away. */
+  private static final MessageSink ACKNOWLEDGES = (topic, key, message) -> CompletableFuture.completedFuture(null);
+
+  /** Broker that never acknowledges a message. */
+  private static final MessageSink HANGS = (topic, key, message) -> new CompletableFuture<Void>();
+
+  private PaymentRequestSubmitter submitter;
+
+  @After
+  public void stopSubmitter() throws InterruptedException
+  {
+    if (submitter != null)
+      submitter.stop();
+  }
+
+  @Test(timeout = 1000)
+  public void rejectsStraightAwayOnceTheQueueIsFull()
+  {
+    // Not started, so nothing drains the queue.
+    submitter = new PaymentRequestSubmitter(TOPIC, ACKNOWLEDGES, 10, 5, 1);
+    for (int i = 0; i < 10; i++)
+      assertTrue(submitter.submit(key(i), message(i)));
+
+    assertFalse(submitter.submit(key(10), message(10)));
+    assertEquals(10, submitter.stats().accepted.get());
+    assertEquals(1, submitter.stats().rejected.get());
+    assertEquals(10, submitter.queueDepth());
+  }
+
+  @Test
+  public void sendsFullBatchesWithoutWaitingToLinger() throws InterruptedException
+  {
+    submitter = new PaymentRequestSubmitter(TOPIC, ACKNOWLEDGES, 100, 10, NEVER_MS);
+    for (int i = 0; i < 30; i++)
+      assertTrue(submitter.submit(key(i), message(i)));
+    submitter.start();
+
+    await(() -> submitter.stats().messagesSent.get() == 30);
+    assertEquals(3, submitter.stats().batches.get());
+    assertEquals(0, submitter.queueDepth());
+  }
+
+  @Test
+  public void sendsPartialBatchesOnceTheyHaveLingered() throws InterruptedException
+  {
+    long lingerMs = 300;
+    submitter = new PaymentRequestSubmitter(TOPIC, ACKNOWLEDGES, 100, 10, lingerMs);
+    submitter.start();
+    long start = System.nanoTime();
+    for (int i = 0; i < 5; i++)
+      assertTrue(submitter.submit(key(i), message(i)));
+
+    Thread.sleep(lingerMs / 3);
+    assertEquals("Batch was sent before it had lingered", 0, submitter.stats().batches.get());
+    await(() -> submitter.stats().batches.get() == 1);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(lingerMs));
+    assertEquals(5, submitter.stats().messagesSent.get());
+  }
+
+  @Test
+  public void reportsMessagesLeftUnsentWhenStopped() throws InterruptedException
+  {
+    // The broker never acknowledges, so the first batch is still being sent when the submitter stops.
+    submitter = new PaymentRequestSubmitter(TOPIC, HANGS, 100, 10, 1);
+    for (int i = 0; i < 25; i++)
+      assertTrue(submitter.submit(key(i), message(i)));
+    submitter.start();
+    await(() -> submitter.queueDepth() == 15);
+
+    assertEquals(25, submitter.stop());
+    assertEquals(0, submitter.stats().messagesSent.get());
+    submitter = null;
+  }
+
+  private static String key(int i)
+  {
+    return "transfer-" + i;
+  }
+
+  private static KafkaMessage message(int i)
+  {
+    return new KafkaMessage(RSAUDirectDebit.KAFKA_MESSAGE_SOURCE, RSAUDirectDebit.INOMIAL_MESSAGE_VERSION,
+      Collections.singletonMap("transferId", key(i)));
+  }
+
+  /** Waits up to five seconds for a condition to become true. */
+  private static void await(BooleanSupplier condition) throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean())
+    {
+      assertTrue("Timed out waiting for the sender", System.nanoTime() < deadline);
+      Thread.sleep(5);
+    }
+  }
+}
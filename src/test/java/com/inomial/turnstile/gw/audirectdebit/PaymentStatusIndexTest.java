@@ -0,0 +1,178 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.cim.turnstile.PaymentStatus;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the {@link PaymentStatusIndex} hash table against a {@link HashMap} holding the same entries. */
+public class PaymentStatusIndexTest
+{
+  /** Capacity of a new index, which these tests keep it at unless they mean to grow it. */
+  private static final int CAPACITY = 1024;
+
+  private static final PaymentStatus SETTLED = PaymentStatus.DECLINED;
+
+  @Test
+  public void removesEntriesFromClustersThatWrapAroundTheEndOfTheTable()
+  {
+    Random random = new Random(20261016);
+    for (int round = 0; round < 200; round++)
+    {
+      PaymentStatusIndex index = new PaymentStatusIndex();
+      Map<UUID, Long> expected = new HashMap<>();
+      // Keys whose home slots are the last few or first few, so that their probe sequences cross the end.
+      for (int i = 0; i < 40; i++)
+      {
+        int home = random.nextInt(8) - 4 & CAPACITY - 1;
+        UUID key = keyWithHome(random, home);
+        long updated = random.nextInt(100);
+        index.put(key, SETTLED, updated);
+        expected.put(key, updated);
+      }
+      assertEquals(CAPACITY, index.capacity());
+
+      long cutoff = random.nextInt(100);
+      int removed = index.evict(cutoff, cutoff);
+      expected.values().removeIf(updated -> updated < cutoff);
+
+      assertEquals(40 - expected.size(), removed);
+      assertEquals(expected.size(), index.size());
+      for (UUID key : expected.keySet())
+        assertEquals("Entry lost after removing its neighbours", SETTLED, index.get(key));
+    }
+  }
+
+  @Test
+  public void removesTheRightEntriesFromAWrappedCluster()
+  {
+    Random random = new Random(20261016);
+    PaymentStatusIndex index = new PaymentStatusIndex();
+    // a and b share the last slot, so b wraps to slot 0; c belongs in slot 0 and is pushed to slot 1.
+    UUID a = keyWithHome(random, CAPACITY - 1);
+    UUID b = keyWithHome(random, CAPACITY - 1);
+    UUID c = keyWithHome(random, 0);
+    index.put(a, SETTLED, 0);
+    index.put(b, PaymentStatus.PENDING, 10);
+    index.put(c, SETTLED, 10);
+
+    assertEquals(1, index.evict(5, 5));
+    assertNull(index.get(a));
+    assertEquals(PaymentStatus.PENDING, index.get(b));
+    assertEquals(SETTLED, index.get(c));
+
+    index.put(a, SETTLED, 10);
+    assertEquals(SETTLED, index.get(a));
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void shrinksAfterEvictingMostEntries()
+  {
+    Random random = new Random(20261016);
+    PaymentStatusIndex index = new PaymentStatusIndex();
+    Map<UUID, PaymentStatus> kept = new HashMap<>();
+    List<UUID> evicted = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++)
+    {
+      UUID key = new UUID(random.nextLong(), random.nextLong());
+      if (i % 200 == 0)
+      {
+        PaymentStatus status = i % 400 == 0 ? PaymentStatus.PENDING : SETTLED;
+        index.put(key, status, 1_000);
+        kept.put(key, status);
+      }
+      else
+      {
+        index.put(key, random.nextBoolean() ? PaymentStatus.PENDING : SETTLED, 0);
+        evicted.add(key);
+      }
+    }
+    int grown = index.capacity();
+
+    assertEquals(evicted.size(), index.evict(500, 500));
+    assertEquals("Index wasn't rehashed into a smaller table", CAPACITY, index.capacity());
+    assertTrue("Index should have grown", grown > CAPACITY);
+    assertEquals(kept.size(), index.size());
+    for (Map.Entry<UUID, PaymentStatus> e : kept.entrySet())
+      assertEquals(e.getValue(), index.get(e.getKey()));
+    for (UUID key : evicted)
+      assertNull(index.get(key));
+
+    // The smaller table still grows and finds everything.
+    for (UUID key : evicted)
+      index.put(key, SETTLED, 2_000);
+    assertEquals(kept.size() + evicted.size(), index.size());
+    for (UUID key : evicted)
+      assertEquals(SETTLED, index.get(key));
+  }
+
+  @Test
+  public void restoresEntriesAndOffsetsFromASnapshot() throws IOException
+  {
+    Random random = new Random(20261016);
+    PaymentStatus[] statuses = PaymentStatus.values();
+    PaymentStatusIndex index = new PaymentStatusIndex();
+    Map<UUID, PaymentStatus> expected = new HashMap<>();
+    List<Long> updates = new ArrayList<>();
+    for (int i = 0; i < 5_000; i++)
+    {
+      UUID key = new UUID(random.nextLong(), random.nextLong());
+      PaymentStatus status = statuses[random.nextInt(statuses.length)];
+      long updated = random.nextLong() & Long.MAX_VALUE;
+      index.put(key, status, updated);
+      expected.put(key, status);
+      updates.add(updated);
+    }
+    Map<Integer, Long> offsets = new HashMap<>();
+    for (int partition = 0; partition < 12; partition++)
+      offsets.put(partition, random.nextLong() & Long.MAX_VALUE);
+
+    File file = File.createTempFile("payment-status", ".snapshot");
+    try
+    {
+      index.writeSnapshot(file, offsets);
+      PaymentStatusIndex restored = new PaymentStatusIndex();
+      UUID stale = new UUID(random.nextLong(), random.nextLong());
+      restored.put(stale, SETTLED, 0);
+
+      assertEquals(offsets, restored.readSnapshot(file));
+      assertEquals(expected.size(), restored.size());
+      for (Map.Entry<UUID, PaymentStatus> e : expected.entrySet())
+        assertEquals(e.getValue(), restored.get(e.getKey()));
+      assertNull("Snapshot should replace the index, not add to it", restored.get(stale));
+
+      // Timestamps survive too, so the same entries are old enough to evict.
+      long cutoff = random.nextLong() & Long.MAX_VALUE;
+      assertEquals(updates.stream().filter(updated -> updated < cutoff).count(), restored.evict(cutoff, cutoff));
+    }
+    finally
+    {
+      Files.delete(file.toPath());
+    }
+  }
+
+  /** @return Random transfer ID whose home slot in a table of {@link #CAPACITY} slots is {@code home}. */
+  private static UUID keyWithHome(Random random, int home)
+  {
+    while (true)
+    {
+      long hi = random.nextLong();
+      long lo = random.nextLong();
+      if ((PaymentStatusIndex.hash(hi, lo) & CAPACITY - 1) == home)
+        return new UUID(hi, lo);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.inomial.turnstile.gw.common.ParseUtil;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that {@link QueryArgs} returns exactly what {@link ParseUtil} does for random query strings, and throws the
+ * same exceptions when {@code ParseUtil} does. */
+public class QueryArgsTest
+{
+  private static final int CASES = 20_000;
+
+  /** Names that random query strings use, and which are looked up in them. */
+  private static final String[] NAMES = { "hmac", "fct", "name", "bsb", "account", "a+b", "a b", "a%20b", "caf\u00e9" };
+
+  /** Pieces that random names and values are made of: escapes both valid and malformed, '+', characters that
+   * should have been escaped, and non-ASCII characters. */
+  private static final String[] VALUE_PIECES = {
+    "a", "Z", "0", "9", "12345", "-", "_", ".", "~", "+", "%20", "%2B", "%26", "%3D", "%25", "%C3%A9", "%E4%B8%AD",
+    "%", "%2", "%zz", "%C3", " ", "/", "?", ":", "\u00e9", "\u4e2d",
+  };
+
+  @Test
+  public void returnsTheSameValuesAsParseUtil()
+  {
+    Random random = new Random(20261016);
+    int values = 0;
+    int longs = 0;
+    for (int i = 0; i < CASES; i++)
+    {
+      String query = randomQuery(random);
+      QueryArgs args = QueryArgs.parse(query);
+      for (String name : NAMES)
+      {
+        String context = "query=" + query + ", name=" + name;
+        if (outcome(() -> ParseUtil.getQueryArgValue(query, name))
+          .check(context, () -> args.getValue(name)))
+          values++;
+        if (outcome(() -> ParseUtil.getLongQueryArg(query, name))
+          .check(context, () -> args.getLong(name)))
+          longs++;
+      }
+    }
+    // Plenty of lookups must have found a value, or this test only compares failures.
+    assertTrue("Only " + values + " values were found", values > CASES / 2);
+    assertTrue("Only " + longs + " numbers were found", longs > CASES / 20);
+  }
+
+  @Test
+  public void handlesEdgeCasesTheSameAsParseUtil()
+  {
+    String[] queries = {
+      null, "", "&", "&&", "=", "hmac", "hmac=", "hmac=&", "=x&hmac=1", "hmac=1&hmac=1", "hmac=1&hmac=2", "hmac&hmac=1",
+      "hmac=a+b", "hmac=a%2Bb", "hmac=%", "hmac=%4", "hmac=%zz", "hmac=%C3", "hmac=a=b", "h%6dac=1", "hmac=1&h%6dac=2",
+      "fct=", "fct=+1", "fct=-1", "fct=1.5", "fct=9223372036854775807", "fct=9223372036854775808", "fct=%31",
+    };
+    for (String query : queries)
+    {
+      QueryArgs args = QueryArgs.parse(query);
+      for (String name : new String[] { "hmac", "fct" })
+      {
+        String context = "query=" + query + ", name=" + name;
+        outcome(() -> ParseUtil.getQueryArgValue(query, name)).check(context, () -> args.getValue(name));
+        outcome(() -> ParseUtil.getLongQueryArg(query, name)).check(context, () -> args.getLong(name));
+      }
+    }
+  }
+
+  /** @return A query string of random arguments, often repeating a name, leaving out the '=' or the value, or
+   * holding an empty argument. */
+  private static String randomQuery(Random random)
+  {
+    StringBuilder query = new StringBuilder();
+    for (int i = random.nextInt(8); i >= 0; i--)
+    {
+      if (query.length() > 0)
+        query.append('&');
+      switch (random.nextInt(20))
+      {
+        case 0:
+          // Empty argument, as in "a=1&&b=2".
+          break;
+        case 1:
+          query.append(randomName(random));
+          break;
+        case 2:
+          query.append(randomName(random)).append('=');
+          break;
+        case 3:
+          query.append(random.nextLong());
+          break;
+        default:
+          query.append(randomName(random)).append('=');
+          if (random.nextBoolean())
+            query.append(random.nextInt(4) == 0 ? random.nextLong() : random.nextInt(1000));
+          else
+            query.append(randomValue(random));
+          break;
+      }
+    }
+    return query.toString();
+  }
+
+  private static String randomName(Random random)
+  {
+    return random.nextInt(10) == 0 ? randomValue(random) : NAMES[random.nextInt(NAMES.length)];
+  }
+
+  private static String randomValue(Random random)
+  {
+    StringBuilder value = new StringBuilder();
+    for (int i = random.nextInt(8); i > 0; i--)
+      value.append(VALUE_PIECES[random.nextInt(VALUE_PIECES.length)]);
+    return value.toString();
+  }
+
+  private static Outcome outcome(Supplier<Object> call)
+  {
+    try
+    {
+      return new Outcome(call.get(), null);
+    }
+    catch (RuntimeException e)
+    {
+      return new Outcome(null, e);
+    }
+  }
+
+  /** What a call returned, or the exception it threw. */
+  private static class Outcome
+  {
+    final Object value;
+    final RuntimeException error;
+
+    Outcome(Object value, RuntimeException error)
+    {
+      this.value = value;
+      this.error = error;
+    }
+
+    /** Asserts that another call has the same outcome.
+     * @return Whether the calls returned a value. */
+    boolean check(String context, Supplier<Object> call)
+    {
+      Outcome actual = outcome(call);
+      if (error == null)
+      {
+        assertEquals(context + ", threw " + actual.error, value, actual.value);
+        return true;
+      }
+      assertTrue(context + ": expected " + error + " but returned " + actual.value, actual.error != null);
+      assertEquals(context, error.getClass(), actual.error.getClass());
+      assertEquals(context, error.getMessage(), actual.error.getMessage());
+      return false;
+    }
+  }
+}
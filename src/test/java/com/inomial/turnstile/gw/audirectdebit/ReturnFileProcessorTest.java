@@ -0,0 +1,143 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inomial.cim.turnstile.PaymentStatus;
+import com.inomial.secore.kafka.KafkaMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Reads the golden return file in {@code src/test/resources/aba} with {@link AbaReturnReader}, and matches it with
+ * {@link ReturnFileProcessor} against the golden references files that {@link AbaFileWriterTest} checks the writer
+ * against. */
+public class ReturnFileProcessorTest
+{
+  private static final String TOPIC = "petal.event";
+
+  private static final String RETURN_FILE = "returns.txt";
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private File dir;
+  private final List<BatchSender.Pending> sent = Collections.synchronizedList(new ArrayList<>());
+  private final MessageSink sink = (topic, key, message) ->
+  {
+    sent.add(new BatchSender.Pending(key, message));
+    return CompletableFuture.completedFuture(null);
+  };
+
+  @Before
+  public void copyGoldenFiles() throws Exception
+  {
+    dir = Files.createTempDirectory("aba-returns").toFile();
+    for (String name : new String[] { "debits-0001.aba.refs", "debits-0002.aba.refs", RETURN_FILE })
+      Files.write(new File(dir, name).toPath(), AbaFileWriterTest.golden(name));
+  }
+
+  @After
+  public void deleteDirectory() throws IOException
+  {
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+        Files.delete(file.toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+
+  @Test
+  public void readsReturnRecordsOnly() throws IOException
+  {
+    List<AbaReturnReader.Return> returns = readAll(0);
+    assertEquals(5, returns.size());
+    // The descriptive record is 122 bytes with its CRLF, and so is each return before the one ending in LF alone.
+    assertReturn(returns.get(0), "3f2b8c1e9d4a4e7ba1", '2', 1234, 122);
+    assertReturn(returns.get(1), "000000000000000000", '6', 1, 244);
+    assertReturn(returns.get(2), "C0FFEE00123456789A", '5', 100000, 366);
+    assertReturn(returns.get(3), "0123456789abcdef01", '3', 4200, 488);
+    assertReturn(returns.get(4), "INV-2026-0001", '1', 4200, 609);
+
+    // Reading can resume from the start of any record.
+    List<AbaReturnReader.Return> resumed = readAll(returns.get(3).offset);
+    assertEquals(2, resumed.size());
+    assertReturn(resumed.get(0), "0123456789abcdef01", '3', 4200, 488);
+  }
+
+  @Test
+  public void publishesADeclineForEachMatchedReturn() throws Exception
+  {
+    new ReturnFileProcessor(dir, TOPIC, sink).process(new File(dir, RETURN_FILE));
+
+    // Returns come back in file order. The third matches although the bank upper-cased the reference; the last two
+    // were never debited by the gateway, so they're skipped.
+    assertEquals(3, sent.size());
+    assertChange(sent.get(0), "3f2b8c1e-9d4a-4e7b-a1c2-5d6e7f809a1b", "12.34", "2", "payment stopped");
+    assertChange(sent.get(1), "00000000-0000-0000-0000-00000000002a", "0.01", "6", "refer to customer");
+    assertChange(sent.get(2), "c0ffee00-1234-5678-9abc-def012345678", "1000.00", "5",
+      "no account or incorrect account number");
+  }
+
+  @Test
+  public void skipsAReturnFileThatHasAlreadyBeenProcessed() throws Exception
+  {
+    File returnFile = new File(dir, RETURN_FILE);
+    new ReturnFileProcessor(dir, TOPIC, sink).process(returnFile);
+    assertEquals(3, sent.size());
+    assertTrue(new File(dir, RETURN_FILE + ".checkpoint").exists());
+
+    new ReturnFileProcessor(dir, TOPIC, sink).process(returnFile);
+    assertEquals("Return file was processed twice", 3, sent.size());
+  }
+
+  private List<AbaReturnReader.Return> readAll(long offset) throws IOException
+  {
+    List<AbaReturnReader.Return> returns = new ArrayList<>();
+    try (AbaReturnReader reader = new AbaReturnReader(new File(dir, RETURN_FILE), offset))
+    {
+      for (AbaReturnReader.Return r = reader.next(); r != null; r = reader.next())
+        returns.add(r);
+      assertEquals(new File(dir, RETURN_FILE).length(), reader.offset());
+    }
+    return returns;
+  }
+
+  private static void assertReturn(AbaReturnReader.Return r, String reference, char returnCode, long amountCents,
+    long offset)
+  {
+    assertEquals(reference, r.reference);
+    assertEquals(returnCode, r.returnCode);
+    assertEquals(amountCents, r.amountCents);
+    assertEquals(offset, r.offset);
+    assertNull(r.transferId);
+  }
+
+  /** Compares messages by their JSON, as they'd be published. */
+  private static void assertChange(BatchSender.Pending pending, String transferId, String amount, String returnCode,
+    String reason) throws IOException
+  {
+    PaymentStatusChange change = new PaymentStatusChange();
+    change.transferId = transferId;
+    change.status = PaymentStatus.DECLINED;
+    change.amount = new BigDecimal(amount);
+    change.returnCode = returnCode;
+    change.reason = "Returned by bank: " + reason;
+    KafkaMessage expected =
+      new KafkaMessage(RSAUDirectDebit.KAFKA_MESSAGE_SOURCE, RSAUDirectDebit.INOMIAL_MESSAGE_VERSION, change);
+    assertEquals(transferId, pending.key);
+    assertEquals(objectMapper.writeValueAsString(expected), objectMapper.writeValueAsString(pending.message));
+  }
+}
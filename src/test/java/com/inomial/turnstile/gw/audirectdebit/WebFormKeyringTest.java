@@ -0,0 +1,106 @@
+package com.inomial.turnstile.gw.audirectdebit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/** Checks that {@link WebFormKeyring} reuses each thread's {@link Mac} for a key while the key is in the keyring, and
+ * lets it go once the key has left. Expects the default of two previous keys. */
+public class WebFormKeyringTest
+{
+  private static final byte[] MESSAGE = "TotallyLooksLikeAWebFormMacMessage".getBytes(StandardCharsets.UTF_8);
+
+  private File dir;
+  private File secretFile;
+  private WebFormKeyring keyring;
+
+  @Before
+  public void createKeyring() throws IOException
+  {
+    dir = Files.createTempDirectory("webformmac").toFile();
+    secretFile = new File(dir, "secret");
+    rotate("one");
+    keyring = new WebFormKeyring(secretFile, "HmacSHA256");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException
+  {
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+        Files.delete(file.toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+
+  @Test
+  public void reusesAMacWhileItsKeyIsInTheKeyring() throws Exception
+  {
+    WebFormKeyring.Key key = keyring.currentKey();
+    Mac mac = key.mac();
+    assertSame(mac, key.mac());
+    assertArrayEquals(freshMac(key).doFinal(MESSAGE), mac.doFinal(MESSAGE));
+    Mac otherThreads = CompletableFuture.supplyAsync(key::mac).get();
+    assertNotSame("Threads must not share a Mac", mac, otherThreads);
+
+    rotate("two");
+    keyring.reload();
+    assertEquals(2, keyring.verificationKeys().size());
+    assertSame("A retired key keeps its Mac", mac, keyring.verificationKeys().get(1).mac());
+    assertNotSame(mac, keyring.currentKey().mac());
+  }
+
+  @Test
+  public void dropsTheMacOfAKeyThatHasLeftTheKeyring() throws Exception
+  {
+    WeakReference<Mac> mac = new WeakReference<>(keyring.currentKey().mac());
+    for (String secret : new String[] { "two", "three", "four" })
+    {
+      rotate(secret);
+      keyring.reload();
+    }
+    assertEquals(3, keyring.verificationKeys().size());
+
+    // This thread notices the rotation the next time it uses the keyring.
+    Mac current = keyring.currentKey().mac();
+    assertArrayEquals(freshMac(keyring.currentKey()).doFinal(MESSAGE), current.doFinal(MESSAGE));
+    for (int i = 0; i < 50 && mac.get() != null; i++)
+    {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull("The first key's Mac is still reachable", mac.get());
+  }
+
+  /** Replaces the secret file in a single step, so that the keyring's file monitor never reads it part-written. */
+  private void rotate(String secret) throws IOException
+  {
+    File tmp = new File(dir, "secret.tmp");
+    Files.write(tmp.toPath(), secret.getBytes(StandardCharsets.US_ASCII));
+    Files.move(tmp.toPath(), secretFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static Mac freshMac(WebFormKeyring.Key key) throws Exception
+  {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(key.secret());
+    return mac;
+  }
+}